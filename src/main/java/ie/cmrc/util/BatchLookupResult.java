@@ -0,0 +1,171 @@
+/*
+ * Copyright 2015 Coastal and Marine Research Centre (CMRC), Beaufort,
+ * Environmental Research Institute (ERI), University College Cork (UCC).
+ * Yassine Lassoued <y.lassoued@gmail.com, y.lassoued@ucc.ie>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.cmrc.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Result of a batched lookup in a {@link TermMap} (see
+ * {@link TermMap#getValuesBatch(java.util.Collection)}). The values found for
+ * the queried terms are stored contiguously in a single array, the values of
+ * the {@code i}-th query ranging from {@code offsets[i]} to {@code offsets[i+1]}.
+ *
+ * <p>A result object may be passed back to
+ * {@link TermMap#getValuesBatch(java.util.Collection, ie.cmrc.util.BatchLookupResult)}
+ * to be refilled, in which case its arrays are reused. A result is not
+ * thread-safe.
+ *
+ * @author Yassine Lassoued
+ * @param <V> Type of the values
+ */
+public class BatchLookupResult<V> {
+
+    /**
+     * Number of queries
+     */
+    int size;
+
+    /**
+     * Start of the values of each query in {@link #values}, followed by the
+     * total number of values
+     */
+    int[] offsets = new int[1];
+
+    /**
+     * Values of all the queries
+     */
+    Object[] values = new Object[0];
+
+    /**
+     * Work arrays of the lookup: term string and language of each query, value
+     * list found for each query, and queries sorted by term string hash
+     */
+    String[] termStrings = new String[0];
+    String[] languages = new String[0];
+    Object[] lists = new Object[0];
+    long[] order = new long[0];
+
+    /**
+     * Constructs an empty result
+     */
+    public BatchLookupResult() {
+    }
+
+    /**
+     * Returns the number of queries of the lookup
+     * @return Number of queried terms
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Returns the number of values found for a query
+     * @param index Index of the query, in the iteration order of the queried collection
+     * @return Number of values associated with the queried term
+     */
+    public int getNumValues(int index) {
+        this.checkIndex(index);
+        return this.offsets[index + 1] - this.offsets[index];
+    }
+
+    /**
+     * Indicates whether values were found for a query
+     * @param index Index of the query, in the iteration order of the queried collection
+     * @return {@code true} if the queried term has at least one value
+     */
+    public boolean isFound(int index) {
+        return this.getNumValues(index) > 0;
+    }
+
+    /**
+     * Returns the first value found for a query
+     * @param index Index of the query, in the iteration order of the queried collection
+     * @return First value associated with the queried term. If no such value
+     * exists then {@code null} is returned.
+     */
+    @SuppressWarnings("unchecked")
+    public V getValue(int index) {
+        this.checkIndex(index);
+        if (this.offsets[index + 1] > this.offsets[index]) return (V) this.values[this.offsets[index]];
+        else return null;
+    }
+
+    /**
+     * Returns the values found for a query
+     * @param index Index of the query, in the iteration order of the queried collection
+     * @return {@code List} of the values associated with the queried term. If
+     * no values were found then an <i>empty</i> {@code List} is returned.
+     * Changes to the returned list will not update this result.
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> getValues(int index) {
+        this.checkIndex(index);
+        List<V> result = new ArrayList<>(this.offsets[index + 1] - this.offsets[index]);
+        for (int i=this.offsets[index]; i<this.offsets[index + 1]; i++) result.add((V) this.values[i]);
+        return result;
+    }
+
+    /**
+     * Prepares the arrays of this result for a lookup of {@code n} queries,
+     * growing them if needed
+     */
+    void reset(int n) {
+        if (this.termStrings.length < n) {
+            int capacity = Math.max(n, 2 * this.termStrings.length);
+            this.termStrings = new String[capacity];
+            this.languages = new String[capacity];
+            this.lists = new Object[capacity];
+            this.order = new long[capacity];
+            this.offsets = new int[capacity + 1];
+        }
+        this.size = n;
+    }
+
+    /**
+     * Lays the value lists found by the lookup out contiguously and releases
+     * the references held by the work arrays
+     */
+    void pack() {
+        int total = 0;
+        for (int i=0; i<this.size; i++) {
+            this.offsets[i] = total;
+            if (this.lists[i] != null) total += ((List<?>) this.lists[i]).size();
+        }
+        this.offsets[this.size] = total;
+        if (this.values.length < total) this.values = new Object[Math.max(total, 2 * this.values.length)];
+        else Arrays.fill(this.values, total, this.values.length, null);
+        for (int i=0; i<this.size; i++) {
+            List<?> list = (List<?>) this.lists[i];
+            if (list != null) {
+                int offset = this.offsets[i];
+                for (int j=0; j<list.size(); j++) this.values[offset + j] = list.get(j);
+            }
+            this.termStrings[i] = null;
+            this.languages[i] = null;
+            this.lists[i] = null;
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= this.size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + this.size);
+    }
+}
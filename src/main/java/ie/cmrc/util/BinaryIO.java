@@ -0,0 +1,250 @@
+/*
+ * Copyright 2015 Coastal and Marine Research Centre (CMRC), Beaufort,
+ * Environmental Research Institute (ERI), University College Cork (UCC).
+ * Yassine Lassoued <y.lassoued@gmail.com, y.lassoued@ucc.ie>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.cmrc.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Binary encoding helpers shared by the persistence and transfer formats of
+ * the term maps: variable length integers (7 bits per byte, least
+ * significant group first) and length-prefixed UTF-8 strings.
+ *
+ * @author Yassine Lassoued
+ */
+final class BinaryIO {
+
+    /**
+     * Largest number of elements or bytes allocated ahead of reading them.
+     * Counts and lengths read from a stream are untrusted: a corrupted one
+     * must lead to an {@code EOFException}, not to a huge allocation.
+     */
+    static final int MAX_PRESIZE = 1 << 16;
+
+    private BinaryIO() {
+    }
+
+    /**
+     * Returns the capacity to allocate for a count read from a stream
+     * @param count Number of elements announced by the stream
+     * @return {@code count}, capped to {@link #MAX_PRESIZE}
+     */
+    static int presize(int count) {
+        return Math.min(count, MAX_PRESIZE);
+    }
+
+    static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift=0; shift<35; shift+=7) {
+            byte b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new IOException("Malformed variable length integer");
+    }
+
+    static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift=0; shift<70; shift+=7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new IOException("Malformed variable length integer");
+    }
+
+    /**
+     * Writes a string, possibly {@code null}, as its length plus one (0
+     * standing for {@code null}) followed by its UTF-8 bytes
+     */
+    static void writeString(DataOutput out, String string) throws IOException {
+        if (string == null) {
+            out.writeByte(0);
+            return;
+        }
+        int length = string.length();
+        if (isAscii(string)) {
+            writeVarInt(out, length + 1);
+            out.writeBytes(string);
+        }
+        else {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(out, bytes.length + 1);
+            out.write(bytes);
+        }
+    }
+
+    private static boolean isAscii(String string) {
+        for (int i=0; i<string.length(); i++) {
+            if (string.charAt(i) >= 0x80) return false;
+        }
+        return true;
+    }
+
+    static String readString(DataInput in) throws IOException {
+        int length = readVarInt(in) - 1;
+        if (length < 0) return null;
+        // Long strings are read in growing chunks, so that the allocated
+        // memory is bounded by the bytes actually present
+        byte[] bytes = new byte[presize(length)];
+        int n = 0;
+        while (true) {
+            in.readFully(bytes, n, bytes.length - n);
+            n = bytes.length;
+            if (n == length) break;
+            bytes = Arrays.copyOf(bytes, (int) Math.min(length, 2L * n));
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Growable byte buffer whose content can be handed to a channel without
+     * being copied. Unlike its superclass, it is not synchronized.
+     */
+    static final class Output extends ByteArrayOutputStream {
+
+        Output(int capacity) {
+            super(capacity);
+        }
+
+        @Override
+        public void write(int b) {
+            if (this.count == this.buf.length) this.grow(this.count + 1);
+            this.buf[this.count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            if (this.count + length > this.buf.length) this.grow(this.count + length);
+            System.arraycopy(bytes, offset, this.buf, this.count, length);
+            this.count += length;
+        }
+
+        private void grow(int minCapacity) {
+            if (minCapacity < 0) throw new OutOfMemoryError();
+            this.buf = Arrays.copyOf(this.buf, Math.max(minCapacity, 2 * this.buf.length));
+        }
+
+        ByteBuffer asByteBuffer() {
+            return ByteBuffer.wrap(this.buf, 0, this.count);
+        }
+
+        byte[] array() {
+            return this.buf;
+        }
+    }
+
+    /**
+     * Input stream reading the remaining bytes of a {@code ByteBuffer}, and
+     * advancing its position
+     */
+    static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            if (!this.buffer.hasRemaining()) return -1;
+            else return this.buffer.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) return 0;
+            if (!this.buffer.hasRemaining()) return -1;
+            int n = Math.min(length, this.buffer.remaining());
+            this.buffer.get(bytes, offset, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return this.buffer.remaining();
+        }
+    }
+
+    /**
+     * Output stream writing to a {@code ByteBuffer}, and advancing its
+     * position. Writing beyond the limit of the buffer throws a
+     * {@code BufferOverflowException}.
+     */
+    static final class ByteBufferOutputStream extends OutputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferOutputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void write(int b) {
+            this.buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            this.buffer.put(bytes, offset, length);
+        }
+    }
+
+    /**
+     * Byte array input that can be pointed at new content without being reallocated
+     */
+    static final class Input extends ByteArrayInputStream {
+
+        Input() {
+            super(new byte[0]);
+        }
+
+        void reset(byte[] bytes, int offset, int length) {
+            this.buf = bytes;
+            this.pos = offset;
+            this.count = offset + length;
+            this.mark = offset;
+        }
+    }
+}
@@ -0,0 +1,568 @@
+/*
+ * Copyright 2015 Coastal and Marine Research Centre (CMRC), Beaufort,
+ * Environmental Research Institute (ERI), University College Cork (UCC).
+ * Yassine Lassoued <y.lassoued@gmail.com, y.lassoued@ucc.ie>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.cmrc.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded, thread-safe cache of the values associated with key terms
+ * {@link Term}. Unlike {@link TermMap}, a {@link CachingTermMap} holds at most
+ * a maximum number of key terms and evicts entries when that number is
+ * exceeded, according to an {@link EvictionPolicy}. Entries may also expire
+ * after a fixed time, and missing entries may be fetched through a {@link Loader}.
+ *
+ * <p>The cache is split into independently locked segments, each of which
+ * holds a share of the maximum size, so concurrent accesses to different
+ * segments do not contend with each other. Evictions are performed in constant
+ * time within the segment being updated.
+ *
+ * @author Yassine Lassoued
+ * @param <V> Type of the cached values
+ */
+public class CachingTermMap<V> {
+
+    /**
+     * Policies deciding which entry to evict when the cache is full
+     */
+    public enum EvictionPolicy {
+        /**
+         * Evicts the least recently used key term
+         */
+        LRU,
+
+        /**
+         * Window TinyLFU: new key terms enter a small LRU window and are only
+         * admitted into the main LRU area if they were accessed more frequently
+         * than the entry they would replace. Access frequencies are estimated
+         * with a compact count-min sketch. This policy resists one-off scans
+         * that would flush a plain LRU cache.
+         */
+        TINY_LFU
+    }
+
+    /**
+     * Callback used to fetch the values of a key term that is not in the cache
+     * @param <V> Type of the loaded values
+     */
+    public interface Loader<V> {
+
+        /**
+         * Loads the values associated with the provided {@code term}
+         * @param term Key term whose values are to be loaded
+         * @return Values associated with {@code term}. If this is {@code null}
+         * or empty, nothing is cached for {@code term}.
+         */
+        List<V> load(Term term);
+    }
+
+    /**
+     * Maximum number of segments
+     */
+    private static final int MAX_SEGMENTS = 16;
+
+    /**
+     * Cache segments. A term is always stored in the segment selected by its hash.
+     */
+    private final Segment<V>[] segments;
+
+    /**
+     * Shift selecting the segment from the high bits of a mixed term hash.
+     * The low bits are left to the hash table of the segment, which would
+     * otherwise only see the hashes of one residue class.
+     */
+    private final int segmentShift;
+
+    /**
+     * Time after which an entry expires, counting from its last write. A value
+     * of 0 means that entries never expire.
+     */
+    private final long expireAfterWriteNanos;
+
+    /**
+     * Loader used on cache misses, may be {@code null}
+     */
+    private final Loader<V> loader;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong loadCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * Constructs an empty LRU {@link CachingTermMap} without expiry nor loader
+     * @param maximumSize Maximum number of key terms held by the cache
+     */
+    public CachingTermMap(int maximumSize) {
+        this(maximumSize, EvictionPolicy.LRU, 0, null);
+    }
+
+    /**
+     * Constructs an empty {@link CachingTermMap}
+     * @param maximumSize Maximum number of key terms held by the cache. This must be positive.
+     * @param policy Eviction policy. If {@code null} then {@link EvictionPolicy#LRU} is used.
+     * @param expireAfterWriteMillis Time in milliseconds after which an entry
+     * expires, counting from its last write. Use 0 for entries that never expire.
+     * @param loader Loader used to fetch the values of missing key terms. This may be {@code null}.
+     */
+    public CachingTermMap(int maximumSize, EvictionPolicy policy, long expireAfterWriteMillis, Loader<V> loader) {
+        if (maximumSize <= 0) throw new IllegalArgumentException("Maximum size must be positive: " + maximumSize);
+        if (expireAfterWriteMillis < 0) throw new IllegalArgumentException("Expiry time must not be negative: " + expireAfterWriteMillis);
+        if (policy == null) policy = EvictionPolicy.LRU;
+
+        int numSegments = 1;
+        while (numSegments < MAX_SEGMENTS && numSegments * 2 <= maximumSize) numSegments *= 2;
+        @SuppressWarnings("unchecked")
+        Segment<V>[] table = (Segment<V>[]) new Segment<?>[numSegments];
+        this.segments = table;
+        this.segmentShift = 32 - Integer.numberOfTrailingZeros(numSegments);
+        for (int i=0; i<numSegments; i++) {
+            int capacity = maximumSize / numSegments;
+            if (i < maximumSize % numSegments) capacity++;
+            this.segments[i] = new Segment<>(capacity, policy);
+        }
+        this.expireAfterWriteNanos = expireAfterWriteMillis * 1000000L;
+        this.loader = loader;
+    }
+
+    /**
+     * Returns the list of values associated with the provided term. If the term
+     * is not cached (or its entry has expired) and a loader was provided, then
+     * the values are loaded and cached.
+     *
+     * @param term Term for which values will be returned
+     * @return {@code List<V>} containing the values associated with {@code term}.
+     * If there are no such values then an <i>empty</i> {@code List<V>} is returned.
+     *
+     * <p>Changes to the returned list itself will not update the cache.
+     */
+    public List<V> getValues(Term term) {
+        term = keyOf(term);
+        Segment<V> segment = this.segmentFor(term);
+        List<V> result = segment.get(term, this.expireAfterWriteNanos);
+        if (result != null) {
+            this.hitCount.incrementAndGet();
+            return result;
+        }
+        this.missCount.incrementAndGet();
+        if (this.loader != null) {
+            List<V> loaded = this.loader.load(term);
+            this.loadCount.incrementAndGet();
+            if (loaded != null && !loaded.isEmpty()) {
+                this.evictionCount.addAndGet(segment.put(term, loaded, true));
+                return new ArrayList<>(loaded);
+            }
+        }
+        return new ArrayList<>();
+    }
+
+    /**
+     * Returns a value (the first one) associated with {@code term} if any,
+     * loading it on a miss as per {@link #getValues(ie.cmrc.util.Term)}
+     * @param term {@link Term} whose associated value is to be returned
+     * @return First value associated with {@code term}. If no such value exists
+     * then {@code null} is returned.
+     */
+    public V getValue(Term term) {
+        List<V> values = this.getValues(term);
+        if (!values.isEmpty()) return values.get(0);
+        else return null;
+    }
+
+    /**
+     * Associates the provided {@code value} with the provided {@code term},
+     * in addition to the values already cached for that term
+     * @param term Term with which the specified value is to be associated
+     * @param value Value to be associated with the specified term
+     */
+    public void put(Term term, V value) {
+        term = keyOf(term);
+        List<V> values = new ArrayList<>(1);
+        values.add(value);
+        this.evictionCount.addAndGet(this.segmentFor(term).put(term, values, false));
+    }
+
+    /**
+     * Caches the provided {@code term-value} entry and makes sure that {@code value}
+     * is the only value associated with {@code term}
+     * @param term Key term with which the specified value is to be associated
+     * @param value Value to be associated with the specified key term
+     */
+    public void putOnly(Term term, V value) {
+        term = keyOf(term);
+        List<V> values = new ArrayList<>(1);
+        values.add(value);
+        this.evictionCount.addAndGet(this.segmentFor(term).put(term, values, true));
+    }
+
+    /**
+     * Removes the provided term and its values from the cache
+     * @param term {@link Term} whose values are to be removed
+     * @return The {@code List} of values that were removed. If the term was not
+     * cached then an <i>empty</i> {@code List} is returned.
+     */
+    public List<V> removeAll(Term term) {
+        term = keyOf(term);
+        List<V> removed = this.segmentFor(term).remove(term);
+        if (removed != null) return removed;
+        else return new ArrayList<>();
+    }
+
+    /**
+     * Indicates whether the cache currently holds an unexpired entry for the
+     * provided term. This does not trigger any load nor count as an access.
+     * @param term Term to check
+     * @return {@code true} if the term is cached, {@code false} otherwise
+     */
+    public boolean containsKeyTerm(Term term) {
+        term = keyOf(term);
+        return this.segmentFor(term).contains(term, this.expireAfterWriteNanos);
+    }
+
+    /**
+     * Removes all the entries from the cache. Statistics are not reset.
+     */
+    public void clear() {
+        for (Segment<V> segment: this.segments) segment.clear();
+    }
+
+    /**
+     * Returns the number of key terms currently held by the cache, including
+     * expired entries that have not been purged yet
+     * @return Number of cached key terms
+     */
+    public int getNumKeyTerms() {
+        int n = 0;
+        for (Segment<V> segment: this.segments) n += segment.size();
+        return n;
+    }
+
+    /**
+     * Number of lookups that found an unexpired cached entry
+     * @return Hit count
+     */
+    public long getHitCount() {
+        return this.hitCount.get();
+    }
+
+    /**
+     * Number of lookups that did not find an unexpired cached entry
+     * @return Miss count
+     */
+    public long getMissCount() {
+        return this.missCount.get();
+    }
+
+    /**
+     * Number of times the loader was called
+     * @return Load count
+     */
+    public long getLoadCount() {
+        return this.loadCount.get();
+    }
+
+    /**
+     * Number of entries evicted because the cache was full. Expired and
+     * explicitly removed entries are not counted.
+     * @return Eviction count
+     */
+    public long getEvictionCount() {
+        return this.evictionCount.get();
+    }
+
+    /**
+     * Ratio of lookups that were hits
+     * @return Hit rate in the range [0,1]. If no lookups were made then 1 is returned.
+     */
+    public double getHitRate() {
+        long hits = this.hitCount.get();
+        long requests = hits + this.missCount.get();
+        if (requests == 0) return 1.0;
+        else return (double) hits / requests;
+    }
+
+    /**
+     * Replaces a {@code null} term with the empty term
+     */
+    private static Term keyOf(Term term) {
+        if (term != null) return term;
+        else return new Term(null, null);
+    }
+
+    private Segment<V> segmentFor(Term term) {
+        int h = term.hashCode() * 0x9e3779b9;
+        return this.segments[(h >>> this.segmentShift) & (this.segments.length - 1)];
+    }
+
+    /**
+     * Cache entry, linked into the LRU list of its area
+     */
+    private static final class Node<V> {
+        final Term term;
+        List<V> values;
+        long writeTime;
+        boolean inWindow;
+        Node<V> prev;
+        Node<V> next;
+
+        Node(Term term) {
+            this.term = term;
+            this.prev = this;
+            this.next = this;
+        }
+    }
+
+    /**
+     * Independently locked part of the cache. Entries live in two circular
+     * LRU lists: the admission window (only used by {@link EvictionPolicy#TINY_LFU})
+     * and the main area. The head of each list is its most recently used entry.
+     */
+    private static final class Segment<V> extends ReentrantLock {
+
+        private static final long serialVersionUID = 1L;
+
+        private final HashMap<Term, Node<V>> nodes = new HashMap<>();
+        private final Node<V> window = new Node<>(null);
+        private final Node<V> main = new Node<>(null);
+        private final int windowCapacity;
+        private final int mainCapacity;
+        private final FrequencySketch sketch;
+        private int windowSize;
+        private int mainSize;
+
+        Segment(int capacity, EvictionPolicy policy) {
+            if (policy == EvictionPolicy.TINY_LFU && capacity > 1) {
+                this.windowCapacity = Math.max(1, capacity / 100);
+                this.sketch = new FrequencySketch(capacity);
+            }
+            else {
+                this.windowCapacity = 0;
+                this.sketch = null;
+            }
+            this.mainCapacity = capacity - this.windowCapacity;
+        }
+
+        List<V> get(Term term, long expireAfterWriteNanos) {
+            this.lock();
+            try {
+                if (this.sketch != null) this.sketch.increment(term.hashCode());
+                Node<V> node = this.nodes.get(term);
+                if (node == null) return null;
+                if (expireAfterWriteNanos > 0 && System.nanoTime() - node.writeTime > expireAfterWriteNanos) {
+                    this.unlink(node);
+                    this.nodes.remove(term);
+                    return null;
+                }
+                this.moveToHead(node);
+                return new ArrayList<>(node.values);
+            }
+            finally {
+                this.unlock();
+            }
+        }
+
+        boolean contains(Term term, long expireAfterWriteNanos) {
+            this.lock();
+            try {
+                Node<V> node = this.nodes.get(term);
+                return node != null && (expireAfterWriteNanos <= 0 || System.nanoTime() - node.writeTime <= expireAfterWriteNanos);
+            }
+            finally {
+                this.unlock();
+            }
+        }
+
+        /**
+         * Stores values for a term
+         * @return Number of entries evicted to make room for the term
+         */
+        int put(Term term, List<V> values, boolean replace) {
+            this.lock();
+            try {
+                if (this.sketch != null) this.sketch.increment(term.hashCode());
+                Node<V> node = this.nodes.get(term);
+                if (node != null) {
+                    if (replace) node.values = new ArrayList<>(values);
+                    else node.values.addAll(values);
+                    node.writeTime = System.nanoTime();
+                    this.moveToHead(node);
+                    return 0;
+                }
+                node = new Node<>(term);
+                node.values = new ArrayList<>(values);
+                node.writeTime = System.nanoTime();
+                this.nodes.put(term, node);
+                if (this.sketch == null) {
+                    this.linkFirst(this.main, node);
+                    this.mainSize++;
+                    if (this.mainSize > this.mainCapacity) {
+                        this.evict(this.main.prev);
+                        return 1;
+                    }
+                    return 0;
+                }
+                node.inWindow = true;
+                this.linkFirst(this.window, node);
+                this.windowSize++;
+                if (this.windowSize <= this.windowCapacity) return 0;
+
+                // The window overflowed: its LRU entry is a candidate for the main area
+                Node<V> candidate = this.window.prev;
+                this.unlink(candidate);
+                candidate.inWindow = false;
+                this.linkFirst(this.main, candidate);
+                this.mainSize++;
+                if (this.mainSize <= this.mainCapacity) return 0;
+
+                Node<V> victim = this.main.prev;
+                if (this.sketch.frequency(candidate.term.hashCode()) > this.sketch.frequency(victim.term.hashCode())) {
+                    this.evict(victim);
+                }
+                else this.evict(candidate);
+                return 1;
+            }
+            finally {
+                this.unlock();
+            }
+        }
+
+        List<V> remove(Term term) {
+            this.lock();
+            try {
+                Node<V> node = this.nodes.remove(term);
+                if (node == null) return null;
+                this.unlink(node);
+                return node.values;
+            }
+            finally {
+                this.unlock();
+            }
+        }
+
+        void clear() {
+            this.lock();
+            try {
+                this.nodes.clear();
+                this.window.prev = this.window.next = this.window;
+                this.main.prev = this.main.next = this.main;
+                this.windowSize = 0;
+                this.mainSize = 0;
+            }
+            finally {
+                this.unlock();
+            }
+        }
+
+        int size() {
+            this.lock();
+            try {
+                return this.nodes.size();
+            }
+            finally {
+                this.unlock();
+            }
+        }
+
+        private void evict(Node<V> node) {
+            this.unlink(node);
+            this.nodes.remove(node.term);
+        }
+
+        private void moveToHead(Node<V> node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            this.linkFirst(node.inWindow ? this.window : this.main, node);
+        }
+
+        private void linkFirst(Node<V> head, Node<V> node) {
+            node.prev = head;
+            node.next = head.next;
+            head.next.prev = node;
+            head.next = node;
+        }
+
+        private void unlink(Node<V> node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = node;
+            node.next = node;
+            if (node.inWindow) this.windowSize--;
+            else this.mainSize--;
+        }
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters estimating how often key hashes were
+     * accessed. Counters are halved periodically so that old accesses fade out.
+     */
+    private static final class FrequencySketch {
+
+        private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private final long[] table;
+        private final int counterMask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int capacity) {
+            int size = 1;
+            while (size < Math.max(capacity / 4, 4)) size <<= 1;
+            this.table = new long[size];
+            this.counterMask = size * 16 - 1;
+            this.sampleSize = 10 * Math.max(capacity, 16);
+        }
+
+        int frequency(int hash) {
+            int frequency = 15;
+            for (int i=0; i<SEEDS.length; i++) {
+                int index = this.counterIndex(hash, i);
+                frequency = Math.min(frequency, (int) ((this.table[index >>> 4] >>> ((index & 15) << 2)) & 15L));
+            }
+            return frequency;
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int i=0; i<SEEDS.length; i++) {
+                int index = this.counterIndex(hash, i);
+                int shift = (index & 15) << 2;
+                if (((this.table[index >>> 4] >>> shift) & 15L) != 15L) {
+                    this.table[index >>> 4] += (1L << shift);
+                    added = true;
+                }
+            }
+            if (added && ++this.additions >= this.sampleSize) {
+                for (int i=0; i<this.table.length; i++) {
+                    this.table[i] = (this.table[i] >>> 1) & RESET_MASK;
+                }
+                this.additions /= 2;
+            }
+        }
+
+        private int counterIndex(int hash, int i) {
+            long h = (hash + SEEDS[i]) * SEEDS[(i + 1) & 3];
+            h ^= (h >>> 32);
+            return (int) h & this.counterMask;
+        }
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright 2015 Coastal and Marine Research Centre (CMRC), Beaufort,
+ * Environmental Research Institute (ERI), University College Cork (UCC).
+ * Yassine Lassoued <y.lassoued@gmail.com, y.lassoued@ucc.ie>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.cmrc.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Usage counters of a {@link TermMap} or {@link Multimap}: lookup hits and
+ * misses, lookup latencies, insertions, removals and the estimated number of
+ * times the internal hash table was resized.
+ *
+ * <p>Metrics are only collected by collections on which they were enabled
+ * (see {@link TermMap#enableMetrics()} and {@link Multimap#enableMetrics()});
+ * otherwise the instrumentation is skipped by a single {@code null} check.
+ * Counters are striped across cache lines so that concurrent readers do not
+ * contend on a single memory location. Their current values, together with
+ * distributions computed from the collection content, are exported as a
+ * {@link Snapshot}.
+ *
+ * @author Yassine Lassoued
+ */
+public class CollectionMetrics {
+
+    /**
+     * Default {@code HashMap} capacity and load factor, used to estimate resizes
+     */
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private final StripedCounter hits = new StripedCounter();
+    private final StripedCounter misses = new StripedCounter();
+    private final StripedCounter puts = new StripedCounter();
+    private final StripedCounter removes = new StripedCounter();
+    private final LatencyHistogram lookupLatencies = new LatencyHistogram();
+
+    /**
+     * Number of keys above which the monitored hash table is next resized
+     */
+    private long resizeThreshold;
+    private long resizes;
+
+    /**
+     * Constructs metrics for a hash table created with the default capacity
+     */
+    CollectionMetrics() {
+        this(DEFAULT_CAPACITY, 0);
+    }
+
+    /**
+     * Constructs metrics for a hash table created with the provided capacity
+     * and already holding keys. The resizes the table went through to hold
+     * these keys are taken as a baseline and not counted.
+     * @param initialCapacity Initial capacity of the monitored hash table
+     * @param numKeys Number of keys the monitored hash table currently holds
+     */
+    CollectionMetrics(int initialCapacity, int numKeys) {
+        this.resetResizeBaseline(initialCapacity, numKeys);
+    }
+
+    /**
+     * Restarts the resize estimate for a hash table that was rebuilt with the
+     * provided capacity, the resizes already counted being kept
+     * @param capacity Capacity with which the monitored hash table was created
+     * @param numKeys Number of keys the monitored hash table currently holds
+     */
+    void resetResizeBaseline(int capacity, int numKeys) {
+        long tableSize = 1;
+        while (tableSize < capacity) tableSize <<= 1;
+        this.resizeThreshold = (long) (tableSize * LOAD_FACTOR);
+        while (numKeys > this.resizeThreshold) this.resizeThreshold <<= 1;
+    }
+
+    /**
+     * Records a lookup
+     * @param hit Whether the lookup found a value
+     * @param nanos Duration of the lookup in nanoseconds
+     */
+    void recordLookup(boolean hit, long nanos) {
+        if (hit) this.hits.increment();
+        else this.misses.increment();
+        this.lookupLatencies.record(nanos);
+    }
+
+    /**
+     * Records an insertion
+     * @param numKeys Number of keys of the monitored hash table after the insertion
+     */
+    void recordPut(int numKeys) {
+        this.puts.increment();
+        while (numKeys > this.resizeThreshold) {
+            this.resizes++;
+            this.resizeThreshold <<= 1;
+        }
+    }
+
+    /**
+     * Records a removal
+     */
+    void recordRemove() {
+        this.removes.increment();
+    }
+
+    /**
+     * Captures the current values of the counters
+     * @param valuesPerKey Distribution of the number of values per key, see
+     * {@link Snapshot#getValuesPerKeyHistogram()}
+     * @param languagesPerTerm Distribution of the number of languages per term
+     * string, see {@link Snapshot#getLanguagesPerTermHistogram()}
+     * @return Snapshot of the metrics
+     */
+    Snapshot snapshot(long[] valuesPerKey, long[] languagesPerTerm) {
+        return new Snapshot(this.hits.sum(), this.misses.sum(), this.puts.sum(), this.removes.sum(),
+                this.resizes, this.lookupLatencies.counts(), valuesPerKey, languagesPerTerm);
+    }
+
+    /**
+     * Returns the index of the power-of-two bucket of a count: bucket 0 holds
+     * the count 1, and bucket {@code i > 0} holds the counts in
+     * {@code [2^(i-1) + 1, 2^i]}
+     * @param count Count to classify, at least 1
+     * @return Bucket index
+     */
+    static int countBucket(int count) {
+        if (count <= 1) return 0;
+        else return 32 - Integer.numberOfLeadingZeros(count - 1);
+    }
+
+    /**
+     * Adds one to the provided bucket of a histogram, growing it if needed
+     * @param histogram Histogram to update
+     * @param bucket Bucket index
+     * @return Updated histogram
+     */
+    static long[] increment(long[] histogram, int bucket) {
+        if (bucket >= histogram.length) {
+            long[] grown = new long[bucket + 1];
+            System.arraycopy(histogram, 0, grown, 0, histogram.length);
+            histogram = grown;
+        }
+        histogram[bucket]++;
+        return histogram;
+    }
+
+    /**
+     * Immutable export of {@link CollectionMetrics}
+     */
+    public static final class Snapshot {
+
+        private final long hitCount;
+        private final long missCount;
+        private final long putCount;
+        private final long removeCount;
+        private final long resizeCount;
+        private final long[] latencyCounts;
+        private final long[] valuesPerKey;
+        private final long[] languagesPerTerm;
+
+        Snapshot(long hitCount, long missCount, long putCount, long removeCount, long resizeCount,
+                long[] latencyCounts, long[] valuesPerKey, long[] languagesPerTerm) {
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.putCount = putCount;
+            this.removeCount = removeCount;
+            this.resizeCount = resizeCount;
+            this.latencyCounts = latencyCounts;
+            this.valuesPerKey = valuesPerKey;
+            this.languagesPerTerm = languagesPerTerm;
+        }
+
+        /**
+         * Number of lookups that found a value
+         * @return Hit count
+         */
+        public long getHitCount() {
+            return this.hitCount;
+        }
+
+        /**
+         * Number of lookups that did not find any value
+         * @return Miss count
+         */
+        public long getMissCount() {
+            return this.missCount;
+        }
+
+        /**
+         * Ratio of lookups that found a value
+         * @return Hit rate in the range [0,1]. If no lookups were made then 1 is returned.
+         */
+        public double getHitRate() {
+            long lookups = this.hitCount + this.missCount;
+            if (lookups == 0) return 1.0;
+            else return (double) this.hitCount / lookups;
+        }
+
+        /**
+         * Number of insertions
+         * @return Put count
+         */
+        public long getPutCount() {
+            return this.putCount;
+        }
+
+        /**
+         * Number of removals that changed the collection
+         * @return Remove count
+         */
+        public long getRemoveCount() {
+            return this.removeCount;
+        }
+
+        /**
+         * Estimated number of times the top-level hash table of the collection
+         * was resized (and rehashed) since metrics were enabled. This is
+         * derived from the number of keys and the default {@code HashMap}
+         * growth policy.
+         * @return Estimated resize count
+         */
+        public long getResizeCount() {
+            return this.resizeCount;
+        }
+
+        /**
+         * Returns an upper bound of the provided percentile of the lookup
+         * latencies. Latencies are recorded with a relative precision of 1/16.
+         * @param percentile Percentile in the range [0,100]
+         * @return Latency in nanoseconds, or 0 if no lookups were recorded
+         */
+        public long getLookupLatencyPercentile(double percentile) {
+            long total = 0;
+            for (long count: this.latencyCounts) total += count;
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(total * Math.min(100.0, Math.max(0.0, percentile)) / 100.0);
+            if (rank < 1) rank = 1;
+            long seen = 0;
+            for (int i=0; i<this.latencyCounts.length; i++) {
+                seen += this.latencyCounts[i];
+                if (seen >= rank) return LatencyHistogram.upperBound(i);
+            }
+            return LatencyHistogram.upperBound(this.latencyCounts.length - 1);
+        }
+
+        /**
+         * Distribution of the number of values per key: element 0 counts the
+         * keys with a single value, and element {@code i > 0} counts the keys
+         * with {@code 2^(i-1) + 1} to {@code 2^i} values. For a {@link TermMap},
+         * keys are the key terms.
+         * @return Copy of the histogram
+         */
+        public long[] getValuesPerKeyHistogram() {
+            return this.valuesPerKey.clone();
+        }
+
+        /**
+         * Distribution of the number of languages per term string of a
+         * {@link TermMap}, with the same buckets as {@link #getValuesPerKeyHistogram()}.
+         * This is empty for a {@link Multimap}.
+         * @return Copy of the histogram
+         */
+        public long[] getLanguagesPerTermHistogram() {
+            return this.languagesPerTerm.clone();
+        }
+    }
+
+    /**
+     * Counter spreading its increments over several cells, each on its own
+     * cache line, selected by the calling thread
+     */
+    static final class StripedCounter {
+
+        private static final int NUM_CELLS = 16;
+        private static final int PADDING = 8;
+
+        private final AtomicLongArray cells = new AtomicLongArray(NUM_CELLS * PADDING);
+
+        void increment() {
+            long id = Thread.currentThread().getId();
+            int cell = (int) ((id ^ (id >>> 16)) & (NUM_CELLS - 1));
+            this.cells.incrementAndGet(cell * PADDING);
+        }
+
+        long sum() {
+            long sum = 0;
+            for (int i=0; i<NUM_CELLS; i++) sum += this.cells.get(i * PADDING);
+            return sum;
+        }
+    }
+
+    /**
+     * Log-linear histogram in the manner of HdrHistogram: each power of two is
+     * split into 16 linear sub-buckets, giving a relative error below 1/16
+     */
+    static final class LatencyHistogram {
+
+        private static final int SUB_BUCKET_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+
+        void record(long value) {
+            this.counts.incrementAndGet(index(Math.max(0L, value)));
+        }
+
+        long[] counts() {
+            long[] result = new long[NUM_BUCKETS];
+            for (int i=0; i<NUM_BUCKETS; i++) result[i] = this.counts.get(i);
+            return result;
+        }
+
+        static int index(long value) {
+            if (value < SUB_BUCKETS) return (int) value;
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+        }
+
+        static long upperBound(int index) {
+            if (index < SUB_BUCKETS) return index;
+            int shift = index / SUB_BUCKETS - 1;
+            long subBucket = index % SUB_BUCKETS;
+            return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+        }
+    }
+}
@@ -0,0 +1,748 @@
+/*
+ * Copyright 2015 Coastal and Marine Research Centre (CMRC), Beaufort,
+ * Environmental Research Institute (ERI), University College Cork (UCC).
+ * Yassine Lassoued <y.lassoued@gmail.com, y.lassoued@ucc.ie>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.cmrc.util;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link TermMap} whose updates are persisted in a directory, so that its
+ * content survives restarts.
+ *
+ * <p>Every update is appended to a binary log before the map is changed.
+ * Each log record carries its length and a CRC-32 checksum, so a record torn
+ * by a crash is detected and discarded on recovery. Records are accumulated in
+ * memory and written in batches, each batch being forced to disk with a single
+ * {@code fsync} (group commit):
+ * <ul>
+ * <li>with {@link SyncMode#BATCHED}, a batch is written when it reaches the
+ * batch size, or when {@link #commit()} or {@link #close()} is called. Updates
+ * made since the last batch may be lost by a crash.</li>
+ * <li>with {@link SyncMode#EVERY_OPERATION}, each update returns once it is on
+ * disk. Threads updating the map concurrently share the same {@code fsync}.</li>
+ * </ul>
+ *
+ * <p>When the log grows beyond the compaction size, the whole map is written
+ * to a snapshot file and the log is restarted (see {@link #compact()}). On
+ * opening, the map is rebuilt by reading the snapshot and replaying the log.
+ *
+ * <p>Updates must go through this class; the map returned by
+ * {@link #getTermMap()} is for reading only. All methods are thread-safe,
+ * but reading the map returned by {@link #getTermMap()} requires
+ * synchronizing on this object.
+ *
+ * @author Yassine Lassoued
+ * @param <V> Type of the mapped values
+ */
+public class DurableTermMap<V> implements Closeable {
+
+    /**
+     * Durability of the updates
+     */
+    public enum SyncMode {
+        /**
+         * Updates are forced to disk before returning
+         */
+        EVERY_OPERATION,
+        /**
+         * Updates are forced to disk in batches
+         */
+        BATCHED
+    }
+
+    /**
+     * Default size of a batch of log records, in bytes
+     */
+    public static final int DEFAULT_BATCH_SIZE = 1 << 20;
+
+    /**
+     * Default size of the log beyond which it is compacted, in bytes
+     */
+    public static final long DEFAULT_COMPACTION_SIZE = 64L << 20;
+
+    private static final int MAGIC = 0x544D4C47;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final String SNAPSHOT_FILE = "termmap.snapshot";
+    private static final String LOG_PREFIX = "termmap-";
+    private static final String LOG_SUFFIX = ".log";
+
+    private static final byte PUT = 1;
+    private static final byte PUT_ONLY = 2;
+    private static final byte REMOVE = 3;
+    private static final byte REMOVE_ALL_TERM = 4;
+    private static final byte REMOVE_ALL_STRING = 5;
+
+    private final File directory;
+    private final ValueCodec<V> codec;
+    private final SyncMode syncMode;
+    private final int batchSize;
+    private final long compactionSize;
+    private final TermMap<V> termMap;
+
+    /**
+     * Serialises the writes to the log file. It is acquired before the
+     * monitor of this object when both are needed.
+     */
+    private final Object syncLock = new Object();
+
+    /**
+     * Log file, its generation (incremented by each compaction) and size
+     */
+    private FileChannel log;
+    private long generation;
+    private volatile long logSize;
+
+    /**
+     * Records not yet written, and the spare buffer swapped with it while
+     * writing. The spare buffer is only used by the holder of {@link #syncLock}.
+     */
+    private BinaryIO.Output pending;
+    private BinaryIO.Output spare;
+    private final BinaryIO.Output record = new BinaryIO.Output(256);
+    private final DataOutputStream recordOut = new DataOutputStream(this.record);
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Sequence number of the last logged update, and of the last update on disk
+     */
+    private long appendedSequence;
+    private long durableSequence;
+
+    private boolean closed;
+
+    /**
+     * Error that left the log in an unknown state, after which updates are
+     * rejected
+     */
+    private volatile IOException failure;
+
+    /**
+     * Opens a durable term map in batched mode with the default batch and
+     * compaction sizes, recovering its content if the directory holds one
+     * @param directory Directory of the snapshot and log files. It is created
+     * if it does not exist.
+     * @param codec Codec of the values
+     * @throws IOException If the directory cannot be read or written
+     */
+    public DurableTermMap(File directory, ValueCodec<V> codec) throws IOException {
+        this(directory, codec, SyncMode.BATCHED, DEFAULT_BATCH_SIZE, DEFAULT_COMPACTION_SIZE);
+    }
+
+    /**
+     * Opens a durable term map, recovering its content if the directory holds one
+     * @param directory Directory of the snapshot and log files. It is created
+     * if it does not exist.
+     * @param codec Codec of the values
+     * @param syncMode Durability of the updates
+     * @param batchSize Size of a batch of log records, in bytes
+     * @param compactionSize Size of the log beyond which it is compacted, in bytes
+     * @throws IOException If the directory cannot be read or written
+     */
+    public DurableTermMap(File directory, ValueCodec<V> codec, SyncMode syncMode, int batchSize, long compactionSize) throws IOException {
+        if (batchSize <= 0) throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+        if (compactionSize <= 0) throw new IllegalArgumentException("Compaction size must be positive: " + compactionSize);
+        this.directory = directory;
+        this.codec = codec;
+        this.syncMode = syncMode;
+        this.batchSize = batchSize;
+        this.compactionSize = compactionSize;
+        this.termMap = new TermMap<>();
+        this.pending = new BinaryIO.Output(Math.min(batchSize, DEFAULT_BATCH_SIZE) + 256);
+        this.spare = new BinaryIO.Output(Math.min(batchSize, DEFAULT_BATCH_SIZE) + 256);
+        if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Cannot create directory " + directory);
+        this.recover();
+    }
+
+    /**
+     * Returns the in-memory term map. It must not be modified directly, as
+     * such changes would not be persisted. The map is updated while holding
+     * the monitor of this object, so concurrent readers must synchronize on
+     * this object:
+     * <pre>
+     * synchronized (durableMap) {
+     *     values = durableMap.getTermMap().getValues(term);
+     * }</pre>
+     * @return Term map holding the current content
+     */
+    public TermMap<V> getTermMap() {
+        return this.termMap;
+    }
+
+    /**
+     * Returns the list of values associated with the provided term
+     * @param term Term for which values will be returned
+     * @return Values associated with {@code term}, see {@link TermMap#getValues(ie.cmrc.util.Term)}
+     */
+    public synchronized List<V> getValues(Term term) {
+        return this.termMap.getValues(term);
+    }
+
+    /**
+     * Returns a value (the first one) associated with {@code term} if any
+     * @param term {@link Term} whose associated value is to be returned
+     * @return First value associated with {@code term}. If no such value exists
+     * then {@code null} is returned.
+     */
+    public synchronized V getValue(Term term) {
+        return this.termMap.getValue(term);
+    }
+
+    /**
+     * Checks whether the map has values for the provided term
+     * @param term Term to check
+     * @return {@code true} if the term exists, {@code false} otherwise
+     */
+    public synchronized boolean containsKeyTerm(Term term) {
+        return this.termMap.containsKeyTerm(term);
+    }
+
+    /**
+     * Returns the number of term-value pairs
+     * @return Number of term-value pairs
+     */
+    public synchronized int getSize() {
+        return this.termMap.getSize();
+    }
+
+    /**
+     * Inserts the provided {@code value} associated with the provided {@code term}
+     * @param term Term with which the specified value is to be associated
+     * @param value Value to be associated with the specified term
+     * @throws IOException If the update cannot be logged
+     */
+    public void put(Term term, V value) throws IOException {
+        long sequence;
+        synchronized (this) {
+            this.append(PUT, term, null, value);
+            this.termMap.put(term, value);
+            sequence = this.appendedSequence;
+        }
+        this.afterAppend(sequence);
+    }
+
+    /**
+     * Inserts the provided {@code term-value} entry if it is not already in the map
+     * @param term Term with which the specified value is to be associated
+     * @param value Value to be associated with the specified term
+     * @return {@code true} if the entry was added, {@code false} otherwise
+     * @throws IOException If the update cannot be logged
+     */
+    public boolean putIfAbsent(Term term, V value) throws IOException {
+        long sequence;
+        synchronized (this) {
+            if (this.termMap.containsEntry(term, value)) return false;
+            this.append(PUT, term, null, value);
+            this.termMap.put(term, value);
+            sequence = this.appendedSequence;
+        }
+        this.afterAppend(sequence);
+        return true;
+    }
+
+    /**
+     * Inserts the provided {@code term-value} entry and makes sure that {@code value}
+     * is the only value associated with {@code term}
+     * @param term Key term with which the specified value is to be associated
+     * @param value Value to be associated with the specified key term
+     * @throws IOException If the update cannot be logged
+     */
+    public void putOnly(Term term, V value) throws IOException {
+        long sequence;
+        synchronized (this) {
+            this.append(PUT_ONLY, term, null, value);
+            this.termMap.putOnly(term, value);
+            sequence = this.appendedSequence;
+        }
+        this.afterAppend(sequence);
+    }
+
+    /**
+     * Removes the provided {@code term-value} pair
+     * @param term {@link Term} the associated value of which to remove
+     * @param value Value associated with the term to remove
+     * @return {@code true} if the map has changed, {@code false} otherwise
+     * @throws IOException If the update cannot be logged
+     */
+    public boolean remove(Term term, V value) throws IOException {
+        long sequence;
+        synchronized (this) {
+            if (!this.termMap.containsEntry(term, value)) return false;
+            this.append(REMOVE, term, null, value);
+            this.termMap.remove(term, value);
+            sequence = this.appendedSequence;
+        }
+        this.afterAppend(sequence);
+        return true;
+    }
+
+    /**
+     * Removes all the values associated with the provided {@code term}
+     * @param term {@link Term} whose values are to be removed
+     * @return The {@code List} of values that were removed
+     * @throws IOException If the update cannot be logged
+     */
+    public List<V> removeAll(Term term) throws IOException {
+        long sequence;
+        List<V> removed;
+        synchronized (this) {
+            if (!this.termMap.containsKeyTerm(term)) return this.termMap.removeAll(term);
+            this.append(REMOVE_ALL_TERM, term, null, null);
+            removed = this.termMap.removeAll(term);
+            sequence = this.appendedSequence;
+        }
+        this.afterAppend(sequence);
+        return removed;
+    }
+
+    /**
+     * Removes all the languages and values associated with the provided string term
+     * @param stringTerm Term string whose values are to be removed
+     * @return The removed languages and values, see {@link TermMap#removeAll(java.lang.String)}
+     * @throws IOException If the update cannot be logged
+     */
+    public Multimap<String,V> removeAll(String stringTerm) throws IOException {
+        long sequence;
+        Multimap<String,V> removed;
+        synchronized (this) {
+            if (!this.termMap.containsKeyTerm(stringTerm)) return this.termMap.removeAll(stringTerm);
+            this.append(REMOVE_ALL_STRING, null, stringTerm, null);
+            removed = this.termMap.removeAll(stringTerm);
+            sequence = this.appendedSequence;
+        }
+        this.afterAppend(sequence);
+        return removed;
+    }
+
+    /**
+     * Writes the pending updates to the log and forces them to disk
+     * @throws IOException If the log cannot be written
+     */
+    public void commit() throws IOException {
+        long sequence;
+        synchronized (this) {
+            sequence = this.appendedSequence;
+        }
+        this.syncTo(sequence);
+    }
+
+    /**
+     * Writes the whole map to a new snapshot file and restarts the log. The
+     * snapshot replaces the previous one atomically, so a crash during
+     * compaction leaves either the previous snapshot and log, or the new
+     * snapshot and an empty log. Updates are blocked during compaction.
+     * @throws IOException If the snapshot or the log cannot be written
+     */
+    public void compact() throws IOException {
+        synchronized (this.syncLock) {
+            synchronized (this) {
+                this.ensureOpen();
+                this.flush();
+                long nextGeneration = this.generation + 1;
+                File snapshot = new File(this.directory, SNAPSHOT_FILE);
+                File temporary = new File(this.directory, SNAPSHOT_FILE + ".tmp");
+                try (FileChannel channel = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                    writeHeader(channel, nextGeneration);
+                    BinaryIO.Output out = this.spare;
+                    try {
+                        // The term strings are read from the table rather than
+                        // from Term objects, which turn the null term into ""
+                        for (Map.Entry<String,Multimap<String,V>> entry: this.termMap.entries.entrySet()) {
+                            Iterator<Map.Entry<String,V>> pairs = entry.getValue().entryIterator();
+                            while (pairs.hasNext()) {
+                                Map.Entry<String,V> pair = pairs.next();
+                                this.record.reset();
+                                this.encodeTermPayload(PUT, entry.getKey(), pair.getKey(), pair.getValue(), this.recordOut);
+                                this.frame(this.record, out);
+                                if (out.size() >= this.batchSize) writeFully(channel, out);
+                            }
+                        }
+                        writeFully(channel, out);
+                    }
+                    finally {
+                        out.reset();
+                    }
+                    channel.force(true);
+                }
+                Files.move(temporary.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+                File previousLog = this.logFile(this.generation);
+                this.log.close();
+                this.openLog(nextGeneration);
+                Files.deleteIfExists(previousLog.toPath());
+            }
+        }
+    }
+
+    /**
+     * Writes the pending updates to disk and closes the log
+     * @throws IOException If the log cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this.syncLock) {
+            synchronized (this) {
+                if (this.closed) return;
+                try {
+                    this.flush();
+                }
+                finally {
+                    this.closed = true;
+                    this.log.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Encodes an update into the pending records
+     */
+    private void append(byte operation, Term term, String stringTerm, V value) throws IOException {
+        this.ensureOpen();
+        // The record is encoded separately first, so that a failing codec
+        // leaves neither the log nor the map changed
+        this.record.reset();
+        this.encodePayload(operation, term, stringTerm, value, this.recordOut);
+        this.frame(this.record, this.pending);
+        this.appendedSequence++;
+    }
+
+    /**
+     * Forces the update of the provided sequence number to disk if the sync
+     * mode requires it, and compacts the log if it is due
+     */
+    private void afterAppend(long sequence) throws IOException {
+        boolean sync;
+        synchronized (this) {
+            sync = this.syncMode == SyncMode.EVERY_OPERATION || this.pending.size() >= this.batchSize;
+        }
+        if (sync) this.syncTo(sequence);
+        boolean compact;
+        synchronized (this) {
+            compact = !this.closed && this.logSize >= this.compactionSize;
+        }
+        if (compact) this.compact();
+    }
+
+    /**
+     * Writes and forces to disk the updates up to the provided sequence number,
+     * together with any other pending update
+     */
+    private void syncTo(long sequence) throws IOException {
+        synchronized (this.syncLock) {
+            // Another thread may have written this update while we were waiting
+            if (this.durableSequence >= sequence) return;
+            BinaryIO.Output batch;
+            long last;
+            synchronized (this) {
+                this.ensureOpen();
+                batch = this.pending;
+                this.pending = this.spare;
+                last = this.appendedSequence;
+            }
+            boolean written = false;
+            try {
+                this.writeBatch(batch);
+                this.durableSequence = last;
+                written = true;
+            }
+            finally {
+                if (written) this.spare = batch;
+                else {
+                    // Keep the batch ahead of the records appended meanwhile,
+                    // so that it is written again by the next attempt
+                    synchronized (this) {
+                        batch.write(this.pending.array(), 0, this.pending.size());
+                        this.pending.reset();
+                        this.spare = this.pending;
+                        this.pending = batch;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the pending updates; the caller holds both locks
+     */
+    private void flush() throws IOException {
+        if (this.pending.size() > 0) this.writeBatch(this.pending);
+        this.durableSequence = this.appendedSequence;
+    }
+
+    /**
+     * Appends a batch of records to the log, forces it to disk and empties the
+     * batch. If this fails, the log is truncated back to its previous end, so
+     * that no torn record is followed by the records written later, and the
+     * batch is left unchanged. If the truncation fails as well, the map is
+     * marked as failed and rejects further updates.
+     */
+    private void writeBatch(BinaryIO.Output batch) throws IOException {
+        long end = this.log.position();
+        ByteBuffer buffer = batch.asByteBuffer();
+        try {
+            while (buffer.hasRemaining()) this.log.write(buffer);
+            this.log.force(false);
+        }
+        catch (IOException e) {
+            try {
+                this.log.truncate(end);
+                this.log.position(end);
+            }
+            catch (IOException f) {
+                e.addSuppressed(f);
+                this.failure = e;
+            }
+            throw e;
+        }
+        this.logSize += batch.size();
+        batch.reset();
+    }
+
+    private void ensureOpen() throws IOException {
+        if (this.closed) throw new IOException("Durable term map is closed");
+        if (this.failure != null) throw new IOException("Durable term map failed to write its log", this.failure);
+    }
+
+    // Record format: payload length (int), CRC-32 of the payload (int), payload.
+    // Payload: operation (byte), then the term string and language for term
+    // operations, or the term string for REMOVE_ALL_STRING, then the value for
+    // PUT, PUT_ONLY and REMOVE. A null term is written with a null term string.
+
+    private void encodePayload(byte operation, Term term, String stringTerm, V value, DataOutputStream out) throws IOException {
+        if (operation == REMOVE_ALL_STRING) {
+            out.writeByte(operation);
+            BinaryIO.writeString(out, stringTerm);
+            out.flush();
+        }
+        else this.encodeTermPayload(operation, (term != null) ? term.getString() : null, (term != null) ? term.getLanguage() : null, value, out);
+    }
+
+    private void encodeTermPayload(byte operation, String termString, String lang, V value, DataOutputStream out) throws IOException {
+        out.writeByte(operation);
+        BinaryIO.writeString(out, termString);
+        BinaryIO.writeString(out, lang);
+        if (operation == PUT || operation == PUT_ONLY || operation == REMOVE) this.codec.write(value, out);
+        out.flush();
+    }
+
+    /**
+     * Appends a record made of the provided payload to {@code target}
+     */
+    private void frame(BinaryIO.Output payload, BinaryIO.Output target) {
+        this.crc.reset();
+        this.crc.update(payload.array(), 0, payload.size());
+        writeInt(target, payload.size());
+        writeInt(target, (int) this.crc.getValue());
+        target.write(payload.array(), 0, payload.size());
+    }
+
+    /**
+     * Applies a logged update to the in-memory map
+     */
+    private void apply(DataInputStream in) throws IOException {
+        byte operation = in.readByte();
+        if (operation == REMOVE_ALL_STRING) {
+            this.termMap.removeAll(BinaryIO.readString(in));
+            return;
+        }
+        String termString = BinaryIO.readString(in);
+        String lang = BinaryIO.readString(in);
+        Term term = (termString != null) ? new Term(termString, lang) : null;
+        switch (operation) {
+            case PUT:
+                this.termMap.put(term, this.codec.read(in));
+                break;
+            case PUT_ONLY:
+                this.termMap.putOnly(term, this.codec.read(in));
+                break;
+            case REMOVE:
+                this.termMap.remove(term, this.codec.read(in));
+                break;
+            case REMOVE_ALL_TERM:
+                this.termMap.removeAll(term);
+                break;
+            default:
+                throw new IOException("Unknown log operation: " + operation);
+        }
+    }
+
+    /**
+     * Rebuilds the map from the snapshot and the log of its generation, and
+     * opens the log for appending. A torn record at the end of the log is
+     * discarded.
+     */
+    private void recover() throws IOException {
+        long snapshotGeneration = 0;
+        File snapshot = new File(this.directory, SNAPSHOT_FILE);
+        if (snapshot.isFile()) {
+            try (FileChannel channel = FileChannel.open(snapshot.toPath(), StandardOpenOption.READ)) {
+                snapshotGeneration = readHeader(channel, snapshot);
+                if (this.replay(channel, HEADER_SIZE) != channel.size()) throw new IOException("Corrupted snapshot: " + snapshot);
+            }
+        }
+        Files.deleteIfExists(new File(this.directory, SNAPSHOT_FILE + ".tmp").toPath());
+
+        // Logs of other generations were compacted into the snapshot
+        File logFile = this.logFile(snapshotGeneration);
+        File[] files = this.directory.listFiles();
+        if (files != null) {
+            for (File file: files) {
+                String name = file.getName();
+                if (name.startsWith(LOG_PREFIX) && name.endsWith(LOG_SUFFIX) && !name.equals(logFile.getName())) {
+                    Files.deleteIfExists(file.toPath());
+                }
+            }
+        }
+
+        if (logFile.isFile() && logFile.length() >= HEADER_SIZE) {
+            FileChannel channel = this.openLogChannel(logFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                if (readHeader(channel, logFile) != snapshotGeneration) throw new IOException("Log does not match snapshot: " + logFile);
+                long end = this.replay(channel, HEADER_SIZE);
+                channel.truncate(end);
+                channel.position(end);
+                this.log = channel;
+                this.generation = snapshotGeneration;
+                this.logSize = end - HEADER_SIZE;
+            }
+            catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+        else this.openLog(snapshotGeneration);
+    }
+
+    /**
+     * Applies the records of a file from the provided position
+     * @return Position following the last valid record
+     */
+    private long replay(FileChannel channel, long start) throws IOException {
+        channel.position(start);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+        BinaryIO.Input payloadInput = new BinaryIO.Input();
+        DataInputStream payloadData = new DataInputStream(payloadInput);
+        byte[] payload = new byte[256];
+        long size = channel.size();
+        long position = start;
+        while (true) {
+            int length;
+            int checksum;
+            try {
+                length = in.readInt();
+                checksum = in.readInt();
+                if (length < 0 || length > size - position - 8) break;
+                if (payload.length < length) payload = new byte[Math.max(length, 2 * payload.length)];
+                in.readFully(payload, 0, length);
+            }
+            catch (EOFException e) {
+                break;
+            }
+            this.crc.reset();
+            this.crc.update(payload, 0, length);
+            if ((int) this.crc.getValue() != checksum) break;
+            payloadInput.reset(payload, 0, length);
+            this.apply(payloadData);
+            position += 8 + length;
+        }
+        return position;
+    }
+
+    /**
+     * Creates an empty log of the provided generation
+     */
+    private void openLog(long logGeneration) throws IOException {
+        FileChannel channel = this.openLogChannel(this.logFile(logGeneration), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            writeHeader(channel, logGeneration);
+            channel.force(true);
+        }
+        catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        this.log = channel;
+        this.generation = logGeneration;
+        this.logSize = 0;
+    }
+
+    /**
+     * Opens a channel on a log file. Tests override this to inject I/O errors.
+     */
+    FileChannel openLogChannel(File file, OpenOption... options) throws IOException {
+        return FileChannel.open(file.toPath(), options);
+    }
+
+    private File logFile(long logGeneration) {
+        return new File(this.directory, LOG_PREFIX + logGeneration + LOG_SUFFIX);
+    }
+
+    private static void writeHeader(FileChannel channel, long generation) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(generation).flip();
+        while (header.hasRemaining()) channel.write(header);
+    }
+
+    private static long readHeader(FileChannel channel, File file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) throw new IOException("Truncated header: " + file);
+        }
+        header.flip();
+        if (header.getInt() != MAGIC) throw new IOException("Not a term map file: " + file);
+        int version = header.getInt();
+        if (version != FORMAT_VERSION) throw new IOException("Unsupported format version " + version + ": " + file);
+        return header.getLong();
+    }
+
+    /**
+     * Writes the content of a buffer to a channel and empties the buffer
+     */
+    private static void writeFully(FileChannel channel, BinaryIO.Output out) throws IOException {
+        ByteBuffer buffer = out.asByteBuffer();
+        while (buffer.hasRemaining()) channel.write(buffer);
+        out.reset();
+    }
+
+    private static void writeInt(BinaryIO.Output out, int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+}
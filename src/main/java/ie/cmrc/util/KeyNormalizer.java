@@ -0,0 +1,39 @@
+/*
+ * Copyright 2015 Coastal and Marine Research Centre (CMRC), Beaufort,
+ * Environmental Research Institute (ERI), University College Cork (UCC).
+ * Yassine Lassoued <y.lassoued@gmail.com, y.lassoued@ucc.ie>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.cmrc.util;
+
+/**
+ * Maps term strings to the form under which they are indexed, so that terms
+ * differing only by, e.g., case or accents are looked up as the same key.
+ * Standard normalizers are provided by {@link StringFolding}.
+ *
+ * <p>Implementations must be idempotent ({@code normalize(normalize(s))}
+ * must equal {@code normalize(s)}) and thread-safe.
+ *
+ * @author Yassine Lassoued
+ */
+public interface KeyNormalizer {
+
+    /**
+     * Normalizes the provided string
+     * @param string String to normalize. This is never {@code null}.
+     * @return Normalized form of {@code string}. This must not be {@code null}.
+     */
+    String normalize(String string);
+}
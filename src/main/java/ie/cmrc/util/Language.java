@@ -167,6 +167,17 @@ public enum Language {
      * ISO two-letter code of the language
      */
     private final String twoLetterCode;
+
+    /**
+     * Languages indexed by their two-letter code, see {@link #codeIndex(java.lang.String)}
+     */
+    private static final Language[] BY_CODE = new Language[26 * 26];
+
+    static {
+        for (Language language: Language.values()) {
+            BY_CODE[codeIndex(language.twoLetterCode)] = language;
+        }
+    }
     
     /**
      * Constructs a language provided its two letter code
@@ -211,12 +222,35 @@ public enum Language {
      * possible, otherwise {@code null}
      */
     public static Language fromString(String twoLetterLanguageCode) {
-        if (twoLetterLanguageCode != null) {
-            for (Language language: Language.values()) {
-                if (twoLetterLanguageCode.equals(language.twoLetterCode)) return language;
-            }
-        }
-        return null;
+        int index = codeIndex(twoLetterLanguageCode);
+        if (index >= 0) return BY_CODE[index];
+        else return null;
+    }
+
+    /**
+     * Returns the canonical instance of the provided language code, so that
+     * equal codes of known languages may be compared by reference
+     * @param languageCode Language code, may be {@code null}
+     * @return The two-letter code string held by the matching {@code Language}
+     * if any, otherwise {@code languageCode} itself
+     */
+    static String canonicalCode(String languageCode) {
+        Language language = fromString(languageCode);
+        if (language != null) return language.twoLetterCode;
+        else return languageCode;
+    }
+
+    /**
+     * Maps a code made of two lower case letters to an index in {@link #BY_CODE}
+     * @param code Code to map
+     * @return Index of the code, or -1 if it is not made of two lower case letters
+     */
+    private static int codeIndex(String code) {
+        if (code == null || code.length() != 2) return -1;
+        int first = code.charAt(0) - 'a';
+        int second = code.charAt(1) - 'a';
+        if (first < 0 || first >= 26 || second < 0 || second >= 26) return -1;
+        return first * 26 + second;
     }
 
 }
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2015 Coastal and Marine Research Centre (CMRC), Beaufort,
+ * Environmental Research Institute (ERI), University College Cork (UCC).
+ * Yassine Lassoued <y.lassoued@gmail.com, y.lassoued@ucc.ie>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.cmrc.util;
+
+import java.util.Arrays;
+
+/**
+ * An ordered list of preferred languages, used to pick the best available
+ * translation of a term in a {@link TermMap} (see
+ * {@link TermMap#getPreferredValue(java.lang.String, ie.cmrc.util.LanguagePreference)}).
+ * For example, the preference {@code ga, en} with fallback to any language
+ * selects the Irish value of a term if any, else the English value, else a
+ * value in any other language.
+ *
+ * <p>Language codes are canonicalised when the preference is constructed, so
+ * a preference is best built once and reused across lookups. Instances are
+ * immutable and thread-safe.
+ *
+ * @author Yassine Lassoued
+ */
+public final class LanguagePreference {
+
+    /**
+     * Rank of the languages accepted through the fallback to any language
+     */
+    static final int ANY_LANGUAGE_RANK = Integer.MAX_VALUE;
+
+    /**
+     * Canonical preferred languages, most preferred first
+     */
+    private final String[] languages;
+
+    /**
+     * Whether a value in any language is acceptable when none of the
+     * preferred languages is available
+     */
+    private final boolean fallbackToAnyLanguage;
+
+    /**
+     * Constructs a preference accepting only the provided languages
+     * @param languages Preferred languages, most preferred first. A
+     * {@code null} language designates terms that have no language.
+     */
+    public LanguagePreference(String... languages) {
+        this(false, languages);
+    }
+
+    /**
+     * Constructs a preference for the provided languages
+     * @param fallbackToAnyLanguage If {@code true} then a value in any
+     * language is accepted when none of the preferred languages is available
+     * @param languages Preferred languages, most preferred first. A
+     * {@code null} language designates terms that have no language.
+     */
+    public LanguagePreference(boolean fallbackToAnyLanguage, String... languages) {
+        this.fallbackToAnyLanguage = fallbackToAnyLanguage;
+        if (languages == null) this.languages = new String[0];
+        else {
+            this.languages = new String[languages.length];
+            for (int i=0; i<languages.length; i++) this.languages[i] = Language.canonicalCode(languages[i]);
+        }
+    }
+
+    /**
+     * Returns the preferred languages
+     * @return Copy of the preferred languages, most preferred first
+     */
+    public String[] getLanguages() {
+        return Arrays.copyOf(this.languages, this.languages.length);
+    }
+
+    /**
+     * Indicates whether a value in any language is accepted when none of the
+     * preferred languages is available
+     * @return {@code true} if the preference falls back to any language
+     */
+    public boolean fallsBackToAnyLanguage() {
+        return this.fallbackToAnyLanguage;
+    }
+
+    /**
+     * Returns the rank of a language in this preference
+     * @param language Language code, as stored in a {@link Term}
+     * @return Index of {@code language} in the preferred languages (0 being
+     * the most preferred), {@link #ANY_LANGUAGE_RANK} if the language is not
+     * listed but any language is accepted, or -1 if the language is not accepted
+     */
+    int rank(String language) {
+        // Term languages and preferred languages are both canonical, so known
+        // languages are usually matched by reference
+        for (int i=0; i<this.languages.length; i++) {
+            if (this.languages[i] == language) return i;
+        }
+        if (language != null) {
+            for (int i=0; i<this.languages.length; i++) {
+                if (language.equals(this.languages[i])) return i;
+            }
+        }
+        return this.fallbackToAnyLanguage ? ANY_LANGUAGE_RANK : -1;
+    }
+
+    /**
+     * Returns the number of preferred languages
+     * @return Number of preferred languages
+     */
+    int size() {
+        return this.languages.length;
+    }
+
+    /**
+     * Returns the preferred language of the provided rank
+     * @param rank Rank, in {@code [0, size())}
+     * @return Canonical language code
+     */
+    String get(int rank) {
+        return this.languages[rank];
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(this.languages) + (this.fallbackToAnyLanguage ? "+any" : "");
+    }
+}
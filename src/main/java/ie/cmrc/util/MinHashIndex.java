@@ -0,0 +1,330 @@
+/*
+ * Copyright 2015 Coastal and Marine Research Centre (CMRC), Beaufort,
+ * Environmental Research Institute (ERI), University College Cork (UCC).
+ * Yassine Lassoued <y.lassoued@gmail.com, y.lassoued@ucc.ie>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.cmrc.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Approximate similarity index of terms, finding the indexed terms whose
+ * similarity with a query term (as computed by
+ * {@link StringMatcher#compareStrings(java.lang.String, java.lang.String)})
+ * reaches a threshold without comparing the query with every indexed term.
+ *
+ * <p>Each term string is represented by the multiset of letter pairs used by
+ * {@code compareStrings}, repeated pairs being numbered so that the multiset
+ * becomes a set. The Dice coefficient {@code d} computed by
+ * {@code compareStrings} and the Jaccard similarity {@code j} of these sets
+ * are then related by {@code d = 2j/(1+j)}. Each set is summarised by a
+ * MinHash signature of {@code bands * rows} values, two terms agreeing on each
+ * value with probability {@code j}. Signatures are split into {@code bands}
+ * bands of {@code rows} values, and two terms become candidates as soon as
+ * they agree on a whole band, which happens with probability
+ * {@code 1 - (1 - j^rows)^bands} (see {@link #candidateProbability(double)}).
+ * Candidates are rescored with the exact Dice coefficient, so the index
+ * never returns false matches, but may miss some matches. More bands
+ * increase recall, at the cost of memory and more candidates to rescore;
+ * more rows per band reduce the candidates, at the cost of recall.
+ * {@link #recall(java.util.Collection, double)} measures the recall obtained
+ * on a sample of queries.
+ *
+ * <p>Only terms of the same language are compared. Terms whose string has no
+ * letter pairs (e.g., single characters) are not indexed. An index is built
+ * by one thread; once built it may be searched by several threads.
+ *
+ * @author Yassine Lassoued
+ */
+public class MinHashIndex {
+
+    /**
+     * Default number of bands and rows per band: pairs of terms with a Dice
+     * coefficient of 0.8 become candidates with a probability of about 94%,
+     * and above 99.9% for a Dice coefficient of 0.9
+     */
+    public static final int DEFAULT_BANDS = 20;
+    public static final int DEFAULT_ROWS = 5;
+
+    private final int bands;
+    private final int rows;
+
+    /**
+     * Multipliers and increments of the MinHash functions
+     */
+    private final long[] multipliers;
+    private final long[] increments;
+
+    /**
+     * Indexed terms of each language
+     */
+    private final HashMap<String, Partition> partitions = new HashMap<>();
+
+    /**
+     * Constructs an empty index with {@link #DEFAULT_BANDS} bands of
+     * {@link #DEFAULT_ROWS} rows
+     */
+    public MinHashIndex() {
+        this(DEFAULT_BANDS, DEFAULT_ROWS, 0L);
+    }
+
+    /**
+     * Constructs an empty index
+     * @param bands Number of bands of the signatures
+     * @param rows Number of MinHash values per band
+     * @param seed Seed of the MinHash functions
+     */
+    public MinHashIndex(int bands, int rows, long seed) {
+        if (bands < 1) throw new IllegalArgumentException("Number of bands must be positive: " + bands);
+        if (rows < 1) throw new IllegalArgumentException("Number of rows must be positive: " + rows);
+        this.bands = bands;
+        this.rows = rows;
+        Random random = new Random(seed);
+        this.multipliers = new long[bands * rows];
+        this.increments = new long[bands * rows];
+        for (int i=0; i<this.multipliers.length; i++) {
+            this.multipliers[i] = random.nextLong() | 1L;
+            this.increments[i] = random.nextLong();
+        }
+    }
+
+    /**
+     * Returns the probability that two term strings with the provided Dice
+     * coefficient become candidates of each other
+     * @param dice Dice coefficient, as computed by
+     * {@link StringMatcher#compareStrings(java.lang.String, java.lang.String)}
+     * @return Probability in the range [0,1]
+     */
+    public double candidateProbability(double dice) {
+        double jaccard = dice / (2 - dice);
+        return 1 - Math.pow(1 - Math.pow(jaccard, this.rows), this.bands);
+    }
+
+    /**
+     * Adds a term to the index
+     * @param term Term to index
+     * @return {@code true} if the term was added, {@code false} if it was
+     * already indexed or has no letter pairs
+     */
+    public boolean add(Term term) {
+        if (term == null) return false;
+        Partition partition = this.partitions.get(term.getLanguage());
+        if (partition == null) {
+            partition = new Partition();
+            this.partitions.put(term.getLanguage(), partition);
+        }
+        return partition.add(term);
+    }
+
+    /**
+     * Adds the key terms of a {@link TermMap} to the index
+     * @param termMap Map whose key terms are to be indexed
+     */
+    public void addAll(TermMap<?> termMap) {
+        for (Term term: termMap.getKeyTerms()) this.add(term);
+    }
+
+    /**
+     * Returns the number of indexed terms
+     * @return Number of indexed terms
+     */
+    public int size() {
+        int size = 0;
+        for (Partition partition: this.partitions.values()) size += partition.terms.size();
+        return size;
+    }
+
+    /**
+     * Finds the indexed terms, in the language of {@code query}, whose
+     * similarity with {@code query} is at least {@code threshold}
+     * @param query Query term
+     * @param threshold Similarity threshold, greater than 0
+     * @param handler Handler receiving each match, {@code query} being passed
+     * as its first term
+     * @return Number of matches
+     */
+    public int search(Term query, double threshold, TermMapJoin.MatchHandler handler) {
+        if (query == null) return 0;
+        Partition partition = this.partitions.get(query.getLanguage());
+        if (partition == null) return 0;
+        int[] pairs = sortedPairs(query.getString());
+        if (pairs.length == 0) return 0;
+        int matches = 0;
+        Set<Integer> seen = new HashSet<>();
+        long[] signature = this.signature(pairs);
+        for (int band=0; band<this.bands; band++) {
+            int[] ids = partition.buckets.get(this.bandKey(signature, band));
+            if (ids == null) continue;
+            // The first element of a bucket is its number of terms
+            for (int k=1; k<=ids[0]; k++) {
+                int id = ids[k];
+                if (!seen.add(id)) continue;
+                double score = dice(pairs, partition.pairs.get(id));
+                if (score >= threshold) {
+                    handler.match(query, partition.terms.get(id), score);
+                    matches++;
+                }
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Finds the indexed terms, in the language of {@code query}, whose
+     * similarity with {@code query} is at least {@code threshold}
+     * @param query Query term
+     * @param threshold Similarity threshold, greater than 0
+     * @return Matching terms, in no particular order. This is never {@code null}.
+     */
+    public List<Term> search(Term query, double threshold) {
+        final List<Term> result = new ArrayList<>();
+        this.search(query, threshold, new TermMapJoin.MatchHandler() {
+            @Override
+            public void match(Term termA, Term termB, double score) {
+                result.add(termB);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Measures the recall of the index on the provided queries, i.e., the
+     * ratio of the exact matches that are found by {@link #search}. Exact
+     * matches are found by comparing each query with every indexed term of
+     * its language, so this is meant to be run on a sample of queries.
+     * @param queries Sample of query terms
+     * @param threshold Similarity threshold, greater than 0
+     * @return Recall in the range [0,1]. If there are no exact matches then 1 is returned.
+     */
+    public double recall(Collection<Term> queries, double threshold) {
+        long exact = 0;
+        long found = 0;
+        for (Term query: queries) {
+            if (query == null) continue;
+            Partition partition = this.partitions.get(query.getLanguage());
+            if (partition == null) continue;
+            int[] pairs = sortedPairs(query.getString());
+            if (pairs.length == 0) continue;
+            for (int id=0; id<partition.terms.size(); id++) {
+                if (dice(pairs, partition.pairs.get(id)) >= threshold) exact++;
+            }
+            found += this.search(query, threshold, new TermMapJoin.MatchHandler() {
+                @Override
+                public void match(Term termA, Term termB, double score) {
+                }
+            });
+        }
+        if (exact == 0) return 1.0;
+        else return (double) found / exact;
+    }
+
+    /**
+     * Computes the MinHash signature of a set of letter pairs
+     */
+    private long[] signature(int[] sortedPairs) {
+        long[] signature = new long[this.multipliers.length];
+        Arrays.fill(signature, Long.MAX_VALUE);
+        int occurrence = 0;
+        for (int i=0; i<sortedPairs.length; i++) {
+            occurrence = (i > 0 && sortedPairs[i] == sortedPairs[i - 1]) ? occurrence + 1 : 0;
+            long token = mix(((long) sortedPairs[i] << 32) | occurrence);
+            for (int h=0; h<signature.length; h++) {
+                long value = (token * this.multipliers[h] + this.increments[h]) >>> 1;
+                if (value < signature[h]) signature[h] = value;
+            }
+        }
+        return signature;
+    }
+
+    /**
+     * Hashes the values of a band of a signature, together with the band number
+     */
+    private long bandKey(long[] signature, int band) {
+        long key = band;
+        for (int h=band * this.rows; h<(band + 1) * this.rows; h++) key = mix(key * 31 + signature[h]);
+        return key;
+    }
+
+    /**
+     * Finalisation step of the SplitMix64 generator, spreading the bits of a value
+     */
+    private static long mix(long x) {
+        x = (x ^ (x >>> 30)) * 0xbf58476d1ce4e5b9L;
+        x = (x ^ (x >>> 27)) * 0x94d049bb133111ebL;
+        return x ^ (x >>> 31);
+    }
+
+    private static int[] sortedPairs(String string) {
+        int[] pairs = StringMatcher.letterPairCodes(string);
+        Arrays.sort(pairs);
+        return pairs;
+    }
+
+    /**
+     * Dice coefficient of two sorted arrays of letter pairs, computed as by
+     * {@link StringMatcher#compareStrings(java.lang.String, java.lang.String)}
+     */
+    private static double dice(int[] pairs1, int[] pairs2) {
+        return (2.0*StringMatcher.intersectionSize(pairs1, pairs2))/(pairs1.length + pairs2.length);
+    }
+
+    /**
+     * Indexed terms of one language
+     */
+    private final class Partition {
+
+        private final List<Term> terms = new ArrayList<>();
+
+        /**
+         * Sorted letter pairs of each term, used to rescore candidates
+         */
+        private final List<int[]> pairs = new ArrayList<>();
+
+        private final HashMap<String, Integer> ids = new HashMap<>();
+
+        /**
+         * Identifiers of the terms of each band key, preceded by their number
+         */
+        private final HashMap<Long, int[]> buckets = new HashMap<>();
+
+        boolean add(Term term) {
+            if (this.ids.containsKey(term.getString())) return false;
+            int[] termPairs = sortedPairs(term.getString());
+            if (termPairs.length == 0) return false;
+            int id = this.terms.size();
+            this.terms.add(term);
+            this.pairs.add(termPairs);
+            this.ids.put(term.getString(), id);
+            long[] signature = signature(termPairs);
+            for (int band=0; band<bands; band++) {
+                Long key = bandKey(signature, band);
+                int[] bucket = this.buckets.get(key);
+                if (bucket == null) bucket = new int[2];
+                else if (bucket[0] + 1 == bucket.length) bucket = Arrays.copyOf(bucket, 2 * bucket.length);
+                bucket[++bucket[0]] = id;
+                this.buckets.put(key, bucket);
+            }
+            return true;
+        }
+    }
+}
@@ -18,15 +18,25 @@
 
 package ie.cmrc.util;
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 /**
- * A multimap is a map where 0 or many values may be associated with a key
+ * A multimap is a map where 0 or many values may be associated with a key.
+ *
+ * <p>The values of a key are kept in a list, in insertion order. Once a key
+ * has more values than the {@linkplain #setValueIndexThreshold(int) value
+ * index threshold}, the occurrences of its values are also counted in a hash
+ * table, so that {@link #containsEntry}, {@link #putIfAbsent} and
+ * {@link #remove} no longer scan its whole list.
  * @author Yassine Lassoued
  * @param <K> Type for the keys maintained by this multimap
  * @param <V> Type of the mapped values
@@ -39,11 +49,254 @@ public class Multimap<K,V> {
      */
     HashMap<K,List<V>> entries;
     
+    /**
+     * Values of the {@code null} key (e.g., the values of the untagged terms
+     * of a {@link TermMap}). This mirrors the {@code null} entry of
+     * {@link #entries} so that the {@code null} key is looked up without going
+     * through the hash table.
+     */
+    private List<V> nullKeyValues;
+    
+    /**
+     * Whether {@link #entries} was handed out by {@link #asMap()}, in which
+     * case it may be modified directly and {@link #nullKeyValues} is not used
+     */
+    private boolean mapExposed;
+    
+    /**
+     * View returned by {@link #keySet()}, created on first use
+     */
+    private Set<K> keySetView;
+    
+    /**
+     * Usage metrics, {@code null} unless {@link #enableMetrics()} was called
+     */
+    CollectionMetrics metrics;
+    
+    /**
+     * Keys of each value, {@code null} unless {@link #enableReverseIndex()} was called
+     */
+    private ReverseIndex<K,V> reverseIndex;
+    
+    /**
+     * Default number of values above which the values of a key are indexed
+     */
+    public static final int DEFAULT_VALUE_INDEX_THRESHOLD = 32;
+    
+    /**
+     * Number of values above which the values of a key are indexed
+     */
+    private int valueIndexThreshold = DEFAULT_VALUE_INDEX_THRESHOLD;
+    
+    /**
+     * Number of occurrences of each value of the keys having more than
+     * {@link #valueIndexThreshold} values. This is {@code null} until a key
+     * reaches the threshold, and is not used while {@link #mapExposed} is set
+     * since the lists may then be modified directly.
+     */
+    private HashMap<K, HashMap<V,Integer>> valueIndexes;
+    
+    /**
+     * Capacity with which {@link #entries} was last created, the baseline of
+     * the resize estimate of the metrics
+     */
+    private int tableCapacity;
+    
+    /**
+     * Initial capacity of the value lists, 0 for the {@code ArrayList} default
+     */
+    private final int valuesCapacity;
+    
     /**
      * Constructs an empty multimap
      */
     public Multimap() {
+        this(0);
+    }
+    
+    /**
+     * Constructs an empty multimap with a key table of the default size, and
+     * value lists sized for the expected number of values per key
+     * @param expectedValuesPerKey Expected number of values per key, 0 for
+     * the {@code ArrayList} default
+     */
+    Multimap(int expectedValuesPerKey) {
         this.entries = new HashMap<>();
+        this.tableCapacity = 16;
+        this.valuesCapacity = expectedValuesPerKey;
+    }
+    
+    /**
+     * Constructs an empty multimap sized for the expected number of keys and
+     * values per key, so that loading it does not trigger repeated rehashing
+     * of the keys or growth of the value lists
+     * @param expectedKeys Expected number of distinct keys
+     * @param expectedValuesPerKey Expected number of values per key
+     */
+    public Multimap(int expectedKeys, int expectedValuesPerKey) {
+        if (expectedKeys < 0) throw new IllegalArgumentException("Expected number of keys must not be negative: " + expectedKeys);
+        if (expectedValuesPerKey < 0) throw new IllegalArgumentException("Expected number of values per key must not be negative: " + expectedValuesPerKey);
+        this.tableCapacity = capacityFor(expectedKeys);
+        this.entries = new HashMap<>(this.tableCapacity);
+        this.valuesCapacity = expectedValuesPerKey;
+    }
+    
+    /**
+     * Returns the {@code HashMap} capacity needed to hold the provided number
+     * of keys without being resized
+     * @param expectedSize Expected number of keys
+     * @return Capacity to pass to the {@code HashMap} constructor
+     */
+    static int capacityFor(int expectedSize) {
+        if (expectedSize < 3) return expectedSize + 1;
+        else if (expectedSize < (1 << 30)) return (int) (expectedSize / 0.75f + 1.0f);
+        else return Integer.MAX_VALUE;
+    }
+    
+    /**
+     * Creates an empty list of values for a new key
+     */
+    private List<V> newValueList() {
+        if (this.valuesCapacity > 0) return new ArrayList<>(this.valuesCapacity);
+        else return new ArrayList<>();
+    }
+    
+    /**
+     * Returns the list of values associated with a key
+     * @param key Key, may be {@code null}
+     * @return The live list of values of {@code key}, or {@code null} if the key is absent
+     */
+    List<V> valuesOf(Object key) {
+        if (key == null && !this.mapExposed) return this.nullKeyValues;
+        else return this.entries.get(key);
+    }
+    
+    /**
+     * Returns the list of values associated with a key, adding the key with
+     * an empty list if it is absent
+     */
+    private List<V> valuesForUpdate(K key) {
+        List<V> values = this.valuesOf(key);
+        if (values == null) {
+            values = this.newValueList();
+            this.entries.put(key, values);
+            if (key == null) this.nullKeyValues = values;
+        }
+        return values;
+    }
+    
+    /**
+     * Associates an absent key with a non-empty list of values, which this
+     * multimap takes ownership of. This is used to fill a multimap being
+     * decoded without copying the value lists.
+     */
+    void putValueList(K key, List<V> values) {
+        this.entries.put(key, values);
+        if (key == null) this.nullKeyValues = values;
+        if (values.size() > this.valueIndexThreshold && !this.mapExposed) this.indexValues(key, values);
+        if (this.reverseIndex != null) this.reverseIndex.addAll(values, key);
+    }
+    
+    /**
+     * Returns the occurrence counts of the values of a key
+     * @return Live index of the values of {@code key}, or {@code null} if the
+     * key is absent or its values are not indexed
+     */
+    private HashMap<V,Integer> valueIndex(Object key) {
+        if (this.valueIndexes == null || this.mapExposed) return null;
+        else return this.valueIndexes.get(key);
+    }
+    
+    /**
+     * Counts a value added to the list of a key, and indexes the list if it
+     * has just grown over the threshold
+     */
+    private void valueAdded(K key, List<V> values, V value) {
+        HashMap<V,Integer> index = this.valueIndex(key);
+        if (index != null) increment(index, value);
+        else if (values.size() > this.valueIndexThreshold && !this.mapExposed) this.indexValues(key, values);
+    }
+    
+    /**
+     * Counts values added to the list of a key, and indexes the list if it has
+     * just grown over the threshold
+     */
+    private void valuesAdded(K key, List<V> values, Collection<? extends V> added) {
+        HashMap<V,Integer> index = this.valueIndex(key);
+        if (index != null) {
+            for (V value: added) increment(index, value);
+        }
+        else if (values.size() > this.valueIndexThreshold && !this.mapExposed) this.indexValues(key, values);
+    }
+    
+    /**
+     * Discounts a value removed from the list of a key, and drops the index of
+     * the list once it has shrunk well below the threshold
+     */
+    private void valueRemoved(K key, List<V> values, V value) {
+        HashMap<V,Integer> index = this.valueIndex(key);
+        if (index != null) {
+            if (values.size() <= this.valueIndexThreshold / 2) this.valueIndexes.remove(key);
+            else {
+                Integer count = index.get(value);
+                if (count.intValue() == 1) index.remove(value);
+                else index.put(value, count - 1);
+            }
+        }
+    }
+    
+    private void indexValues(K key, List<V> values) {
+        HashMap<V,Integer> index = new HashMap<>(capacityFor(values.size()));
+        for (V value: values) increment(index, value);
+        if (this.valueIndexes == null) this.valueIndexes = new HashMap<>();
+        this.valueIndexes.put(key, index);
+    }
+    
+    private static <V> void increment(HashMap<V,Integer> index, V value) {
+        Integer count = index.get(value);
+        index.put(value, count == null ? 1 : count + 1);
+    }
+    
+    /**
+     * Rebuilds the value indexes of all the keys having more values than the
+     * threshold
+     */
+    private void rebuildValueIndexes() {
+        this.valueIndexes = null;
+        for (Map.Entry<K,List<V>> entry: this.entries.entrySet()) {
+            List<V> values = entry.getValue();
+            if (values != null && values.size() > this.valueIndexThreshold) this.indexValues(entry.getKey(), values);
+        }
+    }
+    
+    /**
+     * Checks whether a key is present
+     */
+    private boolean hasKey(K key) {
+        if (key == null && !this.mapExposed) return this.nullKeyValues != null;
+        else return this.entries.containsKey(key);
+    }
+    
+    /**
+     * Removes a key and its values
+     * @return The removed values, or {@code null} if the key was absent
+     */
+    private List<V> removeKey(K key) {
+        List<V> removed = this.entries.remove(key);
+        if (removed != null) this.keyRemoved(key, removed);
+        return removed;
+    }
+    
+    /**
+     * Updates the state derived from {@link #entries} once a key has been
+     * removed from it, by this class or through {@link #keySet()}
+     * @param key Removed key
+     * @param values Values the key had
+     */
+    private void keyRemoved(K key, List<V> values) {
+        if (key == null) this.nullKeyValues = null;
+        if (this.valueIndexes != null) this.valueIndexes.remove(key);
+        if (this.reverseIndex != null) this.reverseIndex.removeAll(values, key);
     }
     
     /**
@@ -84,12 +337,18 @@ public class Multimap<K,V> {
      * with the key {@code key}.
      */
     public boolean containsKey(K key) {
-        return this.entries.containsKey(key);
+        if (this.metrics == null) return this.hasKey(key);
+        long start = System.nanoTime();
+        boolean found = this.hasKey(key);
+        this.metrics.recordLookup(found, System.nanoTime() - start);
+        return found;
     }
 
     /**
      * Checks whether the multimap contains at least one  key-value pair
-     * with the value {@code value}.
+     * with the value {@code value}. This takes constant time if the
+     * {@linkplain #enableReverseIndex() reverse index} is enabled, and scans
+     * all the values otherwise.
      * 
      * @param value Value to search in the multimap
      * 
@@ -97,6 +356,7 @@ public class Multimap<K,V> {
      * with the value {@code value}.
      */
     public boolean containsValue(V value) {
+        if (this.reverseIndex != null && !this.mapExposed) return this.reverseIndex.contains(value);
         for (List<V> values: this.entries.values()) {
             if (values != null && values.contains(value)) return true;
         }
@@ -105,6 +365,7 @@ public class Multimap<K,V> {
 
     /**
      * Indicates whether the multimap contains the provided {@code key-value}
+     * pair. This takes constant time for the keys whose values are indexed.
      * 
      * @param key Key with which the specified value is associated
      * @param value Value to be associated with the specified key
@@ -113,7 +374,9 @@ public class Multimap<K,V> {
      * with the key {@code key} and the value {@code value}.
      */
     public boolean containsEntry(K key, V value) {
-        List<V> values = this.entries.get(key);
+        HashMap<V,Integer> index = this.valueIndex(key);
+        if (index != null) return index.containsKey(value);
+        List<V> values = this.valuesOf(key);
         if (values != null) {
             return values.contains(value);
         }
@@ -128,8 +391,11 @@ public class Multimap<K,V> {
      * @param value Value to be associated with the specified key
      */
     public void put(K key, V value) {
-        if (!this.entries.containsKey(key)) this.entries.put(key, new ArrayList<V>());
-        this.entries.get(key).add(value);
+        List<V> values = this.valuesForUpdate(key);
+        values.add(value);
+        this.valueAdded(key, values, value);
+        if (this.reverseIndex != null) this.reverseIndex.add(value, key);
+        if (this.metrics != null) this.metrics.recordPut(this.entries.size());
     }
     
     /**
@@ -140,8 +406,11 @@ public class Multimap<K,V> {
      */
     public boolean putIfAbsent(K key, V value) {
         if (!this.containsEntry(key, value)) {
-            if (!this.entries.containsKey(key)) this.entries.put(key, new ArrayList<V>());
-            this.entries.get(key).add(value);
+            List<V> values = this.valuesForUpdate(key);
+            values.add(value);
+            this.valueAdded(key, values, value);
+            if (this.reverseIndex != null) this.reverseIndex.add(value, key);
+            if (this.metrics != null) this.metrics.recordPut(this.entries.size());
             return true;
         }
         else return false;
@@ -172,10 +441,15 @@ public class Multimap<K,V> {
      */
 
     public boolean remove(K key, V value) {
-        List<V> values = this.entries.get(key);
+        List<V> values = this.valuesOf(key);
         if (values != null) {
+            HashMap<V,Integer> index = this.valueIndex(key);
+            if (index != null && !index.containsKey(value)) return false;
             boolean changed =  values.remove(value);
-            if (values.isEmpty()) this.entries.remove(key);
+            if (changed) this.valueRemoved(key, values, value);
+            if (values.isEmpty()) this.removeKey(key);
+            if (changed && this.reverseIndex != null) this.reverseIndex.remove(value, key);
+            if (changed && this.metrics != null) this.metrics.recordRemove();
             return changed;
         }
         else return false;
@@ -193,8 +467,12 @@ public class Multimap<K,V> {
      */
     public boolean putAll(K key, Collection<? extends V> values) {
         if (values != null && !values.isEmpty()) {
-            if (!this.entries.containsKey(key)) this.entries.put(key, new ArrayList<V>());
-            return this.entries.get(key).addAll(values);
+            List<V> list = this.valuesForUpdate(key);
+            boolean changed = list.addAll(values);
+            this.valuesAdded(key, list, values);
+            if (this.reverseIndex != null) this.reverseIndex.addAll(values, key);
+            if (this.metrics != null) this.metrics.recordPut(this.entries.size());
+            return changed;
         }
         else return false;
     }
@@ -214,8 +492,11 @@ public class Multimap<K,V> {
      */
     public List<V> removeAll(K key) {
         List<V> result = new ArrayList<>();
-        List<V> removed = this.entries.remove(key);
-        if (removed != null) result.addAll(removed);
+        List<V> removed = this.removeKey(key);
+        if (removed != null) {
+            result.addAll(removed);
+            if (this.metrics != null) this.metrics.recordRemove();
+        }
         return result;
     }
 
@@ -225,6 +506,32 @@ public class Multimap<K,V> {
      */
     public void clear() {
         this.entries.clear();
+        this.nullKeyValues = null;
+        this.valueIndexes = null;
+        if (this.reverseIndex != null) this.reverseIndex.clear();
+    }
+
+    /**
+     * Reclaims the memory left unused after loading this multimap: the value
+     * lists are trimmed to their size and the key table is rebuilt to fit the
+     * current number of keys.
+     *
+     * <p>After this call, the maps previously returned by {@link #asMap()}
+     * are no longer views of this multimap.
+     */
+    public void trimToSize() {
+        for (List<V> values: this.entries.values()) {
+            if (values instanceof ArrayList) ((ArrayList<V>) values).trimToSize();
+        }
+        this.entries = new HashMap<>(this.entries);
+        this.tableCapacity = capacityFor(this.entries.size());
+        if (this.metrics != null) this.metrics.resetResizeBaseline(this.tableCapacity, this.entries.size());
+        this.nullKeyValues = this.entries.get(null);
+        if (this.reverseIndex != null && this.mapExposed) this.reverseIndex = this.buildReverseIndex();
+        if (this.mapExposed) {
+            this.mapExposed = false;
+            this.rebuildValueIndexes();
+        }
     }
 
     // Views
@@ -244,9 +551,11 @@ public class Multimap<K,V> {
      * multimap, if any; otherwise an empty List.
      */
     public List<V> getAll(K key) {
+        long start = (this.metrics != null) ? System.nanoTime() : 0L;
         List<V> result = new ArrayList<>();
-        List<V> values = this.entries.get(key);
+        List<V> values = this.valuesOf(key);
         if (values != null) result.addAll(values);
+        if (this.metrics != null) this.metrics.recordLookup(values != null, System.nanoTime() - start);
         return result;
     }
     
@@ -265,11 +574,14 @@ public class Multimap<K,V> {
      * @return A value ("first found") associated with the provided key, if any; otherwise null
      */
     public V get(K key) {
-        List<V> values  = this.entries.get(key);
+        long start = (this.metrics != null) ? System.nanoTime() : 0L;
+        V value = null;
+        List<V> values = this.valuesOf(key);
         if (values!= null && !values.isEmpty()) {
-            return values.get(0);
+            value = values.get(0);
         }
-        else return null;
+        if (this.metrics != null) this.metrics.recordLookup(values != null, System.nanoTime() - start);
+        return value;
     }
     
     /**
@@ -282,13 +594,40 @@ public class Multimap<K,V> {
      * @return First non-null value associated with the provided key, if any; otherwise null
      */
     public V getNonNull(K key) {
-        List<V> values  = this.entries.get(key);
+        long start = (this.metrics != null) ? System.nanoTime() : 0L;
+        V nonNull = null;
+        List<V> values = this.valuesOf(key);
         if (values!= null && !values.isEmpty()) {
             for (V value: values) {
-                if (value != null) return value;
+                if (value != null) {
+                    nonNull = value;
+                    break;
+                }
             }
         }
-        return null;
+        if (this.metrics != null) this.metrics.recordLookup(values != null, System.nanoTime() - start);
+        return nonNull;
+    }
+
+    /**
+     * Returns the distinct keys associated with a value. This takes constant
+     * time (plus the size of the result) if the {@linkplain #enableReverseIndex()
+     * reverse index} is enabled, and scans all the values otherwise.
+     * 
+     * @param value Value the keys of which to return
+     * 
+     * @return {@code List} of the keys associated with {@code value}, in no
+     * particular order. If the multimap does not contain {@code value} then an
+     * <i>empty</i> {@code List} is returned. Changes to the returned list will
+     * not update the multimap.
+     */
+    public List<K> getKeysForValue(V value) {
+        if (this.reverseIndex != null && !this.mapExposed) return this.reverseIndex.keysOf(value);
+        List<K> keys = new ArrayList<>();
+        for (Map.Entry<K,List<V>> entry: this.entries.entrySet()) {
+            if (entry.getValue() != null && entry.getValue().contains(value)) keys.add(entry.getKey());
+        }
+        return keys;
     }
 
     /**
@@ -297,15 +636,16 @@ public class Multimap<K,V> {
      * maps that key to at least one value. If the multimap is empty then an <i>empty</i>
      * {@code Set} is returned.
      *
-     * <p>Changes to the returned set will update the underlying multimap, and
-     * vice versa. However, <i>adding</i> to, and <i>removing</i> from, the
-     * returned set are not possible.
+     * <p>Changes to the multimap are reflected in the returned set. Removing a
+     * key from the set removes the key and its values from the multimap;
+     * <i>adding</i> to the set is not possible.
      * 
      * @return {@code Set} of keys contained in this multimap. If the multimap
      * is empty then an <i>empty</i> {@code Set} is returned.
      */
     public Set<K> keySet() {
-        return this.entries.keySet();
+        if (this.keySetView == null) this.keySetView = new KeySet();
+        return this.keySetView;
     }
 
     /**
@@ -342,7 +682,219 @@ public class Multimap<K,V> {
      * of values. If the multimap is empty, then an <i>empty</i> {@code Map} is returned.
      */
     public Map<K, List<V>> asMap() {
+        this.mapExposed = true;
+        this.valueIndexes = null;
         return this.entries;
     }
+
+    /**
+     * Sets the number of values above which the values of a key are indexed.
+     * An indexed key costs one hash table entry per distinct value (about 40
+     * bytes on a 64-bit JVM) on top of its list, and in return
+     * {@link #containsEntry}, {@link #putIfAbsent} and {@link #remove} take
+     * constant expected time for it, except that removing a value it does
+     * have still locates and shifts it in the list. The index of a key is
+     * dropped once it has half the threshold values or fewer. Existing keys
+     * are re-indexed according to the new threshold.
+     *
+     * <p>Keys removed through the set returned by {@link #keySet()} lose their
+     * index. Changes made through the map returned by {@link #asMap()} bypass
+     * the value indexes: once that map has been handed out, the lists are
+     * scanned until {@link #trimToSize()} rebuilds the indexes.
+     *
+     * @param threshold Number of values above which a key is indexed, at
+     * least 1. {@code Integer.MAX_VALUE} disables value indexing.
+     */
+    public void setValueIndexThreshold(int threshold) {
+        if (threshold < 1) throw new IllegalArgumentException("Value index threshold must be positive: " + threshold);
+        this.valueIndexThreshold = threshold;
+        if (!this.mapExposed) this.rebuildValueIndexes();
+    }
+
+    /**
+     * Returns the number of values above which the values of a key are indexed
+     * @return Value index threshold, {@link #DEFAULT_VALUE_INDEX_THRESHOLD}
+     * unless changed by {@link #setValueIndexThreshold(int)}
+     */
+    public int getValueIndexThreshold() {
+        return this.valueIndexThreshold;
+    }
+
+    /**
+     * Builds and starts maintaining an inverse index mapping each value to its
+     * keys, so that {@link #containsValue} and {@link #getKeysForValue} take
+     * constant expected time instead of scanning all the values. The index
+     * costs one hash table entry per distinct value (about 40 bytes on a
+     * 64-bit JVM), plus a list holding one reference per key-value pair for
+     * the values associated with several keys. It also adds a hash lookup to
+     * every insertion and removal. Calling this method while the index is
+     * enabled has no effect.
+     *
+     * <p>Keys removed through the set returned by {@link #keySet()} are
+     * removed from the index as well. Changes made through the map returned
+     * by {@link #asMap()} bypass the index: once that map has been handed out,
+     * lookups fall back to scanning until {@link #trimToSize()} rebuilds the
+     * index.
+     */
+    public void enableReverseIndex() {
+        if (this.reverseIndex == null) this.reverseIndex = this.buildReverseIndex();
+    }
+
+    /**
+     * Drops the inverse index built by {@link #enableReverseIndex()}, if any
+     */
+    public void disableReverseIndex() {
+        this.reverseIndex = null;
+    }
+
+    private ReverseIndex<K,V> buildReverseIndex() {
+        ReverseIndex<K,V> index = new ReverseIndex<>();
+        for (Map.Entry<K,List<V>> entry: this.entries.entrySet()) {
+            if (entry.getValue() != null) index.addAll(entry.getValue(), entry.getKey());
+        }
+        return index;
+    }
+
+    /**
+     * Starts collecting usage metrics on this multimap: lookups made with
+     * {@link #containsKey}, {@link #get}, {@link #getAll} and {@link #getNonNull},
+     * and insertions and removals. Collection adds a few counter updates and
+     * two clock reads per operation; when metrics are disabled it is skipped.
+     * Calling this method while metrics are enabled has no effect.
+     */
+    public void enableMetrics() {
+        if (this.metrics == null) this.metrics = new CollectionMetrics(this.tableCapacity, this.entries.size());
+    }
+
+    /**
+     * Stops collecting usage metrics and discards the collected ones
+     */
+    public void disableMetrics() {
+        this.metrics = null;
+    }
+
+    /**
+     * Returns a snapshot of the usage metrics of this multimap, together with
+     * the current distribution of the number of values per key
+     * @return Snapshot of the metrics, or {@code null} if metrics are not enabled
+     */
+    public CollectionMetrics.Snapshot getMetricsSnapshot() {
+        CollectionMetrics current = this.metrics;
+        if (current == null) return null;
+        long[] valuesPerKey = new long[0];
+        for (List<V> values: this.entries.values()) {
+            if (values != null && !values.isEmpty()) {
+                valuesPerKey = CollectionMetrics.increment(valuesPerKey, CollectionMetrics.countBucket(values.size()));
+            }
+        }
+        return current.snapshot(valuesPerKey, new long[0]);
+    }
+
+    /**
+     * Returns an iterator over the key-value pairs of this multimap. Pairs are
+     * read lazily from the internal table, so unlike {@link #values()} no copy
+     * of the multimap is made.
+     *
+     * <p>The returned iterator does not support {@code remove()}. The multimap
+     * must not be modified while the iteration is in progress.
+     *
+     * @return Iterator over the key-value pairs of this multimap. If the
+     * multimap is empty then the iterator has no elements.
+     */
+    public Iterator<Map.Entry<K,V>> entryIterator() {
+        return new EntryIterator();
+    }
+
+    /**
+     * Key set view whose removals go through {@link #keyRemoved}, so that the
+     * state derived from the keys is kept in step
+     */
+    private class KeySet extends AbstractSet<K> {
+
+        @Override
+        public int size() {
+            return entries.size();
+        }
+
+        @Override
+        public boolean contains(Object key) {
+            return entries.containsKey(key);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean remove(Object key) {
+            if (!entries.containsKey(key)) return false;
+            keyRemoved((K) key, entries.remove(key));
+            return true;
+        }
+
+        @Override
+        public void clear() {
+            Multimap.this.clear();
+        }
+
+        @Override
+        public Iterator<K> iterator() {
+            final Iterator<Map.Entry<K,List<V>>> iterator = entries.entrySet().iterator();
+            return new Iterator<K>() {
+
+                private Map.Entry<K,List<V>> current;
+
+                @Override
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+
+                @Override
+                public K next() {
+                    this.current = iterator.next();
+                    return this.current.getKey();
+                }
+
+                @Override
+                public void remove() {
+                    iterator.remove();
+                    K key = this.current.getKey();
+                    keyRemoved(key, this.current.getValue());
+                    this.current = null;
+                }
+            };
+        }
+    }
+
+    /**
+     * Iterator walking the internal table key by key, then each key's values
+     */
+    private class EntryIterator implements Iterator<Map.Entry<K,V>> {
+
+        private final Iterator<Map.Entry<K,List<V>>> keys = entries.entrySet().iterator();
+        private K key;
+        private List<V> values;
+        private int index;
+
+        @Override
+        public boolean hasNext() {
+            while (this.values == null || this.index >= this.values.size()) {
+                if (!this.keys.hasNext()) return false;
+                Map.Entry<K,List<V>> entry = this.keys.next();
+                this.key = entry.getKey();
+                this.values = entry.getValue();
+                this.index = 0;
+            }
+            return true;
+        }
+
+        @Override
+        public Map.Entry<K,V> next() {
+            if (!this.hasNext()) throw new NoSuchElementException();
+            return new AbstractMap.SimpleImmutableEntry<>(this.key, this.values.get(this.index++));
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Removal is not supported by multimap entry iterators");
+        }
+    }
     
 }
@@ -0,0 +1,582 @@
+/*
+ * Copyright 2015 Coastal and Marine Research Centre (CMRC), Beaufort,
+ * Environmental Research Institute (ERI), University College Cork (UCC).
+ * Yassine Lassoued <y.lassoued@gmail.com, y.lassoued@ucc.ie>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.cmrc.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link TermMap} held on disk, for vocabularies that do not fit in memory.
+ *
+ * <p>Term strings are partitioned by hash into a fixed number of segments.
+ * Each segment is a {@link TermMap} stored in its own file, encoded by a
+ * {@link TermMapCodec}. At most {@code cacheSize} segments are held in memory;
+ * when another one is needed, the least recently used segment is evicted,
+ * being written back first if it was modified. Segment files are replaced
+ * atomically, so a crash leaves each of them either before or after its last
+ * write-back; the updates of the segments not yet written back are lost. Use
+ * {@link #flush()} or {@link #close()} to write them.
+ *
+ * <p>Each segment file starts with a Bloom filter of its term strings, which
+ * is kept in memory for all the segments (about 10 bits per term string).
+ * A lookup of a term absent from the map is therefore answered without any
+ * disk access in about 99% of the cases, and any lookup costs at most one
+ * segment read. Lookups of terms in resident segments cost as much as on a
+ * {@link TermMap}, so throughput degrades with the share of the working set
+ * that does not fit in the cache rather than with the size of the map.
+ *
+ * <p>All methods are thread-safe; they are serialised on this object.
+ *
+ * @author Yassine Lassoued
+ * @param <V> Type of the mapped values
+ */
+public class PagedTermMap<V> implements Closeable {
+
+    /**
+     * Default number of segments of a new map
+     */
+    public static final int DEFAULT_NUM_SEGMENTS = 256;
+
+    /**
+     * Default number of segments held in memory
+     */
+    public static final int DEFAULT_CACHE_SIZE = 16;
+
+    private static final int MAGIC = 0x544D5053;
+    private static final int MANIFEST_MAGIC = 0x544D504D;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+    private static final String MANIFEST_FILE = "termmap.segments";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    /**
+     * Bloom filter sizing, giving a false positive rate of about 1%
+     */
+    private static final int BLOOM_BITS_PER_TERM_STRING = 10;
+    private static final int BLOOM_HASHES = 7;
+
+    private final File directory;
+    private final TermMapCodec<V> codec;
+    private final int numSegments;
+    private final int cacheSize;
+
+    /**
+     * Bloom filter of the term strings of each segment file, {@code null} for
+     * the segments that have no file (i.e., that are empty)
+     */
+    private final long[][] blooms;
+
+    /**
+     * Resident segments, in access order
+     */
+    private final LinkedHashMap<Integer, Segment<V>> cache;
+
+    private long hitCount;
+    private long missCount;
+    private long bloomRejectionCount;
+    private boolean closed;
+
+    /**
+     * Opens a paged term map with the default number of segments and cache size
+     * @param directory Directory of the segment files. It is created if it
+     * does not exist.
+     * @param codec Codec of the values
+     * @throws IOException If the directory cannot be read or written
+     */
+    public PagedTermMap(File directory, ValueCodec<V> codec) throws IOException {
+        this(directory, codec, DEFAULT_NUM_SEGMENTS, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Opens a paged term map. The content of the map is not read, only the
+     * Bloom filters of its segments.
+     * @param directory Directory of the segment files. It is created if it
+     * does not exist.
+     * @param codec Codec of the values
+     * @param numSegments Number of segments if the map is new. An existing map
+     * keeps the number of segments it was created with. With {@code n} term
+     * strings, a segment holds about {@code n / numSegments} of them.
+     * @param cacheSize Maximum number of segments held in memory
+     * @throws IOException If the directory cannot be read or written
+     */
+    public PagedTermMap(File directory, ValueCodec<V> codec, int numSegments, int cacheSize) throws IOException {
+        if (numSegments <= 0) throw new IllegalArgumentException("Number of segments must be positive: " + numSegments);
+        if (cacheSize <= 0) throw new IllegalArgumentException("Cache size must be positive: " + cacheSize);
+        if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Cannot create directory " + directory);
+        this.directory = directory;
+        this.codec = new TermMapCodec<>(codec);
+        this.numSegments = this.openManifest(numSegments);
+        this.cacheSize = cacheSize;
+        this.blooms = new long[this.numSegments][];
+        this.cache = new LinkedHashMap<>(Multimap.capacityFor(cacheSize + 1), 0.75f, true);
+        for (int i=0; i<this.numSegments; i++) {
+            Files.deleteIfExists(new File(directory, SEGMENT_PREFIX + i + SEGMENT_SUFFIX + TEMPORARY_SUFFIX).toPath());
+            File file = this.segmentFile(i);
+            if (file.isFile()) this.blooms[i] = readBloom(file);
+        }
+    }
+
+    /**
+     * Returns the number of segments the term strings are partitioned into
+     * @return Number of segments
+     */
+    public int getNumSegments() {
+        return this.numSegments;
+    }
+
+    /**
+     * Returns the list of values associated with the provided term
+     * @param term Term for which values will be returned
+     * @return Values associated with {@code term}, see {@link TermMap#getValues(ie.cmrc.util.Term)}
+     * @throws IOException If the segment of the term cannot be read
+     */
+    public synchronized List<V> getValues(Term term) throws IOException {
+        return this.segmentForRead(termString(term)).termMap.getValues(term);
+    }
+
+    /**
+     * Returns a value (the first one) associated with {@code term} if any
+     * @param term {@link Term} whose associated value is to be returned
+     * @return First value associated with {@code term}. If no such value exists
+     * then {@code null} is returned.
+     * @throws IOException If the segment of the term cannot be read
+     */
+    public synchronized V getValue(Term term) throws IOException {
+        return this.segmentForRead(termString(term)).termMap.getValue(term);
+    }
+
+    /**
+     * Returns the languages and values associated with a term string
+     * @param stringTerm Term string
+     * @return Languages and values of {@code stringTerm}, see {@link TermMap#getValues(java.lang.String)}
+     * @throws IOException If the segment of the term string cannot be read
+     */
+    public synchronized Multimap<String,V> getValues(String stringTerm) throws IOException {
+        return this.segmentForRead(stringTerm).termMap.getValues(stringTerm);
+    }
+
+    /**
+     * Checks whether the map has values for the provided term. For most absent
+     * terms, this is answered without reading any segment.
+     * @param term Term to check
+     * @return {@code true} if the term exists, {@code false} otherwise
+     * @throws IOException If the segment of the term cannot be read
+     */
+    public synchronized boolean containsKeyTerm(Term term) throws IOException {
+        return this.segmentForRead(termString(term)).termMap.containsKeyTerm(term);
+    }
+
+    /**
+     * Checks whether the map has values for the provided term string. For most
+     * absent term strings, this is answered without reading any segment.
+     * @param stringTerm Term string to check
+     * @return {@code true} if the term string exists, {@code false} otherwise
+     * @throws IOException If the segment of the term string cannot be read
+     */
+    public synchronized boolean containsKeyTerm(String stringTerm) throws IOException {
+        return this.segmentForRead(stringTerm).termMap.containsKeyTerm(stringTerm);
+    }
+
+    /**
+     * Checks whether the map contains the {@code term-value} pair
+     * @param term {@link Term} to check
+     * @param value Value associated with {@code term}
+     * @return {@code true} if the map contains the pair, {@code false} otherwise
+     * @throws IOException If the segment of the term cannot be read
+     */
+    public synchronized boolean containsEntry(Term term, V value) throws IOException {
+        return this.segmentForRead(termString(term)).termMap.containsEntry(term, value);
+    }
+
+    /**
+     * Inserts the provided {@code value} associated with the provided {@code term}
+     * @param term Term with which the specified value is to be associated
+     * @param value Value to be associated with the specified term
+     * @throws IOException If a segment cannot be read or written back
+     */
+    public synchronized void put(Term term, V value) throws IOException {
+        Segment<V> segment = this.segmentForUpdate(termString(term));
+        segment.termMap.put(term, value);
+        segment.dirty = true;
+    }
+
+    /**
+     * Inserts the provided {@code term-value} entry if it is not already in the map
+     * @param term Term with which the specified value is to be associated
+     * @param value Value to be associated with the specified term
+     * @return {@code true} if the entry was added, {@code false} otherwise
+     * @throws IOException If a segment cannot be read or written back
+     */
+    public synchronized boolean putIfAbsent(Term term, V value) throws IOException {
+        Segment<V> segment = this.segmentForUpdate(termString(term));
+        boolean added = segment.termMap.putIfAbsent(term, value);
+        if (added) segment.dirty = true;
+        return added;
+    }
+
+    /**
+     * Inserts the provided {@code term-value} entry and makes sure that {@code value}
+     * is the only value associated with {@code term}
+     * @param term Key term with which the specified value is to be associated
+     * @param value Value to be associated with the specified key term
+     * @throws IOException If a segment cannot be read or written back
+     */
+    public synchronized void putOnly(Term term, V value) throws IOException {
+        Segment<V> segment = this.segmentForUpdate(termString(term));
+        segment.termMap.putOnly(term, value);
+        segment.dirty = true;
+    }
+
+    /**
+     * Removes the provided {@code term-value} pair
+     * @param term {@link Term} the associated value of which to remove
+     * @param value Value associated with the term to remove
+     * @return {@code true} if the map has changed, {@code false} otherwise
+     * @throws IOException If a segment cannot be read or written back
+     */
+    public synchronized boolean remove(Term term, V value) throws IOException {
+        Segment<V> segment = this.segmentForRead(termString(term));
+        boolean changed = segment.termMap.remove(term, value);
+        if (changed) segment.dirty = true;
+        return changed;
+    }
+
+    /**
+     * Removes all the values associated with the provided {@code term}
+     * @param term {@link Term} whose values are to be removed
+     * @return The {@code List} of values that were removed
+     * @throws IOException If a segment cannot be read or written back
+     */
+    public synchronized List<V> removeAll(Term term) throws IOException {
+        Segment<V> segment = this.segmentForRead(termString(term));
+        List<V> removed = segment.termMap.removeAll(term);
+        if (!removed.isEmpty()) segment.dirty = true;
+        return removed;
+    }
+
+    /**
+     * Removes all the languages and values associated with the provided string term
+     * @param stringTerm Term string whose values are to be removed
+     * @return The removed languages and values, see {@link TermMap#removeAll(java.lang.String)}
+     * @throws IOException If a segment cannot be read or written back
+     */
+    public synchronized Multimap<String,V> removeAll(String stringTerm) throws IOException {
+        Segment<V> segment = this.segmentForRead(stringTerm);
+        Multimap<String,V> removed = segment.termMap.removeAll(stringTerm);
+        if (removed != null) segment.dirty = true;
+        return removed;
+    }
+
+    /**
+     * Writes the modified resident segments back to disk
+     * @throws IOException If a segment cannot be written
+     */
+    public synchronized void flush() throws IOException {
+        this.ensureOpen();
+        for (Map.Entry<Integer, Segment<V>> entry: this.cache.entrySet()) {
+            if (entry.getValue().dirty) this.writeSegment(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Writes the modified resident segments back to disk and releases the cache
+     * @throws IOException If a segment cannot be written
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (this.closed) return;
+        try {
+            this.flush();
+        }
+        finally {
+            this.closed = true;
+            this.cache.clear();
+        }
+    }
+
+    /**
+     * Number of accesses to a segment that found it in memory
+     * @return Hit count
+     */
+    public synchronized long getHitCount() {
+        return this.hitCount;
+    }
+
+    /**
+     * Number of accesses to a segment that had to load it. Segments that
+     * have no file yet are loaded without reading the disk.
+     * @return Miss count
+     */
+    public synchronized long getMissCount() {
+        return this.missCount;
+    }
+
+    /**
+     * Number of accesses to a non-resident segment that were answered by its
+     * Bloom filter without loading it
+     * @return Bloom filter rejection count
+     */
+    public synchronized long getBloomRejectionCount() {
+        return this.bloomRejectionCount;
+    }
+
+    /**
+     * Ratio of segment accesses that found the segment in memory
+     * @return Hit rate in the range [0,1]. If no segments were accessed then 1 is returned.
+     */
+    public synchronized double getHitRate() {
+        long requests = this.hitCount + this.missCount;
+        if (requests == 0) return 1.0;
+        else return (double) this.hitCount / requests;
+    }
+
+    private static String termString(Term term) {
+        return term != null ? term.getString() : null;
+    }
+
+    /**
+     * Returns the segment holding a term string
+     */
+    private int segmentIndex(String termString) {
+        int hash = termString != null ? termString.hashCode() : 0;
+        hash ^= (hash >>> 16);
+        hash *= 0x9E3779B9;
+        return (hash >>> 1) % this.numSegments;
+    }
+
+    /**
+     * Returns the segment of a term string for a lookup or a removal. If its
+     * Bloom filter shows that the term string is absent, an empty segment is
+     * returned without loading the actual one.
+     */
+    private Segment<V> segmentForRead(String termString) throws IOException {
+        this.ensureOpen();
+        int index = this.segmentIndex(termString);
+        Segment<V> segment = this.cache.get(index);
+        if (segment != null) {
+            this.hitCount++;
+            return segment;
+        }
+        long[] bloom = this.blooms[index];
+        if (bloom == null || !mightContain(bloom, termString)) {
+            this.bloomRejectionCount++;
+            return new Segment<>(new TermMap<V>());
+        }
+        this.missCount++;
+        return this.load(index);
+    }
+
+    /**
+     * Returns the segment of a term string for an insertion, loading it if needed
+     */
+    private Segment<V> segmentForUpdate(String termString) throws IOException {
+        this.ensureOpen();
+        int index = this.segmentIndex(termString);
+        Segment<V> segment = this.cache.get(index);
+        if (segment != null) {
+            this.hitCount++;
+            return segment;
+        }
+        this.missCount++;
+        return this.load(index);
+    }
+
+    /**
+     * Reads a segment into the cache, evicting the least recently used
+     * segments beyond the cache size
+     */
+    private Segment<V> load(int index) throws IOException {
+        Segment<V> segment;
+        if (this.blooms[index] == null) segment = new Segment<>(new TermMap<V>());
+        else {
+            File file = this.segmentFile(index);
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) throw new IOException("Not a term map segment: " + file);
+            int version = buffer.getInt();
+            if (version != FORMAT_VERSION) throw new IOException("Unsupported format version " + version + ": " + file);
+            int bloomLength = buffer.getInt();
+            buffer.position(buffer.position() + 8 * bloomLength);
+            segment = new Segment<>(this.codec.read(buffer));
+        }
+        Iterator<Map.Entry<Integer, Segment<V>>> eldest = this.cache.entrySet().iterator();
+        while (this.cache.size() >= this.cacheSize) {
+            Map.Entry<Integer, Segment<V>> entry = eldest.next();
+            if (entry.getValue().dirty) this.writeSegment(entry.getKey(), entry.getValue());
+            eldest.remove();
+        }
+        this.cache.put(index, segment);
+        return segment;
+    }
+
+    /**
+     * Writes a segment, with a new Bloom filter of its term strings, to a
+     * temporary file that then replaces the segment file. An empty segment
+     * is written by deleting its file.
+     */
+    private void writeSegment(int index, Segment<V> segment) throws IOException {
+        File file = this.segmentFile(index);
+        if (segment.termMap.isEmpty()) {
+            Files.deleteIfExists(file.toPath());
+            this.blooms[index] = null;
+            segment.dirty = false;
+            return;
+        }
+        long[] bloom = new long[Math.max(1, (segment.termMap.entries.size() * BLOOM_BITS_PER_TERM_STRING + 63) / 64)];
+        for (String termString: segment.termMap.entries.keySet()) add(bloom, termString);
+
+        BinaryIO.Output out = new BinaryIO.Output(HEADER_SIZE + 8 * bloom.length + 4096);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + 8 * bloom.length);
+        header.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(bloom.length);
+        for (long word: bloom) header.putLong(word);
+        out.write(header.array(), 0, header.capacity());
+        this.codec.write(segment.termMap, out);
+
+        File temporary = new File(this.directory, file.getName() + TEMPORARY_SUFFIX);
+        try (FileChannel channel = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = out.asByteBuffer();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            channel.force(true);
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.blooms[index] = bloom;
+        segment.dirty = false;
+    }
+
+    private static long[] readBloom(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header, file);
+            if (header.getInt() != MAGIC) throw new IOException("Not a term map segment: " + file);
+            int version = header.getInt();
+            if (version != FORMAT_VERSION) throw new IOException("Unsupported format version " + version + ": " + file);
+            int length = header.getInt();
+            if (length <= 0 || 8L * length > channel.size() - HEADER_SIZE) throw new IOException("Corrupted segment: " + file);
+            ByteBuffer words = ByteBuffer.allocate(8 * length);
+            readFully(channel, words, file);
+            long[] bloom = new long[length];
+            words.asLongBuffer().get(bloom);
+            return bloom;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, File file) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) throw new IOException("Truncated segment: " + file);
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Reads the number of segments of the map, or records it if the map is new
+     */
+    private int openManifest(int numSegments) throws IOException {
+        File manifest = new File(this.directory, MANIFEST_FILE);
+        ByteBuffer content = ByteBuffer.allocate(12);
+        if (manifest.isFile()) {
+            try (FileChannel channel = FileChannel.open(manifest.toPath(), StandardOpenOption.READ)) {
+                readFully(channel, content, manifest);
+            }
+            if (content.getInt() != MANIFEST_MAGIC) throw new IOException("Not a paged term map: " + this.directory);
+            int version = content.getInt();
+            if (version != FORMAT_VERSION) throw new IOException("Unsupported format version " + version + ": " + manifest);
+            int stored = content.getInt();
+            if (stored <= 0) throw new IOException("Corrupted manifest: " + manifest);
+            return stored;
+        }
+        content.putInt(MANIFEST_MAGIC).putInt(FORMAT_VERSION).putInt(numSegments).flip();
+        try (FileChannel channel = FileChannel.open(manifest.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            while (content.hasRemaining()) channel.write(content);
+            channel.force(true);
+        }
+        return numSegments;
+    }
+
+    private File segmentFile(int index) {
+        return new File(this.directory, SEGMENT_PREFIX + index + SEGMENT_SUFFIX);
+    }
+
+    private void ensureOpen() throws IOException {
+        if (this.closed) throw new IOException("Paged term map is closed");
+    }
+
+    /**
+     * 64-bit hash of a term string, independent of {@link String#hashCode()}
+     * which selects the segment
+     */
+    private static long hash64(String termString) {
+        if (termString == null) return 0x9E3779B97F4A7C15L;
+        long hash = 0xCBF29CE484222325L;
+        for (int i=0; i<termString.length(); i++) {
+            hash = (hash ^ termString.charAt(i)) * 0x100000001B3L;
+        }
+        hash ^= (hash >>> 33);
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= (hash >>> 33);
+        return hash;
+    }
+
+    private static void add(long[] bloom, String termString) {
+        long hash = hash64(termString);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        long numBits = 64L * bloom.length;
+        for (int i=0; i<BLOOM_HASHES; i++) {
+            int bit = (int) (((h1 + i * h2) & 0xFFFFFFFFL) % numBits);
+            bloom[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    private static boolean mightContain(long[] bloom, String termString) {
+        long hash = hash64(termString);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        long numBits = 64L * bloom.length;
+        for (int i=0; i<BLOOM_HASHES; i++) {
+            int bit = (int) (((h1 + i * h2) & 0xFFFFFFFFL) % numBits);
+            if ((bloom[bit >>> 6] & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Segment held in memory
+     */
+    private static final class Segment<V> {
+
+        final TermMap<V> termMap;
+        boolean dirty;
+
+        Segment(TermMap<V> termMap) {
+            this.termMap = termMap;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2015 Coastal and Marine Research Centre (CMRC), Beaufort,
+ * Environmental Research Institute (ERI), University College Cork (UCC).
+ * Yassine Lassoued <y.lassoued@gmail.com, y.lassoued@ucc.ie>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.cmrc.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Inverse index of a {@link Multimap} or {@link TermMap}, mapping each value to
+ * the keys it is associated with. A key is recorded once per key-value pair,
+ * so that removing one of two identical pairs keeps the key indexed.
+ *
+ * <p>Most values of a vocabulary have a single key, which is then stored
+ * directly in the hash table; a list is only allocated for values with
+ * several key-value pairs.
+ *
+ * @author Yassine Lassoued
+ * @param <K> Type of the keys
+ * @param <V> Type of the values
+ */
+class ReverseIndex<K,V> {
+
+    /**
+     * Key of each value, or {@link KeyList} of its keys if it has several
+     * key-value pairs
+     */
+    private final HashMap<V,Object> keys = new HashMap<>();
+
+    /**
+     * Records a key-value pair
+     * @param value Value, may be {@code null}
+     * @param key Key, may be {@code null}
+     */
+    void add(V value, K key) {
+        if (!this.keys.containsKey(value)) {
+            this.keys.put(value, key);
+            return;
+        }
+        Object current = this.keys.get(value);
+        if (current instanceof KeyList) ((KeyList) current).add(key);
+        else {
+            KeyList list = new KeyList();
+            list.add(current);
+            list.add(key);
+            this.keys.put(value, list);
+        }
+    }
+
+    /**
+     * Records the pairs made of a key and each of the provided values
+     */
+    void addAll(Collection<? extends V> values, K key) {
+        for (V value: values) this.add(value, key);
+    }
+
+    /**
+     * Forgets one key-value pair, if it was recorded
+     * @param value Value, may be {@code null}
+     * @param key Key, may be {@code null}
+     */
+    void remove(V value, K key) {
+        Object current = this.keys.get(value);
+        if (current instanceof KeyList) {
+            KeyList list = (KeyList) current;
+            list.remove(key);
+            if (list.size() == 1) this.keys.put(value, list.get(0));
+        }
+        else if (this.keys.containsKey(value) && equal(current, key)) this.keys.remove(value);
+    }
+
+    /**
+     * Forgets the pairs made of a key and each of the provided values
+     * @param values Values, may be {@code null}
+     * @param key Key, may be {@code null}
+     */
+    void removeAll(Collection<? extends V> values, K key) {
+        if (values != null) {
+            for (V value: values) this.remove(value, key);
+        }
+    }
+
+    /**
+     * Indicates whether a value has at least one key
+     */
+    boolean contains(V value) {
+        return this.keys.containsKey(value);
+    }
+
+    /**
+     * Returns the distinct keys of a value
+     * @param value Value, may be {@code null}
+     * @return New list of the keys associated with {@code value}, in the
+     * order they were first associated with it. This is <i>empty</i> if the
+     * value has no keys.
+     */
+    @SuppressWarnings("unchecked")
+    List<K> keysOf(V value) {
+        List<K> result = new ArrayList<>();
+        Object current = this.keys.get(value);
+        if (current instanceof KeyList) {
+            for (Object key: new LinkedHashSet<>((KeyList) current)) result.add((K) key);
+        }
+        else if (current != null || this.keys.containsKey(value)) result.add((K) current);
+        return result;
+    }
+
+    void clear() {
+        this.keys.clear();
+    }
+
+    private static boolean equal(Object o1, Object o2) {
+        return o1 == null ? o2 == null : o1.equals(o2);
+    }
+
+    /**
+     * Keys of a value with several key-value pairs. Being private, this class
+     * cannot be confused with a key.
+     */
+    private static final class KeyList extends ArrayList<Object> {
+
+        private static final long serialVersionUID = 1L;
+
+        KeyList() {
+            super(2);
+        }
+    }
+}
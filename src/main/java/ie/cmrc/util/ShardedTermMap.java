@@ -0,0 +1,529 @@
+/*
+ * Copyright 2015 Coastal and Marine Research Centre (CMRC), Beaufort,
+ * Environmental Research Institute (ERI), University College Cork (UCC).
+ * Yassine Lassoued <y.lassoued@gmail.com, y.lassoued@ucc.ie>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.cmrc.util;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A {@link TermMap} split by term string into shards, each owned by a single
+ * thread, for heavy concurrent update loads.
+ *
+ * <p>Every term string belongs to one shard, chosen by the hash of its
+ * normalized form. Each shard is a plain {@link TermMap} that is only
+ * accessed by its own thread, which executes the operations queued for the
+ * shard one after the other. Callers never lock: an operation is queued and
+ * its result is returned as a {@code Future}. Operations submitted by the
+ * same thread on the same term string are executed in submission order.
+ *
+ * <p>Batched operations group their terms by shard and queue a single task
+ * per shard. Operations on the whole map (e.g. {@link #getSize()}) run on all
+ * the shards concurrently, and their results are aggregated when the returned
+ * {@code Future} is read; they do not observe all the shards at the same
+ * instant.
+ *
+ * <p>The shard threads run until {@link #shutdown()} or {@link #close()} is
+ * called.
+ *
+ * @author Yassine Lassoued
+ * @param <V> Type of the mapped values
+ */
+public class ShardedTermMap<V> implements Closeable {
+
+    private final KeyNormalizer keyNormalizer;
+    private final List<TermMap<V>> shards;
+    private final List<ExecutorService> executors;
+
+    /**
+     * Creates a sharded term map with one shard per available processor
+     */
+    public ShardedTermMap() {
+        this(Runtime.getRuntime().availableProcessors(), null);
+    }
+
+    /**
+     * Creates a sharded term map and starts its shard threads
+     * @param numShards Number of shards, and of threads
+     * @param keyNormalizer Normalizer applied to term strings (see
+     * {@link TermMap#TermMap(ie.cmrc.util.KeyNormalizer)}). If this is
+     * {@code null} then term strings are used as is.
+     */
+    public ShardedTermMap(int numShards, KeyNormalizer keyNormalizer) {
+        if (numShards <= 0) throw new IllegalArgumentException("Number of shards must be positive: " + numShards);
+        this.keyNormalizer = keyNormalizer;
+        this.shards = new ArrayList<>(numShards);
+        this.executors = new ArrayList<>(numShards);
+        for (int i=0; i<numShards; i++) {
+            final String name = "ShardedTermMap-shard-" + i;
+            this.shards.add(new TermMap<V>(keyNormalizer));
+            this.executors.add(Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, name);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }));
+        }
+    }
+
+    /**
+     * Returns the number of shards
+     * @return Number of shards
+     */
+    public int getNumShards() {
+        return this.shards.size();
+    }
+
+    /**
+     * Inserts the provided {@code value} associated with the provided {@code term}
+     * @param term Term with which the specified value is to be associated
+     * @param value Value to be associated with the specified term
+     * @return Completion of the insertion
+     */
+    public Future<Void> put(final Term term, final V value) {
+        return this.submit(this.shardIndex(term), new ShardTask<V,Void>() {
+            @Override
+            public Void apply(TermMap<V> shard) {
+                shard.put(term, value);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Inserts the provided {@code term-value} entry if it is not already in the map
+     * @param term Term with which the specified value is to be associated
+     * @param value Value to be associated with the specified term
+     * @return {@code true} if the entry was added, {@code false} otherwise
+     */
+    public Future<Boolean> putIfAbsent(final Term term, final V value) {
+        return this.submit(this.shardIndex(term), new ShardTask<V,Boolean>() {
+            @Override
+            public Boolean apply(TermMap<V> shard) {
+                return shard.putIfAbsent(term, value);
+            }
+        });
+    }
+
+    /**
+     * Inserts the provided {@code term-value} entry and makes sure that {@code value}
+     * is the only value associated with {@code term}
+     * @param term Key term with which the specified value is to be associated
+     * @param value Value to be associated with the specified key term
+     * @return Completion of the insertion
+     */
+    public Future<Void> putOnly(final Term term, final V value) {
+        return this.submit(this.shardIndex(term), new ShardTask<V,Void>() {
+            @Override
+            public Void apply(TermMap<V> shard) {
+                shard.putOnly(term, value);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Inserts term-value pairs, queuing a single task per shard
+     * @param entries Term-value pairs to insert
+     * @return Completion of all the insertions
+     */
+    public Future<Void> putAll(Iterable<? extends Map.Entry<Term, ? extends V>> entries) {
+        final List<List<Map.Entry<Term, ? extends V>>> groups = this.newGroups();
+        for (Map.Entry<Term, ? extends V> entry: entries) groups.get(this.shardIndex(entry.getKey())).add(entry);
+        List<Future<Void>> futures = new ArrayList<>();
+        for (int i=0; i<groups.size(); i++) {
+            final List<Map.Entry<Term, ? extends V>> group = groups.get(i);
+            if (group.isEmpty()) continue;
+            final TermMap<V> shard = this.shards.get(i);
+            futures.add(this.executors.get(i).submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (Map.Entry<Term, ? extends V> entry: group) shard.put(entry.getKey(), entry.getValue());
+                    return null;
+                }
+            }));
+        }
+        return new Gathered<Void,Void>(futures) {
+            @Override
+            Void combine(List<Void> results) {
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Returns the list of values associated with the provided term
+     * @param term Term for which values will be returned
+     * @return Values associated with {@code term}, see {@link TermMap#getValues(ie.cmrc.util.Term)}
+     */
+    public Future<List<V>> getValues(final Term term) {
+        return this.submit(this.shardIndex(term), new ShardTask<V,List<V>>() {
+            @Override
+            public List<V> apply(TermMap<V> shard) {
+                return shard.getValues(term);
+            }
+        });
+    }
+
+    /**
+     * Returns a value (the first one) associated with {@code term} if any
+     * @param term {@link Term} whose associated value is to be returned
+     * @return First value associated with {@code term}, or {@code null}
+     */
+    public Future<V> getValue(final Term term) {
+        return this.submit(this.shardIndex(term), new ShardTask<V,V>() {
+            @Override
+            public V apply(TermMap<V> shard) {
+                return shard.getValue(term);
+            }
+        });
+    }
+
+    /**
+     * Returns the values of several terms, queuing a single task per shard
+     * @param terms Terms to look up
+     * @return {@code List} holding the values of each term (see
+     * {@link TermMap#getValues(ie.cmrc.util.Term)}), in the order of {@code terms}
+     */
+    public Future<List<List<V>>> getValues(List<Term> terms) {
+        final Term[] queries = terms.toArray(new Term[terms.size()]);
+        final List<List<Integer>> groups = this.newGroups();
+        for (int i=0; i<queries.length; i++) groups.get(this.shardIndex(queries[i])).add(i);
+        final Object[] results = new Object[queries.length];
+        List<Future<Void>> futures = new ArrayList<>();
+        for (int i=0; i<groups.size(); i++) {
+            final List<Integer> group = groups.get(i);
+            if (group.isEmpty()) continue;
+            final TermMap<V> shard = this.shards.get(i);
+            futures.add(this.executors.get(i).submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (int index: group) results[index] = shard.getValues(queries[index]);
+                    return null;
+                }
+            }));
+        }
+        return new Gathered<Void, List<List<V>>>(futures) {
+            @Override
+            @SuppressWarnings("unchecked")
+            List<List<V>> combine(List<Void> done) {
+                List<List<V>> values = new ArrayList<>(results.length);
+                for (Object result: results) values.add((List<V>) result);
+                return values;
+            }
+        };
+    }
+
+    /**
+     * Checks whether the map has values for the provided term
+     * @param term Term to check
+     * @return {@code true} if the term exists, {@code false} otherwise
+     */
+    public Future<Boolean> containsKeyTerm(final Term term) {
+        return this.submit(this.shardIndex(term), new ShardTask<V,Boolean>() {
+            @Override
+            public Boolean apply(TermMap<V> shard) {
+                return shard.containsKeyTerm(term);
+            }
+        });
+    }
+
+    /**
+     * Removes the provided {@code term-value} pair
+     * @param term {@link Term} the associated value of which to remove
+     * @param value Value associated with the term to remove
+     * @return {@code true} if the map has changed, {@code false} otherwise
+     */
+    public Future<Boolean> remove(final Term term, final V value) {
+        return this.submit(this.shardIndex(term), new ShardTask<V,Boolean>() {
+            @Override
+            public Boolean apply(TermMap<V> shard) {
+                return shard.remove(term, value);
+            }
+        });
+    }
+
+    /**
+     * Removes all the values associated with the provided {@code term}
+     * @param term {@link Term} whose values are to be removed
+     * @return The {@code List} of values that were removed
+     */
+    public Future<List<V>> removeAll(final Term term) {
+        return this.submit(this.shardIndex(term), new ShardTask<V,List<V>>() {
+            @Override
+            public List<V> apply(TermMap<V> shard) {
+                return shard.removeAll(term);
+            }
+        });
+    }
+
+    /**
+     * Removes all the languages and values associated with the provided string term
+     * @param stringTerm Term string whose values are to be removed
+     * @return The removed languages and values, see {@link TermMap#removeAll(java.lang.String)}
+     */
+    public Future<Multimap<String,V>> removeAll(final String stringTerm) {
+        return this.submit(this.shardIndex(stringTerm), new ShardTask<V,Multimap<String,V>>() {
+            @Override
+            public Multimap<String,V> apply(TermMap<V> shard) {
+                return shard.removeAll(stringTerm);
+            }
+        });
+    }
+
+    /**
+     * Returns the number of term-value pairs of all the shards
+     * @return Number of term-value pairs, see {@link TermMap#getSize()}
+     */
+    public Future<Integer> getSize() {
+        return new Gathered<Integer,Integer>(this.onAllShards(new ShardTask<V,Integer>() {
+            @Override
+            public Integer apply(TermMap<V> shard) {
+                return shard.getSize();
+            }
+        })) {
+            @Override
+            Integer combine(List<Integer> sizes) {
+                int size = 0;
+                for (int shardSize: sizes) size += shardSize;
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Returns the key terms of all the shards
+     * @return {@code List} of the key terms, see {@link TermMap#getKeyTerms()}
+     */
+    public Future<List<Term>> getKeyTerms() {
+        return new Gathered<List<Term>, List<Term>>(this.onAllShards(new ShardTask<V,List<Term>>() {
+            @Override
+            public List<Term> apply(TermMap<V> shard) {
+                return shard.getKeyTerms();
+            }
+        })) {
+            @Override
+            List<Term> combine(List<List<Term>> keyTerms) {
+                List<Term> all = new ArrayList<>();
+                for (List<Term> shardKeyTerms: keyTerms) all.addAll(shardKeyTerms);
+                return all;
+            }
+        };
+    }
+
+    /**
+     * Returns the languages of all the shards
+     * @return {@code List} of the distinct languages, see {@link TermMap#getLanguages()}
+     */
+    public Future<List<String>> getLanguages() {
+        return new Gathered<List<String>, List<String>>(this.onAllShards(new ShardTask<V,List<String>>() {
+            @Override
+            public List<String> apply(TermMap<V> shard) {
+                return shard.getLanguages();
+            }
+        })) {
+            @Override
+            List<String> combine(List<List<String>> languages) {
+                Set<String> all = new LinkedHashSet<>();
+                for (List<String> shardLanguages: languages) all.addAll(shardLanguages);
+                return new ArrayList<>(all);
+            }
+        };
+    }
+
+    /**
+     * Runs a task on each shard, in the thread owning the shard. The task
+     * may read and update the shard, but must not keep a reference to it.
+     * @param <T> Type of the result of the task
+     * @param task Task to run
+     * @return Results of the task on each shard, in shard order
+     */
+    public <T> Future<List<T>> forEachShard(ShardTask<V,T> task) {
+        return new Gathered<T, List<T>>(this.onAllShards(task)) {
+            @Override
+            List<T> combine(List<T> results) {
+                return results;
+            }
+        };
+    }
+
+    /**
+     * Stops accepting operations. The operations already queued are executed.
+     */
+    public void shutdown() {
+        for (ExecutorService executor: this.executors) executor.shutdown();
+    }
+
+    /**
+     * Blocks until the queued operations have been executed after a shutdown
+     * @param timeout Maximum time to wait
+     * @param unit Unit of {@code timeout}
+     * @return {@code true} if all the shard threads terminated, {@code false}
+     * if the timeout elapsed first
+     * @throws InterruptedException If the calling thread is interrupted
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (ExecutorService executor: this.executors) {
+            if (!executor.awaitTermination(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Shuts the shard threads down and waits for the queued operations to be executed
+     */
+    @Override
+    public void close() {
+        this.shutdown();
+        boolean interrupted = false;
+        for (ExecutorService executor: this.executors) {
+            while (!executor.isTerminated()) {
+                try {
+                    executor.awaitTermination(1, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Task run on each shard of a {@link ShardedTermMap}, see
+     * {@link ShardedTermMap#forEachShard}
+     * @param <V> Type of the values
+     * @param <T> Type of the result
+     */
+    public interface ShardTask<V,T> {
+
+        /**
+         * Runs the task on a shard
+         * @param shard Term map of the shard
+         * @return Result of the task on {@code shard}
+         */
+        T apply(TermMap<V> shard);
+    }
+
+    private int shardIndex(Term term) {
+        return this.shardIndex(term != null ? term.getString() : null);
+    }
+
+    private int shardIndex(String stringTerm) {
+        if (stringTerm == null) return 0;
+        if (this.keyNormalizer != null) stringTerm = this.keyNormalizer.normalize(stringTerm);
+        int hash = stringTerm.hashCode();
+        hash ^= (hash >>> 16);
+        hash *= 0x9E3779B9;
+        return (hash >>> 1) % this.shards.size();
+    }
+
+    /**
+     * Queues a task on a shard
+     */
+    private <T> Future<T> submit(int index, final ShardTask<V,T> task) {
+        final TermMap<V> shard = this.shards.get(index);
+        return this.executors.get(index).submit(new Callable<T>() {
+            @Override
+            public T call() {
+                return task.apply(shard);
+            }
+        });
+    }
+
+    private <T> List<List<T>> newGroups() {
+        List<List<T>> groups = new ArrayList<>(this.shards.size());
+        for (int i=0; i<this.shards.size(); i++) groups.add(new ArrayList<T>());
+        return groups;
+    }
+
+    private <T> List<Future<T>> onAllShards(final ShardTask<V,T> task) {
+        List<Future<T>> futures = new ArrayList<>(this.shards.size());
+        for (int i=0; i<this.shards.size(); i++) futures.add(this.submit(i, task));
+        return futures;
+    }
+
+    /**
+     * Future combining the results of the tasks queued on several shards
+     */
+    private abstract static class Gathered<T,R> implements Future<R> {
+
+        private final List<Future<T>> futures;
+
+        Gathered(List<Future<T>> futures) {
+            this.futures = futures;
+        }
+
+        abstract R combine(List<T> results);
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = false;
+            for (Future<T> future: this.futures) cancelled |= future.cancel(mayInterruptIfRunning);
+            return cancelled;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            for (Future<T> future: this.futures) {
+                if (future.isCancelled()) return true;
+            }
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            for (Future<T> future: this.futures) {
+                if (!future.isDone()) return false;
+            }
+            return true;
+        }
+
+        @Override
+        public R get() throws InterruptedException, ExecutionException {
+            List<T> results = new ArrayList<>(this.futures.size());
+            for (Future<T> future: this.futures) results.add(future.get());
+            return this.combine(results);
+        }
+
+        @Override
+        public R get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            List<T> results = new ArrayList<>(this.futures.size());
+            for (Future<T> future: this.futures) {
+                results.add(future.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+            }
+            return this.combine(results);
+        }
+    }
+}
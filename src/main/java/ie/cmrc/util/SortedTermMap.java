@@ -0,0 +1,573 @@
+/*
+ * Copyright 2015 Coastal and Marine Research Centre (CMRC), Beaufort,
+ * Environmental Research Institute (ERI), University College Cork (UCC).
+ * Yassine Lassoued <y.lassoued@gmail.com, y.lassoued@ucc.ie>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.cmrc.util;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A {@link SortedTermMap} maps values of given type ({@code <V>}) to key terms
+ * {@link Term} and keeps its key terms sorted in the natural order of terms,
+ * i.e., by language first, then by term string (see {@link Term#compareTo(ie.cmrc.util.Term)}).
+ * This allows range scans ({@link #subMap(ie.cmrc.util.Term, ie.cmrc.util.Term)},
+ * {@link #headMap(ie.cmrc.util.Term)}, {@link #tailMap(ie.cmrc.util.Term)}) and
+ * paging through the key terms in a stable order.
+ *
+ * <p>Key terms are stored in a B+tree whose nodes hold up to
+ * {@value #NODE_CAPACITY} keys in contiguous arrays, and whose leaves are
+ * chained in key order. Lookups and insertions take {@code O(log n)} time, and
+ * scans read the leaves sequentially. Removals do not merge nodes: a leaf may
+ * be left underfull, or empty, until the map is {@linkplain #clear() cleared}.
+ *
+ * <p>Since key terms are compared with {@link Term#compareTo(ie.cmrc.util.Term)},
+ * a term with no language and the same term with an empty language are the
+ * same key term. A {@code null} term is stored as the empty term.
+ *
+ * @author Yassine Lassoued
+ * @param <V> Type of the mapped values
+ */
+public class SortedTermMap<V> {
+
+    /**
+     * Maximum number of keys per node
+     */
+    static final int NODE_CAPACITY = 64;
+
+    /**
+     * Root node of the B+tree
+     */
+    private Node root;
+
+    /**
+     * Leftmost leaf of the B+tree
+     */
+    private final Leaf<V> firstLeaf;
+
+    /**
+     * Number of key terms
+     */
+    private int numKeyTerms;
+
+    /**
+     * Constructs an empty {@link SortedTermMap} object
+     */
+    public SortedTermMap() {
+        this.firstLeaf = new Leaf<>();
+        this.root = this.firstLeaf;
+    }
+
+    /**
+     * Inserts the provided {@code value} associated with the provided {@code term}
+     * @param term Term with which the specified value is to be associated
+     * @param value Value to be associated with the specified term
+     */
+    public void put(Term term, V value) {
+        this.valuesFor(keyOf(term)).add(value);
+    }
+
+    /**
+     * Inserts the provided {@code term-value} entry and makes sure that {@code value}
+     * is the only value associated with {@code term}
+     * @param term Key term with which the specified value is to be associated
+     * @param value Value to be associated with the specified key term
+     */
+    public void putOnly(Term term, V value) {
+        List<V> values = this.valuesFor(keyOf(term));
+        values.clear();
+        values.add(value);
+    }
+
+    /**
+     * Returns the list of values associated with the provided term
+     * @param term Term for which values will be returned
+     * @return {@code List<V>} containing the values associated with {@code term}.
+     * If the {@link SortedTermMap} does not contain any values for the term, then
+     * an <i>empty</i> {@code List<V>} is returned.
+     *
+     * <p>Changes to the returned list itself will not update the underlying map.
+     */
+    public List<V> getValues(Term term) {
+        term = keyOf(term);
+        Leaf<V> leaf = this.findLeaf(term);
+        int index = leaf.indexOf(term);
+        if (index >= 0) return new ArrayList<>(leaf.values[index]);
+        else return new ArrayList<>();
+    }
+
+    /**
+     * Returns a value (the first one) associated with {@code term} if any
+     * @param term {@link Term} whose associated value is to be returned
+     * @return First value associated with {@code term}. If no such value exists
+     * then {@code null} is returned.
+     */
+    public V getValue(Term term) {
+        term = keyOf(term);
+        Leaf<V> leaf = this.findLeaf(term);
+        int index = leaf.indexOf(term);
+        if (index >= 0) return leaf.values[index].get(0);
+        else return null;
+    }
+
+    /**
+     * Indicates whether the {@link SortedTermMap} contains the provided term
+     * @param term Term to check
+     * @return {@code true} is the term exists in the map, {@code false} otherwise.
+     */
+    public boolean containsKeyTerm(Term term) {
+        term = keyOf(term);
+        return this.findLeaf(term).indexOf(term) >= 0;
+    }
+
+    /**
+     * Removes the provided {@code term-value} pair from the {@link SortedTermMap}
+     * @param term {@link Term} the associated value of which to remove
+     * @param value Value associated with the term to remove
+     * @return {@code true} if the map has changed, {@code false} otherwise.
+     */
+    public boolean remove(Term term, V value) {
+        term = keyOf(term);
+        Leaf<V> leaf = this.findLeaf(term);
+        int index = leaf.indexOf(term);
+        if (index < 0) return false;
+        boolean changed = leaf.values[index].remove(value);
+        if (leaf.values[index].isEmpty()) {
+            leaf.removeAt(index);
+            this.numKeyTerms--;
+        }
+        return changed;
+    }
+
+    /**
+     * Removes all the values associated with the provided {@code term}
+     * @param term {@link Term} whose values are to be removed
+     * @return The {@code List} of values that were removed. If no values were
+     * removed, then an <i>empty</i> {@code List} is returned.
+     */
+    public List<V> removeAll(Term term) {
+        term = keyOf(term);
+        Leaf<V> leaf = this.findLeaf(term);
+        int index = leaf.indexOf(term);
+        if (index < 0) return new ArrayList<>();
+        List<V> removed = leaf.values[index];
+        leaf.removeAt(index);
+        this.numKeyTerms--;
+        return removed;
+    }
+
+    /**
+     * Removes all the key terms and values from the map
+     */
+    public void clear() {
+        this.firstLeaf.clear();
+        this.root = this.firstLeaf;
+        this.numKeyTerms = 0;
+    }
+
+    /**
+     * Indicates whether this {@link SortedTermMap} is empty
+     * @return {@code true} is this map is empty. {@code false} otherwise.
+     */
+    public boolean isEmpty() {
+        return this.numKeyTerms == 0;
+    }
+
+    /**
+     * Returns the number of distinct key terms in the {@link SortedTermMap}
+     * @return Number of distinct key terms
+     */
+    public int getNumKeyTerms() {
+        return this.numKeyTerms;
+    }
+
+    /**
+     * Returns the size of the {@link SortedTermMap}, i.e., the number of values
+     * associated with all its key terms
+     * @return Number of values contained in this map
+     */
+    public int getSize() {
+        int size = 0;
+        for (Leaf<V> leaf = this.firstLeaf; leaf != null; leaf = leaf.next) {
+            for (int i=0; i<leaf.count; i++) size += leaf.values[i].size();
+        }
+        return size;
+    }
+
+    /**
+     * Returns the list of key terms of this map, in ascending order
+     * @return {@code List} of key terms. If the map is empty, then an
+     * <i>empty</i> {@code List} is returned.
+     */
+    public List<Term> getKeyTerms() {
+        return this.getKeyTerms(null, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns a page of key terms in ascending order. To iterate through all
+     * the key terms, pass {@code null} for the first page, then the last term
+     * of each page to get the next one.
+     *
+     * @param after Key terms up to and including {@code after} are skipped.
+     * If this is {@code null} then the page starts at the first key term.
+     * @param limit Maximum number of key terms to return
+     * @return {@code List} of at most {@code limit} key terms following
+     * {@code after}. If there are no such terms then an <i>empty</i> {@code List}
+     * is returned.
+     */
+    public List<Term> getKeyTerms(Term after, int limit) {
+        List<Term> terms = new ArrayList<>();
+        Cursor<V> cursor;
+        if (after == null) cursor = new Cursor<>(this.firstLeaf, 0);
+        else cursor = this.seek(after, false);
+        while (terms.size() < limit && cursor.valid()) {
+            terms.add(cursor.leaf.keys[cursor.index]);
+            cursor.advance();
+        }
+        return terms;
+    }
+
+    /**
+     * Returns a copy of the portion of this map whose key terms range from
+     * {@code fromTerm}, inclusive, to {@code toTerm}, exclusive
+     * @param fromTerm Low endpoint (inclusive) of the key terms
+     * @param toTerm High endpoint (exclusive) of the key terms
+     * @return {@link SortedTermMap} containing the key terms in range with
+     * their values. Changes to the returned map will not update this map.
+     */
+    public SortedTermMap<V> subMap(Term fromTerm, Term toTerm) {
+        return this.copyRange(keyOf(fromTerm), keyOf(toTerm));
+    }
+
+    /**
+     * Returns a copy of the portion of this map whose key terms are strictly
+     * less than {@code toTerm}
+     * @param toTerm High endpoint (exclusive) of the key terms
+     * @return {@link SortedTermMap} containing the key terms in range with
+     * their values. Changes to the returned map will not update this map.
+     */
+    public SortedTermMap<V> headMap(Term toTerm) {
+        return this.copyRange(null, keyOf(toTerm));
+    }
+
+    /**
+     * Returns a copy of the portion of this map whose key terms are greater
+     * than or equal to {@code fromTerm}
+     * @param fromTerm Low endpoint (inclusive) of the key terms
+     * @return {@link SortedTermMap} containing the key terms in range with
+     * their values. Changes to the returned map will not update this map.
+     */
+    public SortedTermMap<V> tailMap(Term fromTerm) {
+        return this.copyRange(keyOf(fromTerm), null);
+    }
+
+    /**
+     * Returns an iterator over the {@code term-value} pairs of this map, in
+     * ascending order of the key terms
+     *
+     * <p>The returned iterator does not support {@code remove()}. The map must
+     * not be modified while the iteration is in progress.
+     *
+     * @return Iterator over the {@code term-value} pairs of this map
+     */
+    public Iterator<Map.Entry<Term,V>> entryIterator() {
+        final Cursor<V> cursor = new Cursor<>(this.firstLeaf, 0);
+        return new Iterator<Map.Entry<Term,V>>() {
+            private int valueIndex;
+
+            @Override
+            public boolean hasNext() {
+                return cursor.valid();
+            }
+
+            @Override
+            public Map.Entry<Term,V> next() {
+                if (!cursor.valid()) throw new NoSuchElementException();
+                Term term = cursor.leaf.keys[cursor.index];
+                List<V> values = cursor.leaf.values[cursor.index];
+                V value = values.get(this.valueIndex++);
+                if (this.valueIndex >= values.size()) {
+                    this.valueIndex = 0;
+                    cursor.advance();
+                }
+                return new AbstractMap.SimpleImmutableEntry<>(term, value);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("Removal is not supported by sorted term map entry iterators");
+            }
+        };
+    }
+
+    /**
+     * Copies the key terms in range {@code [from, to)} into a new map. Keys
+     * arrive in ascending order, so they are appended to the rightmost leaf.
+     */
+    private SortedTermMap<V> copyRange(Term from, Term to) {
+        SortedTermMap<V> copy = new SortedTermMap<>();
+        Cursor<V> cursor;
+        if (from == null) cursor = new Cursor<>(this.firstLeaf, 0);
+        else cursor = this.seek(from, true);
+        while (cursor.valid()) {
+            Term term = cursor.leaf.keys[cursor.index];
+            if (to != null && term.compareTo(to) >= 0) break;
+            copy.valuesFor(term).addAll(cursor.leaf.values[cursor.index]);
+            cursor.advance();
+        }
+        return copy;
+    }
+
+    /**
+     * Returns a cursor on the first key term greater than (or equal to, if
+     * {@code inclusive}) the provided term
+     */
+    private Cursor<V> seek(Term term, boolean inclusive) {
+        Leaf<V> leaf = this.findLeaf(term);
+        int index = leaf.indexOf(term);
+        if (index >= 0) {
+            if (!inclusive) index++;
+        }
+        else index = -index - 1;
+        return new Cursor<>(leaf, index);
+    }
+
+    /**
+     * Returns the value list of a key term, inserting the key term with an
+     * empty list if it is not in the map
+     */
+    private List<V> valuesFor(Term term) {
+        Leaf<V> leaf = this.findLeaf(term);
+        int index = leaf.indexOf(term);
+        if (index >= 0) return leaf.values[index];
+
+        List<V> values = new ArrayList<>(1);
+        Split split = this.insert(this.root, term, values);
+        if (split != null) {
+            Inner newRoot = new Inner();
+            newRoot.keys[0] = split.key;
+            newRoot.children[0] = this.root;
+            newRoot.children[1] = split.node;
+            newRoot.count = 1;
+            this.root = newRoot;
+        }
+        this.numKeyTerms++;
+        return values;
+    }
+
+    /**
+     * Inserts a new key term under the provided node
+     * @return The split of {@code node} if it overflowed, {@code null} otherwise
+     */
+    @SuppressWarnings("unchecked")
+    private Split insert(Node node, Term term, List<V> values) {
+        if (node instanceof Leaf) {
+            Leaf<V> leaf = (Leaf<V>) node;
+            leaf.insertAt(-leaf.indexOf(term) - 1, term, values);
+            if (leaf.count > NODE_CAPACITY) return leaf.split();
+            else return null;
+        }
+        Inner inner = (Inner) node;
+        int childIndex = inner.childIndex(term);
+        Split split = this.insert(inner.children[childIndex], term, values);
+        if (split == null) return null;
+        inner.insertAt(childIndex, split.key, split.node);
+        if (inner.count > NODE_CAPACITY) return inner.split();
+        else return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Leaf<V> findLeaf(Term term) {
+        Node node = this.root;
+        while (node instanceof Inner) {
+            Inner inner = (Inner) node;
+            node = inner.children[inner.childIndex(term)];
+        }
+        return (Leaf<V>) node;
+    }
+
+    /**
+     * Replaces a {@code null} term with the empty term
+     */
+    private static Term keyOf(Term term) {
+        if (term != null) return term;
+        else return new Term(null, null);
+    }
+
+    /**
+     * Binary search of {@code term} among the first {@code count} keys
+     * @return Index of {@code term} if found, otherwise {@code -(insertion point) - 1}
+     */
+    private static int search(Term[] keys, int count, Term term) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = keys[mid].compareTo(term);
+            if (cmp < 0) low = mid + 1;
+            else if (cmp > 0) high = mid - 1;
+            else return mid;
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * Node of the B+tree. Arrays have one spare slot so that a node may
+     * overflow by one key before it is split.
+     */
+    private abstract static class Node {
+        final Term[] keys = new Term[NODE_CAPACITY + 1];
+        int count;
+    }
+
+    /**
+     * Inner node: {@code keys[i]} is the smallest key term under {@code children[i+1]}
+     */
+    private static final class Inner extends Node {
+        final Node[] children = new Node[NODE_CAPACITY + 2];
+
+        int childIndex(Term term) {
+            int index = search(this.keys, this.count, term);
+            if (index >= 0) return index + 1;
+            else return -index - 1;
+        }
+
+        void insertAt(int childIndex, Term key, Node child) {
+            System.arraycopy(this.keys, childIndex, this.keys, childIndex + 1, this.count - childIndex);
+            System.arraycopy(this.children, childIndex + 1, this.children, childIndex + 2, this.count - childIndex);
+            this.keys[childIndex] = key;
+            this.children[childIndex + 1] = child;
+            this.count++;
+        }
+
+        Split split() {
+            int mid = this.count / 2;
+            Inner right = new Inner();
+            right.count = this.count - mid - 1;
+            System.arraycopy(this.keys, mid + 1, right.keys, 0, right.count);
+            System.arraycopy(this.children, mid + 1, right.children, 0, right.count + 1);
+            Term separator = this.keys[mid];
+            for (int i=mid; i<this.count; i++) {
+                this.keys[i] = null;
+                this.children[i + 1] = null;
+            }
+            this.count = mid;
+            return new Split(separator, right);
+        }
+    }
+
+    /**
+     * Leaf node holding key terms with their value lists
+     */
+    private static final class Leaf<V> extends Node {
+        @SuppressWarnings("unchecked")
+        final List<V>[] values = (List<V>[]) new List<?>[NODE_CAPACITY + 1];
+        Leaf<V> next;
+
+        int indexOf(Term term) {
+            return search(this.keys, this.count, term);
+        }
+
+        void insertAt(int index, Term term, List<V> termValues) {
+            System.arraycopy(this.keys, index, this.keys, index + 1, this.count - index);
+            System.arraycopy(this.values, index, this.values, index + 1, this.count - index);
+            this.keys[index] = term;
+            this.values[index] = termValues;
+            this.count++;
+        }
+
+        void removeAt(int index) {
+            System.arraycopy(this.keys, index + 1, this.keys, index, this.count - index - 1);
+            System.arraycopy(this.values, index + 1, this.values, index, this.count - index - 1);
+            this.count--;
+            this.keys[this.count] = null;
+            this.values[this.count] = null;
+        }
+
+        void clear() {
+            for (int i=0; i<this.count; i++) {
+                this.keys[i] = null;
+                this.values[i] = null;
+            }
+            this.count = 0;
+            this.next = null;
+        }
+
+        Split split() {
+            int mid = this.count / 2;
+            Leaf<V> right = new Leaf<>();
+            right.count = this.count - mid;
+            System.arraycopy(this.keys, mid, right.keys, 0, right.count);
+            System.arraycopy(this.values, mid, right.values, 0, right.count);
+            for (int i=mid; i<this.count; i++) {
+                this.keys[i] = null;
+                this.values[i] = null;
+            }
+            this.count = mid;
+            right.next = this.next;
+            this.next = right;
+            return new Split(right.keys[0], right);
+        }
+    }
+
+    /**
+     * Result of a node split: the new right sibling and its separator key
+     */
+    private static final class Split {
+        final Term key;
+        final Node node;
+
+        Split(Term key, Node node) {
+            this.key = key;
+            this.node = node;
+        }
+    }
+
+    /**
+     * Position of a key term in the chain of leaves
+     */
+    private static final class Cursor<V> {
+        Leaf<V> leaf;
+        int index;
+
+        Cursor(Leaf<V> leaf, int index) {
+            this.leaf = leaf;
+            this.index = index;
+            this.skipExhaustedLeaves();
+        }
+
+        boolean valid() {
+            return this.leaf != null;
+        }
+
+        void advance() {
+            this.index++;
+            this.skipExhaustedLeaves();
+        }
+
+        void skipExhaustedLeaves() {
+            while (this.leaf != null && this.index >= this.leaf.count) {
+                this.leaf = this.leaf.next;
+                this.index = 0;
+            }
+        }
+    }
+}
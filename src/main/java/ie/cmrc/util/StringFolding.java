@@ -0,0 +1,199 @@
+/*
+ * Copyright 2015 Coastal and Marine Research Centre (CMRC), Beaufort,
+ * Environmental Research Institute (ERI), University College Cork (UCC).
+ * Yassine Lassoued <y.lassoued@gmail.com, y.lassoued@ucc.ie>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.cmrc.util;
+
+import java.text.Normalizer;
+import java.util.Locale;
+
+/**
+ * Utility class for locale-independent case and diacritic folding of strings.
+ *
+ * <p>Pure ASCII strings are folded by a fast path that does not go through
+ * the Unicode tables, and that returns the input string itself when it is
+ * already in folded form. Other strings are folded with {@link Locale#ROOT}
+ * rules, using a {@link Buffer} that is reused across calls by the same thread.
+ *
+ * @author Yassine Lassoued
+ */
+public final class StringFolding {
+
+    /**
+     * Normalizer folding term strings to lower case
+     */
+    public static final KeyNormalizer CASE_FOLD = new KeyNormalizer() {
+        @Override
+        public String normalize(String string) {
+            return foldCase(string);
+        }
+    };
+
+    /**
+     * Normalizer folding term strings to lower case and removing their
+     * diacritics, e.g., <i>&Eacute;ire</i> becomes <i>eire</i>
+     */
+    public static final KeyNormalizer CASE_AND_DIACRITIC_FOLD = new KeyNormalizer() {
+        @Override
+        public String normalize(String string) {
+            return foldCaseAndDiacritics(string);
+        }
+    };
+
+    private static final ThreadLocal<Buffer> BUFFERS = new ThreadLocal<Buffer>() {
+        @Override
+        protected Buffer initialValue() {
+            return new Buffer();
+        }
+    };
+
+    private StringFolding() {
+    }
+
+    /**
+     * Folds the provided string to lower case
+     * @param string String to fold. This may be {@code null}.
+     * @return Lower case form of {@code string}. If {@code string} is an ASCII
+     * string already in lower case then it is returned as is.
+     */
+    public static String foldCase(String string) {
+        if (string == null) return null;
+        else return BUFFERS.get().foldCase(string);
+    }
+
+    /**
+     * Folds the provided string to lower case and removes its diacritics, i.e.,
+     * the combining marks (non-spacing, spacing and enclosing) obtained after
+     * an NFKD decomposition
+     * @param string String to fold. This may be {@code null}.
+     * @return Folded form of {@code string}. If {@code string} is an ASCII
+     * string already in lower case then it is returned as is.
+     */
+    public static String foldCaseAndDiacritics(String string) {
+        if (string == null) return null;
+        else return BUFFERS.get().foldCaseAndDiacritics(string);
+    }
+
+    /**
+     * Converts the provided string to upper case using locale-independent rules
+     * @param string String to convert. This may be {@code null}.
+     * @return Upper case form of {@code string}. If {@code string} is an ASCII
+     * string already in upper case then it is returned as is.
+     */
+    public static String toUpperCase(String string) {
+        if (string == null) return null;
+        int length = string.length();
+        int i = 0;
+        while (i < length) {
+            char c = string.charAt(i);
+            if (c >= 0x80) return string.toUpperCase(Locale.ROOT);
+            if (c >= 'a' && c <= 'z') break;
+            i++;
+        }
+        if (i == length) return string;
+        char[] chars = string.toCharArray();
+        for (; i < length; i++) {
+            char c = chars[i];
+            if (c >= 0x80) return string.toUpperCase(Locale.ROOT);
+            if (c >= 'a' && c <= 'z') chars[i] = (char) (c - ('a' - 'A'));
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Reusable folding buffer. A buffer is not thread-safe, but may be kept by
+     * a thread to fold many query strings without reallocating its work area.
+     */
+    public static final class Buffer {
+
+        private char[] chars = new char[64];
+
+        /**
+         * Folds the provided string to lower case
+         * @param string String to fold. This must not be {@code null}.
+         * @return Lower case form of {@code string}
+         * @see StringFolding#foldCase(java.lang.String)
+         */
+        public String foldCase(String string) {
+            int length = string.length();
+            int i = this.asciiLowerCasePrefix(string);
+            if (i == length) return string;
+            if (i < 0) return string.toLowerCase(Locale.ROOT);
+            char[] buffer = this.buffer(length);
+            string.getChars(0, length, buffer, 0);
+            for (; i < length; i++) {
+                char c = buffer[i];
+                if (c >= 'A' && c <= 'Z') buffer[i] = (char) (c + ('a' - 'A'));
+            }
+            return new String(buffer, 0, length);
+        }
+
+        /**
+         * Folds the provided string to lower case and removes its diacritics
+         * @param string String to fold. This must not be {@code null}.
+         * @return Folded form of {@code string}
+         * @see StringFolding#foldCaseAndDiacritics(java.lang.String)
+         */
+        public String foldCaseAndDiacritics(String string) {
+            if (this.asciiLowerCasePrefix(string) >= 0) return this.foldCase(string);
+
+            // Lower case comes last, as NFKD may yield upper case letters
+            // (e.g. U+210C becomes H)
+            String decomposed = Normalizer.normalize(string, Normalizer.Form.NFKD);
+            int length = decomposed.length();
+            char[] buffer = this.buffer(length);
+            int n = 0;
+            for (int i=0; i<length; i++) {
+                char c = decomposed.charAt(i);
+                if (!isMark(c)) buffer[n++] = c;
+            }
+            return new String(buffer, 0, n).toLowerCase(Locale.ROOT);
+        }
+
+        /**
+         * Checks whether a character is a combining mark of any kind (Mn, Mc
+         * or Me)
+         */
+        private static boolean isMark(char c) {
+            int type = Character.getType(c);
+            return type == Character.NON_SPACING_MARK || type == Character.COMBINING_SPACING_MARK
+                    || type == Character.ENCLOSING_MARK;
+        }
+
+        /**
+         * Returns the length of the longest prefix of {@code string} made of
+         * ASCII characters that are not upper case letters, or -1 if
+         * {@code string} contains a non-ASCII character
+         */
+        private int asciiLowerCasePrefix(String string) {
+            int length = string.length();
+            int prefix = -1;
+            for (int i=0; i<length; i++) {
+                char c = string.charAt(i);
+                if (c >= 0x80) return -1;
+                if (prefix < 0 && c >= 'A' && c <= 'Z') prefix = i;
+            }
+            if (prefix < 0) return length;
+            else return prefix;
+        }
+
+        private char[] buffer(int length) {
+            if (this.chars.length < length) this.chars = new char[Math.max(length, 2 * this.chars.length)];
+            return this.chars;
+        }
+    }
+}
@@ -18,7 +18,6 @@
 
 package ie.cmrc.util;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 
 /**
@@ -29,37 +28,108 @@ import java.util.Arrays;
  */
 public class StringMatcher {
 
-    /** 
-     * 
-     * @return an array of adjacent letter pairs contained in the input string
-     */
-    private static String[] letterPairs(String str) {
-        int numPairs = str.length()-1;
-        String[] pairs;
-        if (numPairs>0) pairs = new String[numPairs];
-        else pairs = new String[0];
-        for (int i=0; i<numPairs; i++) {
-            pairs[i] = str.substring(i,i+2);
-        }
-        return pairs;
-    }
-
-
-    /**
-     * 
-     * @return an ArrayList of 2-character Strings.
-     */
-   private static ArrayList wordLetterPairs(String str) {
-       ArrayList allPairs = new ArrayList();
-       // Tokenize the string and put the tokens/words into an array
-       String[] words = str.split("\\s");
-        // For each word
-        for (String word : words) {
-            // Find the pairs of characters
-            String[] pairsInWord = letterPairs(word);
-            allPairs.addAll(Arrays.asList(pairsInWord));
-        }
-       return allPairs;
+   /**
+    * Masks of the SWAR kernel, which handles four ASCII characters at a time,
+    * one per 16-bit lane of a {@code long}: the top bit of each lane, and
+    * one in each lane
+    */
+   private static final long LANE_TOP_BITS = 0x8000800080008000L;
+   private static final long LANE_ONES = 0x0001000100010001L;
+   private static final long NON_ASCII_BITS = 0xFF80FF80FF80FF80L;
+
+   /**
+    * Number of distinct ASCII letter pair codes, see {@link #asciiPairCodes}
+    */
+   private static final int NUM_ASCII_PAIR_CODES = 1 << 14;
+
+   /**
+    * Per thread buffers of the SWAR kernel
+    */
+   private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+       @Override
+       protected Scratch initialValue() {
+           return new Scratch();
+       }
+   };
+
+   /**
+    * Returns the adjacent letter pairs of a string, as compared by
+    * {@link #compareStrings(java.lang.String, java.lang.String)}: the string is
+    * upper cased, and pairs spanning a white space are skipped. Each pair is
+    * packed into an {@code int} as {@code (first << 16) | second}.
+    * @param str Input string
+    * @return Packed letter pairs, in the order in which they appear in the string
+    */
+   static int[] letterPairCodes(String str) {
+       int[] codes = asciiLetterPairCodes(str);
+       if (codes != null) return codes;
+       String upper = StringFolding.toUpperCase(str);
+       codes = new int[Math.max(0, upper.length() - 1)];
+       int n = 0;
+       for (int i=0; i+1<upper.length(); i++) {
+           char first = upper.charAt(i);
+           char second = upper.charAt(i + 1);
+           if (!isSeparator(first) && !isSeparator(second)) codes[n++] = (first << 16) | second;
+       }
+       return (n == codes.length) ? codes : Arrays.copyOf(codes, n);
+   }
+
+
+   /**
+    * Computes the letter pairs of an ASCII string, upper casing its characters
+    * on the fly instead of creating an upper cased copy of the string
+    * @return Packed letter pairs, or {@code null} if the string has a non
+    * ASCII character
+    */
+   private static int[] asciiLetterPairCodes(String str) {
+       int length = str.length();
+       int[] codes = new int[Math.max(0, length - 1)];
+       int n = 0;
+       char previous = 0;
+       boolean previousInWord = false;
+       for (int i=0; i<length; i++) {
+           char c = str.charAt(i);
+           if (c >= 0x80) return null;
+           if (c >= 'a' && c <= 'z') c = (char) (c - ('a' - 'A'));
+           boolean inWord = !isSeparator(c);
+           if (previousInWord && inWord) codes[n++] = (previous << 16) | c;
+           previous = c;
+           previousInWord = inWord;
+       }
+       return (n == codes.length) ? codes : Arrays.copyOf(codes, n);
+   }
+
+
+   /**
+    * Counts the elements common to two sorted arrays, each element of either
+    * array matching at most one element of the other
+    * @param sorted1 First array, in ascending order
+    * @param sorted2 Second array, in ascending order
+    * @return Size of the multiset intersection of the arrays
+    */
+   static int intersectionSize(int[] sorted1, int[] sorted2) {
+       int intersection = 0;
+       int i = 0;
+       int j = 0;
+       while (i < sorted1.length && j < sorted2.length) {
+           if (sorted1[i] < sorted2[j]) i++;
+           else if (sorted1[i] > sorted2[j]) j++;
+           else {
+               intersection++;
+               i++;
+               j++;
+           }
+       }
+       return intersection;
+   }
+
+
+   /**
+    * Checks whether a character separates words, as per the {@code \\s}
+    * regular expression
+    */
+   private static boolean isSeparator(char c) {
+       return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
    }
 
 
@@ -72,25 +142,162 @@ public class StringMatcher {
     */
    public static double compareStrings(String str1, String str2) {
         if (str1!=null && str2!=null) {
-            ArrayList pairs1 = wordLetterPairs(str1.toUpperCase());
-            ArrayList pairs2 = wordLetterPairs(str2.toUpperCase());
-            int intersection = 0;
-            int union = pairs1.size() + pairs2.size();
-            for (Object pair1 : pairs1) {
-                for(int j=0; j<pairs2.size(); j++) {
-                    Object pair2=pairs2.get(j);
-                    if (pair1.equals(pair2)) {
-                        intersection++;
-                        pairs2.remove(j);
-                        break;
-                    }
-                }
-            }
-           return (2.0*intersection)/union;
+            // -1 flags a non ASCII string, which the SWAR kernel leaves to
+            // the general path
+            double score = compareAsciiStrings(str1, str2, SCRATCH.get());
+            if (score != -1) return score;
+            else return compareSortedPairs(str1, str2);
         }
         else return 0;
    }
 
 
+   /**
+    * Computes the similarity of two strings by sorting their packed letter
+    * pairs and merging them. This handles any string.
+    */
+   static double compareSortedPairs(String str1, String str2) {
+       int[] pairs1 = letterPairCodes(str1);
+       int[] pairs2 = letterPairCodes(str2);
+       int union = pairs1.length + pairs2.length;
+       Arrays.sort(pairs1);
+       Arrays.sort(pairs2);
+       return (2.0*intersectionSize(pairs1, pairs2))/union;
+   }
+
+
+   /**
+    * Computes the similarity of two ASCII strings without sorting: the
+    * letter pairs are extracted by the SWAR kernel as 14-bit codes, and the
+    * common pairs are counted with a table indexed by code
+    * @return Similarity of the strings, or -1 if either string has a non
+    * ASCII character
+    */
+   static double compareAsciiStrings(String str1, String str2, Scratch scratch) {
+       int n1 = asciiPairCodes(str1, scratch, 0);
+       if (n1 < 0) return -1;
+       int n2 = asciiPairCodes(str2, scratch, 1);
+       if (n2 < 0) return -1;
+       short[] codes1 = scratch.codes[0];
+       short[] codes2 = scratch.codes[1];
+       int[] counts = scratch.counts;
+       for (int i=0; i<n1; i++) counts[codes1[i]]++;
+       int intersection = 0;
+       for (int i=0; i<n2; i++) {
+           int code = codes2[i];
+           if (counts[code] > 0) {
+               counts[code]--;
+               intersection++;
+           }
+       }
+       for (int i=0; i<n1; i++) counts[codes1[i]] = 0;
+       return (2.0*intersection)/(n1 + n2);
+   }
+
+
+   /**
+    * Extracts the letter pairs of an ASCII string into
+    * {@code scratch.codes[slot]}. Four characters are upper cased and
+    * classified at once, each in a 16-bit lane of a {@code long}, and a pair
+    * is coded on 14 bits as {@code (first << 7) | second}.
+    * @return Number of letter pairs, or -1 if the string has a non ASCII
+    * character
+    */
+   private static int asciiPairCodes(String str, Scratch scratch, int slot) {
+       int length = str.length();
+       int numBlocks = (length + 3) >>> 2;
+       // The characters are followed by spaces, which end the last pair and
+       // fill the look-ahead block
+       char[] chars = scratch.chars(4 * (numBlocks + 1));
+       str.getChars(0, length, chars, 0);
+       Arrays.fill(chars, length, 4 * (numBlocks + 1), ' ');
+       short[] codes = scratch.codes(slot, length);
+
+       int n = 0;
+       long block = pack(chars, 0);
+       if ((block & NON_ASCII_BITS) != 0) return -1;
+       long upper = toUpperCase(block);
+       long separators = separators(upper);
+       for (int b=0; b<numBlocks; b++) {
+           long nextBlock = pack(chars, 4 * (b + 1));
+           if ((nextBlock & NON_ASCII_BITS) != 0) return -1;
+           long nextUpper = toUpperCase(nextBlock);
+           long nextSeparators = separators(nextUpper);
+
+           // Lane k of the shifted words holds character k+1 of the block
+           long seconds = (upper << 16) | (nextUpper >>> 48);
+           long secondSeparators = (separators << 16) | (nextSeparators >>> 48);
+           long pairs = (upper << 7) | seconds;
+           long valid = ~(separators | secondSeparators) & LANE_TOP_BITS;
+           while (valid != 0) {
+               int shift = 63 - Long.numberOfLeadingZeros(valid) - 15;
+               codes[n++] = (short) ((pairs >>> shift) & (NUM_ASCII_PAIR_CODES - 1));
+               valid &= ~(1L << (shift + 15));
+           }
+
+           upper = nextUpper;
+           separators = nextSeparators;
+       }
+       return n;
+   }
+
+
+   /**
+    * Packs four characters into a {@code long}, the first one in the highest lane
+    */
+   private static long pack(char[] chars, int offset) {
+       return ((long) chars[offset] << 48) | ((long) chars[offset + 1] << 32)
+               | ((long) chars[offset + 2] << 16) | chars[offset + 3];
+   }
+
+
+   /**
+    * Sets the top bit of the lanes holding a character at least {@code c}.
+    * Lanes must hold ASCII characters.
+    */
+   private static long atLeast(long lanes, int c) {
+       return (lanes + (0x8000 - c) * LANE_ONES) & LANE_TOP_BITS;
+   }
+
+
+   /**
+    * Upper cases the ASCII letters of four ASCII lanes
+    */
+   private static long toUpperCase(long lanes) {
+       long lowerCase = atLeast(lanes, 'a') & ~atLeast(lanes, 'z' + 1);
+       return lanes - (lowerCase >>> 10);
+   }
+
+
+   /**
+    * Sets the top bit of the lanes holding a separator, as per
+    * {@link #isSeparator(char)}: the characters from tab to carriage return,
+    * and space. Lanes must hold ASCII characters.
+    */
+   private static long separators(long lanes) {
+       return (atLeast(lanes, '\t') & ~atLeast(lanes, '\r' + 1))
+               | (atLeast(lanes, ' ') & ~atLeast(lanes, ' ' + 1));
+   }
+
+
+   /**
+    * Buffers of the SWAR kernel, reused across the calls of a thread
+    */
+   static final class Scratch {
+
+       private char[] chars = new char[64];
+       private final short[][] codes = {new short[64], new short[64]};
+       private final int[] counts = new int[NUM_ASCII_PAIR_CODES];
+
+       char[] chars(int length) {
+           if (this.chars.length < length) this.chars = new char[Math.max(length, 2 * this.chars.length)];
+           return this.chars;
+       }
+
+       short[] codes(int slot, int length) {
+           if (this.codes[slot].length < length) this.codes[slot] = new short[Math.max(length, 2 * this.codes[slot].length)];
+           return this.codes[slot];
+       }
+   }
 
 }
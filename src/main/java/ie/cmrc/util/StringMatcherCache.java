@@ -0,0 +1,272 @@
+/*
+ * Copyright 2015 Coastal and Marine Research Centre (CMRC), Beaufort,
+ * Environmental Research Institute (ERI), University College Cork (UCC).
+ * Yassine Lassoued <y.lassoued@gmail.com, y.lassoued@ucc.ie>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.cmrc.util;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded, thread-safe memoising cache in front of
+ * {@link StringMatcher#compareStrings(java.lang.String, java.lang.String)}.
+ *
+ * <p>Since the similarity is symmetric, a pair of strings is cached once
+ * regardless of the order in which it is compared. Scores are kept as primitive
+ * {@code double} values in preallocated arrays, and when the cache is full the
+ * entry to replace is chosen with the CLOCK (second chance) algorithm, so a
+ * repeated comparison costs a single hash lookup.
+ *
+ * @author Yassine Lassoued
+ */
+public class StringMatcherCache {
+
+    /**
+     * Maximum number of independently locked segments
+     */
+    private static final int MAX_SEGMENTS = 16;
+
+    private final Segment[] segments;
+
+    /**
+     * Shift selecting the segment from the high bits of a pair hash, the low
+     * bits being used for the buckets of the segment
+     */
+    private final int segmentShift;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Constructs an empty cache
+     * @param maximumSize Maximum number of string pairs whose similarity is cached.
+     * This must be positive.
+     */
+    public StringMatcherCache(int maximumSize) {
+        if (maximumSize <= 0) throw new IllegalArgumentException("Maximum size must be positive: " + maximumSize);
+        int numSegments = 1;
+        while (numSegments < MAX_SEGMENTS && numSegments * 2 <= maximumSize) numSegments *= 2;
+        this.segments = new Segment[numSegments];
+        this.segmentShift = 32 - Integer.numberOfTrailingZeros(numSegments);
+        for (int i=0; i<numSegments; i++) {
+            int capacity = maximumSize / numSegments;
+            if (i < maximumSize % numSegments) capacity++;
+            this.segments[i] = new Segment(capacity);
+        }
+    }
+
+    /**
+     * Computes the lexical similarity between two strings as per
+     * {@link StringMatcher#compareStrings(java.lang.String, java.lang.String)},
+     * reusing the cached result if that pair of strings was compared before.
+     * @param str1 First string
+     * @param str2 Second string
+     * @return lexical similarity value in the range [0,1]
+     */
+    public double compareStrings(String str1, String str2) {
+        if (str1 == null || str2 == null) return StringMatcher.compareStrings(str1, str2);
+
+        int hash = pairHash(str1, str2);
+        Segment segment = this.segments[(hash >>> this.segmentShift) & (this.segments.length - 1)];
+        segment.lock();
+        try {
+            int slot = segment.find(hash, str1, str2);
+            if (slot >= 0) {
+                this.hitCount.incrementAndGet();
+                segment.referenced[slot] = true;
+                return segment.scores[slot];
+            }
+        }
+        finally {
+            segment.unlock();
+        }
+
+        this.missCount.incrementAndGet();
+        double score = StringMatcher.compareStrings(str1, str2);
+        segment.lock();
+        try {
+            if (segment.find(hash, str1, str2) < 0) segment.insert(hash, str1, str2, score);
+        }
+        finally {
+            segment.unlock();
+        }
+        return score;
+    }
+
+    /**
+     * Removes all the cached scores. Statistics are not reset.
+     */
+    public void clear() {
+        for (Segment segment: this.segments) {
+            segment.lock();
+            try {
+                segment.clear();
+            }
+            finally {
+                segment.unlock();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of string pairs whose similarity is currently cached
+     * @return Number of cached pairs
+     */
+    public int size() {
+        int n = 0;
+        for (Segment segment: this.segments) {
+            segment.lock();
+            try {
+                n += segment.count;
+            }
+            finally {
+                segment.unlock();
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Number of comparisons answered from the cache
+     * @return Hit count
+     */
+    public long getHitCount() {
+        return this.hitCount.get();
+    }
+
+    /**
+     * Number of comparisons that had to be computed
+     * @return Miss count
+     */
+    public long getMissCount() {
+        return this.missCount.get();
+    }
+
+    /**
+     * Ratio of comparisons answered from the cache
+     * @return Hit rate in the range [0,1]. If no comparisons were made then 1 is returned.
+     */
+    public double getHitRate() {
+        long hits = this.hitCount.get();
+        long requests = hits + this.missCount.get();
+        if (requests == 0) return 1.0;
+        else return (double) hits / requests;
+    }
+
+    /**
+     * Order-independent hash of a pair of strings
+     */
+    private static int pairHash(String str1, String str2) {
+        int h = mix(str1.hashCode()) + mix(str2.hashCode());
+        return h ^ (h >>> 16);
+    }
+
+    private static int mix(int h) {
+        h *= 0x9e3779b9;
+        return h ^ (h >>> 15);
+    }
+
+    /**
+     * Independently locked part of the cache. Entries are stored column-wise in
+     * parallel arrays and chained into hash buckets through {@code next}.
+     */
+    private static final class Segment extends ReentrantLock {
+
+        private static final long serialVersionUID = 1L;
+
+        final int capacity;
+        final int[] buckets;
+        final int[] next;
+        final int[] hashes;
+        final String[] firsts;
+        final String[] seconds;
+        final double[] scores;
+        final boolean[] referenced;
+        int count;
+        int hand;
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+            int numBuckets = 1;
+            while (numBuckets < capacity) numBuckets <<= 1;
+            this.buckets = new int[numBuckets];
+            Arrays.fill(this.buckets, -1);
+            this.next = new int[capacity];
+            this.hashes = new int[capacity];
+            this.firsts = new String[capacity];
+            this.seconds = new String[capacity];
+            this.scores = new double[capacity];
+            this.referenced = new boolean[capacity];
+        }
+
+        int find(int hash, String str1, String str2) {
+            int slot = this.buckets[hash & (this.buckets.length - 1)];
+            while (slot >= 0) {
+                if (this.hashes[slot] == hash) {
+                    String first = this.firsts[slot];
+                    String second = this.seconds[slot];
+                    if ((first.equals(str1) && second.equals(str2)) || (first.equals(str2) && second.equals(str1))) return slot;
+                }
+                slot = this.next[slot];
+            }
+            return -1;
+        }
+
+        void insert(int hash, String str1, String str2, double score) {
+            int slot;
+            if (this.count < this.capacity) slot = this.count++;
+            else {
+                // CLOCK: skip (and clear) recently referenced entries
+                while (this.referenced[this.hand]) {
+                    this.referenced[this.hand] = false;
+                    this.hand = (this.hand + 1) % this.capacity;
+                }
+                slot = this.hand;
+                this.hand = (this.hand + 1) % this.capacity;
+                this.unlink(slot);
+            }
+            int bucket = hash & (this.buckets.length - 1);
+            this.hashes[slot] = hash;
+            this.firsts[slot] = str1;
+            this.seconds[slot] = str2;
+            this.scores[slot] = score;
+            this.referenced[slot] = false;
+            this.next[slot] = this.buckets[bucket];
+            this.buckets[bucket] = slot;
+        }
+
+        void clear() {
+            Arrays.fill(this.buckets, -1);
+            Arrays.fill(this.firsts, null);
+            Arrays.fill(this.seconds, null);
+            Arrays.fill(this.referenced, false);
+            this.count = 0;
+            this.hand = 0;
+        }
+
+        private void unlink(int slot) {
+            int bucket = this.hashes[slot] & (this.buckets.length - 1);
+            if (this.buckets[bucket] == slot) this.buckets[bucket] = this.next[slot];
+            else {
+                int previous = this.buckets[bucket];
+                while (this.next[previous] != slot) previous = this.next[previous];
+                this.next[previous] = this.next[slot];
+            }
+        }
+    }
+}
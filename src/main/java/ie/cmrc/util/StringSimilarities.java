@@ -0,0 +1,367 @@
+/*
+ * Copyright 2015 Coastal and Marine Research Centre (CMRC), Beaufort,
+ * Environmental Research Institute (ERI), University College Cork (UCC).
+ * Yassine Lassoued <y.lassoued@gmail.com, y.lassoued@ucc.ie>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.cmrc.util;
+
+import java.util.Arrays;
+
+/**
+ * Standard {@link StringSimilarity} measures. Like
+ * {@link StringMatcher#compareStrings(java.lang.String, java.lang.String)},
+ * they compare strings case-insensitively.
+ *
+ * <p>The threshold variants of the measures first compute an upper bound of
+ * the similarity from the string lengths (or letter pair counts), and only
+ * run the full computation when that bound reaches the threshold. The edit
+ * distance is computed with the bit-parallel algorithm of Myers, which stops
+ * as soon as the distance allowed by the threshold is exceeded.
+ *
+ * @author Yassine Lassoued
+ */
+public final class StringSimilarities {
+
+    /**
+     * Largest n-gram length supported by {@link #jaccard(int)}
+     */
+    public static final int MAX_GRAM_LENGTH = 3;
+
+    /**
+     * Winkler prefix bonus: weight per common prefix character, maximal
+     * prefix length, and Jaro similarity above which the bonus applies
+     */
+    private static final double PREFIX_SCALE = 0.1;
+    private static final int MAX_PREFIX = 4;
+    private static final double BOOST_THRESHOLD = 0.7;
+
+    /**
+     * Slack applied to the distance bound derived from a similarity threshold,
+     * so that rounding errors never reject a matching pair
+     */
+    private static final double EPSILON = 1e-9;
+
+    /**
+     * Dice coefficient of the letter pairs of the strings, as computed by
+     * {@link StringMatcher#compareStrings(java.lang.String, java.lang.String)}.
+     * Two strings without any letter pair, for which that coefficient is
+     * undefined, have a similarity of 1 if they are equal ignoring case and 0
+     * otherwise.
+     */
+    public static final StringSimilarity DICE = new StringSimilarity() {
+        @Override
+        public double compare(String str1, String str2) {
+            return dice(str1, str2, Double.NEGATIVE_INFINITY);
+        }
+
+        @Override
+        public double compare(String str1, String str2, double threshold) {
+            return dice(str1, str2, threshold);
+        }
+    };
+
+    /**
+     * Jaro-Winkler similarity, which favours strings sharing a common prefix
+     */
+    public static final StringSimilarity JARO_WINKLER = new StringSimilarity() {
+        @Override
+        public double compare(String str1, String str2) {
+            return jaroWinkler(str1, str2, Double.NEGATIVE_INFINITY);
+        }
+
+        @Override
+        public double compare(String str1, String str2, double threshold) {
+            return jaroWinkler(str1, str2, threshold);
+        }
+    };
+
+    /**
+     * Normalised Levenshtein similarity: 1 minus the edit distance divided by
+     * the length of the longer string
+     */
+    public static final StringSimilarity LEVENSHTEIN = new StringSimilarity() {
+        @Override
+        public double compare(String str1, String str2) {
+            return levenshtein(str1, str2, Double.NEGATIVE_INFINITY);
+        }
+
+        @Override
+        public double compare(String str1, String str2, double threshold) {
+            return levenshtein(str1, str2, threshold);
+        }
+    };
+
+    private StringSimilarities() {
+    }
+
+    /**
+     * Returns the Jaccard similarity of the sets of n-grams of the strings,
+     * i.e., the number of n-grams they share divided by the number of
+     * distinct n-grams of either. A string shorter than {@code n} is taken as
+     * a single n-gram.
+     * @param n Length of the n-grams, e.g., 3 for trigrams
+     * @return Jaccard similarity of n-grams
+     */
+    public static StringSimilarity jaccard(final int n) {
+        if (n < 1 || n > MAX_GRAM_LENGTH) throw new IllegalArgumentException("n-gram length must be in [1," + MAX_GRAM_LENGTH + "]: " + n);
+        return new StringSimilarity() {
+            @Override
+            public double compare(String str1, String str2) {
+                return jaccard(str1, str2, n, Double.NEGATIVE_INFINITY);
+            }
+
+            @Override
+            public double compare(String str1, String str2, double threshold) {
+                return jaccard(str1, str2, n, threshold);
+            }
+        };
+    }
+
+    /**
+     * Computes the Levenshtein distance of two strings, i.e., the minimal
+     * number of character insertions, deletions and substitutions turning one
+     * into the other, if it does not exceed {@code maxDistance}. Characters
+     * are compared as is.
+     * @param str1 First string, must not be {@code null}
+     * @param str2 Second string, must not be {@code null}
+     * @param maxDistance Largest distance of interest, at least 0
+     * @return Edit distance of the strings if it is at most {@code maxDistance},
+     * otherwise {@code maxDistance + 1}
+     */
+    public static int levenshteinDistance(String str1, String str2, int maxDistance) {
+        if (maxDistance < 0) throw new IllegalArgumentException("Maximal distance must not be negative: " + maxDistance);
+        String pattern = (str1.length() <= str2.length()) ? str1 : str2;
+        String text = (pattern == str1) ? str2 : str1;
+        int m = pattern.length();
+        int n = text.length();
+        if (n - m > maxDistance) return maxDistance + 1;
+        if (m == 0) return n;
+        if (m <= Long.SIZE) return myersDistance(pattern, text, maxDistance);
+        else return dynamicDistance(pattern, text, maxDistance);
+    }
+
+    static double dice(String str1, String str2, double threshold) {
+        if (str1 == null || str2 == null) return 0;
+        int[] pairs1 = StringMatcher.letterPairCodes(str1);
+        int[] pairs2 = StringMatcher.letterPairCodes(str2);
+        int union = pairs1.length + pairs2.length;
+        if (union == 0) return str1.equalsIgnoreCase(str2) ? 1.0 : 0.0;
+        double bound = (2.0*Math.min(pairs1.length, pairs2.length))/union;
+        if (bound < threshold) return bound;
+        Arrays.sort(pairs1);
+        Arrays.sort(pairs2);
+        return (2.0*StringMatcher.intersectionSize(pairs1, pairs2))/union;
+    }
+
+    static double jaccard(String str1, String str2, int n, double threshold) {
+        if (str1 == null || str2 == null) return 0;
+        long[] grams1 = grams(str1, n);
+        long[] grams2 = grams(str2, n);
+        if (grams1.length == 0 || grams2.length == 0) return (grams1.length == grams2.length) ? 1.0 : 0.0;
+        double bound = (double) Math.min(grams1.length, grams2.length) / Math.max(grams1.length, grams2.length);
+        if (bound < threshold) return bound;
+        int intersection = 0;
+        int i = 0;
+        int j = 0;
+        while (i < grams1.length && j < grams2.length) {
+            if (grams1[i] == grams2[j]) {
+                intersection++;
+                i++;
+                j++;
+                continue;
+            }
+            if (grams1[i] < grams2[j]) i++;
+            else j++;
+            // Give up once the remaining n-grams cannot lift the similarity to the threshold
+            int maxIntersection = intersection + Math.min(grams1.length - i, grams2.length - j);
+            bound = (double) maxIntersection / (grams1.length + grams2.length - maxIntersection);
+            if (bound < threshold) return bound;
+        }
+        return (double) intersection / (grams1.length + grams2.length - intersection);
+    }
+
+    /**
+     * Returns the distinct n-grams of the upper case form of a string, each
+     * packed into a {@code long}, in ascending order
+     */
+    private static long[] grams(String str, int n) {
+        String upper = StringFolding.toUpperCase(str);
+        int length = upper.length();
+        if (length == 0) return new long[0];
+        if (length < n) {
+            // Tag the short string with its length so it cannot equal a full n-gram
+            long gram = length;
+            for (int i=0; i<length; i++) gram = (gram << 16) | upper.charAt(i);
+            return new long[] {gram};
+        }
+        long[] grams = new long[length - n + 1];
+        for (int i=0; i<grams.length; i++) {
+            long gram = 0;
+            for (int k=0; k<n; k++) gram = (gram << 16) | upper.charAt(i + k);
+            grams[i] = gram;
+        }
+        Arrays.sort(grams);
+        int distinct = 1;
+        for (int i=1; i<grams.length; i++) {
+            if (grams[i] != grams[distinct - 1]) grams[distinct++] = grams[i];
+        }
+        return (distinct == grams.length) ? grams : Arrays.copyOf(grams, distinct);
+    }
+
+    static double jaroWinkler(String str1, String str2, double threshold) {
+        if (str1 == null || str2 == null) return 0;
+        String a = StringFolding.toUpperCase(str1);
+        String b = StringFolding.toUpperCase(str2);
+        int length1 = a.length();
+        int length2 = b.length();
+        if (length1 == 0 || length2 == 0) return (length1 == length2) ? 1.0 : 0.0;
+
+        // At best every character of the shorter string is matched without
+        // transposition, and the strings share the longest rewarded prefix
+        int shorter = Math.min(length1, length2);
+        double jaroBound = ((double) shorter / length1 + (double) shorter / length2 + 1) / 3;
+        double bound = jaroBound + Math.min(MAX_PREFIX, shorter) * PREFIX_SCALE * (1 - jaroBound);
+        if (bound < threshold) return bound;
+
+        int window = Math.max(0, Math.max(length1, length2) / 2 - 1);
+        boolean[] matched1 = new boolean[length1];
+        boolean[] matched2 = new boolean[length2];
+        int matches = 0;
+        for (int i=0; i<length1; i++) {
+            char c = a.charAt(i);
+            int to = Math.min(length2, i + window + 1);
+            for (int j=Math.max(0, i - window); j<to; j++) {
+                if (!matched2[j] && b.charAt(j) == c) {
+                    matched1[i] = true;
+                    matched2[j] = true;
+                    matches++;
+                    break;
+                }
+            }
+        }
+        if (matches == 0) return 0;
+
+        int transpositions = 0;
+        int k = 0;
+        for (int i=0; i<length1; i++) {
+            if (matched1[i]) {
+                while (!matched2[k]) k++;
+                if (a.charAt(i) != b.charAt(k)) transpositions++;
+                k++;
+            }
+        }
+        double jaro = ((double) matches / length1 + (double) matches / length2 + (matches - transpositions / 2.0) / matches) / 3;
+        if (jaro < BOOST_THRESHOLD) return jaro;
+        int prefix = 0;
+        while (prefix < MAX_PREFIX && prefix < shorter && a.charAt(prefix) == b.charAt(prefix)) prefix++;
+        return jaro + prefix * PREFIX_SCALE * (1 - jaro);
+    }
+
+    static double levenshtein(String str1, String str2, double threshold) {
+        if (str1 == null || str2 == null) return 0;
+        String a = StringFolding.toUpperCase(str1);
+        String b = StringFolding.toUpperCase(str2);
+        int longer = Math.max(a.length(), b.length());
+        if (longer == 0) return 1.0;
+        int maxDistance = longer;
+        if (threshold > 0) {
+            maxDistance = (int) Math.floor((1 - threshold) * longer + EPSILON);
+            if (maxDistance < 0) return 1.0 - (double) Math.abs(a.length() - b.length()) / longer;
+        }
+        int distance = levenshteinDistance(a, b, maxDistance);
+        return 1.0 - (double) distance / longer;
+    }
+
+    /**
+     * Myers' bit-parallel edit distance, for a pattern of at most 64 characters.
+     * Bit {@code i} of the vertical delta vectors {@code pv} and {@code mv}
+     * tells whether the distance increases or decreases between rows
+     * {@code i} and {@code i+1} of the current column of the dynamic
+     * programming matrix.
+     */
+    private static int myersDistance(String pattern, String text, int maxDistance) {
+        int m = pattern.length();
+        int n = text.length();
+        // Positions of each pattern character, in an open addressing table
+        // that cannot fill up since the pattern has at most 64 distinct characters
+        char[] keys = new char[2 * Long.SIZE];
+        long[] masks = new long[2 * Long.SIZE];
+        int tableMask = keys.length - 1;
+        for (int i=0; i<m; i++) {
+            char c = pattern.charAt(i);
+            int slot = c & tableMask;
+            while (masks[slot] != 0 && keys[slot] != c) slot = (slot + 1) & tableMask;
+            keys[slot] = c;
+            masks[slot] |= 1L << i;
+        }
+
+        long pv = -1L;
+        long mv = 0L;
+        long last = 1L << (m - 1);
+        int score = m;
+        for (int j=0; j<n; j++) {
+            char c = text.charAt(j);
+            int slot = c & tableMask;
+            long eq = 0L;
+            while (masks[slot] != 0) {
+                if (keys[slot] == c) {
+                    eq = masks[slot];
+                    break;
+                }
+                slot = (slot + 1) & tableMask;
+            }
+            long xv = eq | mv;
+            long xh = (((eq & pv) + pv) ^ pv) | eq;
+            long ph = mv | ~(xh | pv);
+            long mh = pv & xh;
+            if ((ph & last) != 0) score++;
+            else if ((mh & last) != 0) score--;
+            ph = (ph << 1) | 1L;
+            mh <<= 1;
+            pv = mh | ~(xv | ph);
+            mv = ph & xv;
+            // Each remaining column lowers the distance by at most 1
+            if (score - (n - j - 1) > maxDistance) return maxDistance + 1;
+        }
+        return (score <= maxDistance) ? score : maxDistance + 1;
+    }
+
+    /**
+     * Row by row edit distance, for patterns longer than 64 characters,
+     * stopping once a whole row exceeds {@code maxDistance}
+     */
+    private static int dynamicDistance(String pattern, String text, int maxDistance) {
+        int m = pattern.length();
+        int[] previous = new int[m + 1];
+        int[] current = new int[m + 1];
+        for (int i=0; i<=m; i++) previous[i] = i;
+        for (int j=1; j<=text.length(); j++) {
+            char c = text.charAt(j - 1);
+            current[0] = j;
+            int rowMin = j;
+            for (int i=1; i<=m; i++) {
+                int cost = (pattern.charAt(i - 1) == c) ? 0 : 1;
+                current[i] = Math.min(Math.min(previous[i] + 1, current[i - 1] + 1), previous[i - 1] + cost);
+                if (current[i] < rowMin) rowMin = current[i];
+            }
+            if (rowMin > maxDistance) return maxDistance + 1;
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return (previous[m] <= maxDistance) ? previous[m] : maxDistance + 1;
+    }
+}
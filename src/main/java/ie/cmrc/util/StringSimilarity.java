@@ -0,0 +1,55 @@
+/*
+ * Copyright 2015 Coastal and Marine Research Centre (CMRC), Beaufort,
+ * Environmental Research Institute (ERI), University College Cork (UCC).
+ * Yassine Lassoued <y.lassoued@gmail.com, y.lassoued@ucc.ie>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.cmrc.util;
+
+/**
+ * A measure of the similarity of two strings, in the range [0,1] where 1
+ * means identical. Standard measures are provided by {@link StringSimilarities},
+ * the default one being {@link StringSimilarities#DICE}, i.e.,
+ * {@link StringMatcher#compareStrings(java.lang.String, java.lang.String)}.
+ *
+ * <p>Implementations must be thread-safe.
+ *
+ * @author Yassine Lassoued
+ */
+public interface StringSimilarity {
+
+    /**
+     * Computes the similarity of two strings
+     * @param str1 First string
+     * @param str2 Second string
+     * @return Similarity in the range [0,1]. If either string is {@code null}
+     * then 0 is returned.
+     */
+    double compare(String str1, String str2);
+
+    /**
+     * Computes the similarity of two strings if it may reach the provided
+     * threshold. This allows implementations to give up as soon as the
+     * similarity is known to be below the threshold, which is much cheaper
+     * than computing it when most pairs do not match.
+     * @param str1 First string
+     * @param str2 Second string
+     * @param threshold Similarity threshold
+     * @return Similarity of the strings if it is at least {@code threshold},
+     * otherwise a value lower than {@code threshold} (typically an upper
+     * bound of the similarity)
+     */
+    double compare(String str1, String str2, double threshold);
+}
@@ -25,6 +25,13 @@ import java.util.Objects;
  * e.g., label, name, etc.) and an associated language. It can be viewed as a
  * language-value pair.
  * 
+ * <p>Terms are kept compact so that large numbers of them can be held in sets
+ * and sorted collections: the language codes of known {@link Language}s are
+ * shared by all terms rather than copied, and the hash code is computed once.
+ * Hence, {@link #equals(java.lang.Object)}, {@link #hashCode()} and
+ * {@link #compareTo(ie.cmrc.util.Term)} mostly reduce to reference and integer
+ * comparisons.
+ * 
  * @author Yassine Lassoued
  */
 public class Term implements Comparable<Term> {
@@ -35,10 +42,16 @@ public class Term implements Comparable<Term> {
     private final String string;
     
     /**
-     * Term language
+     * Term language. Codes of known {@link Language}s are replaced with their
+     * canonical instance (see {@link Language#canonicalCode(java.lang.String)}).
      */
     private final String language;
     
+    /**
+     * Cached hash code, 0 if not computed yet
+     */
+    private int hash;
+    
     /**
      * Separator used to parse a term from a {@code String} qualified name.
      */
@@ -54,7 +67,7 @@ public class Term implements Comparable<Term> {
         if (qualifiedTermString!=null) {
             if (qualifiedTermString.matches("^.*@[^@]*$")) {
                 this.string = qualifiedTermString.replaceAll("^(.*)@[^@]*$", "$1");
-                this.language = qualifiedTermString.replaceAll("^.*@([^@]*)$", "$1");
+                this.language = Language.canonicalCode(qualifiedTermString.replaceAll("^.*@([^@]*)$", "$1"));
             }
             else {
                 this.string = qualifiedTermString;
@@ -74,9 +87,26 @@ public class Term implements Comparable<Term> {
      * @param language Language of the term (may be {@code null})
      */
     public Term(String stringContent, String language) {
-        if (stringContent!=null) this.string = stringContent;
+        this(stringContent, language, false);
+    }
+
+    /**
+     * Constructs a Term using the provided value and language, optionally
+     * interning its string content. Interning lets the many terms that share
+     * the same string also share a single copy of it.
+     * @param stringContent {@code String} content of the term. If this is {@code null} then it will
+     * be replaces with an empty String ({@code ""}).
+     * @param language Language of the term (may be {@code null})
+     * @param internString If {@code true}, the canonical representation of
+     * {@code stringContent} given by {@link String#intern()} is stored
+     */
+    public Term(String stringContent, String language, boolean internString) {
+        if (stringContent!=null) {
+            if (internString) this.string = stringContent.intern();
+            else this.string = stringContent;
+        }
         else this.string = "";
-        this.language = language;
+        this.language = Language.canonicalCode(language);
     }
 
     /**
@@ -121,7 +151,8 @@ public class Term implements Comparable<Term> {
                 if (!(object instanceof Term)) return false;
                 else {
                     Term field = (Term) object;
-                    return ((field.getString() == null ? this.getString() == null : field.getString().equals(this.getString())) && (field.getLanguage() == null ? this.getLanguage() == null : field.getLanguage().equals(this.getLanguage())));
+                    if (field.hashCode() != this.hashCode()) return false;
+                    return ((field.language == this.language || (field.language != null && field.language.equals(this.language))) && field.string.equals(this.string));
                 }
             }
         }
@@ -134,10 +165,14 @@ public class Term implements Comparable<Term> {
      */
     @Override
     public int hashCode() {
-        int hash = 5;
-        hash = 53 * hash + Objects.hashCode(this.string);
-        hash = 53 * hash + Objects.hashCode(this.language);
-        return hash;
+        int h = this.hash;
+        if (h == 0) {
+            h = 5;
+            h = 53 * h + Objects.hashCode(this.string);
+            h = 53 * h + Objects.hashCode(this.language);
+            this.hash = h;
+        }
+        return h;
     }
 
     /**
@@ -161,23 +196,17 @@ public class Term implements Comparable<Term> {
     @Override
     public int compareTo(Term otherTerm) {
         if (otherTerm!=null) {
-            String myLang = this.language;
-            if (myLang==null) myLang="";
+            if (otherTerm == this) return 0;
 
+            String myLang = this.language;
             String avLang = otherTerm.language;
-            if (avLang==null) avLang="";
-
-            if (!myLang.equals(avLang)) return myLang.compareTo(avLang);
-            else {
-
-                String myName = this.string;
-                if (myName==null) myName="";
-
-                String objectName = otherTerm.string;
-                if (objectName==null) objectName = "";
-
-                return (myName.compareTo(objectName));
+            if (myLang != avLang) {
+                if (myLang==null) myLang="";
+                if (avLang==null) avLang="";
+                int cmp = myLang.compareTo(avLang);
+                if (cmp != 0) return cmp;
             }
+            return this.string.compareTo(otherTerm.string);
         }
         else return 1;
     }
@@ -18,11 +18,19 @@
 
 package ie.cmrc.util;
 
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * A {@link TermMap} is an object that maps values of given type ({@code <V>})
@@ -39,11 +47,194 @@ public class TermMap<V> {
      */
     HashMap<String, Multimap<String,V>> entries;
 
+    /**
+     * Languages and values of the {@code null} term string (i.e., of the
+     * {@code null} term). This mirrors the {@code null} entry of
+     * {@link #entries} so that it is looked up without going through the hash
+     * table.
+     */
+    private Multimap<String,V> nullTermValues;
+
+    /**
+     * Number of queries per task when a batched lookup is split across threads
+     */
+    static final int BATCH_CHUNK_SIZE = 2048;
+
+    /**
+     * Normalizer applied to term strings before they are used as keys of
+     * {@link #entries}. This is {@code null} when term strings are used as is.
+     */
+    final KeyNormalizer keyNormalizer;
+
+    /**
+     * Optional index of the key terms supporting prefix searches. This is
+     * {@code null} unless {@link #enablePrefixIndex()} was called.
+     */
+    TermPrefixIndex prefixIndex;
+
+    /**
+     * Optional inverse index of the key terms of each value. This is
+     * {@code null} unless {@link #enableReverseIndex()} was called.
+     */
+    private ReverseIndex<Term,V> reverseIndex;
+
+    /**
+     * Feed the changes of this {@link TermMap} are published to, {@code null}
+     * unless {@link #setChangeFeed} was called
+     */
+    private TermMapChangeFeed<V> changeFeed;
+
+    /**
+     * Usage metrics, {@code null} unless {@link #enableMetrics()} was called
+     */
+    CollectionMetrics metrics;
+
+    /**
+     * Capacity with which {@link #entries} was last created, the baseline of
+     * the resize estimate of the metrics
+     */
+    private int tableCapacity;
+
+    /**
+     * Sizing hints of the multimaps created for new term strings, 0 for defaults
+     */
+    private final int expectedLanguagesPerTerm;
+    private final int expectedValuesPerKey;
+
     /**
      * Constructs an empty {@link TermMap} object
      */
     public TermMap() {
+        this(null);
+    }
+
+    /**
+     * Constructs an empty {@link TermMap} object whose term strings are
+     * normalized before being stored and looked up. For instance, with
+     * {@link StringFolding#CASE_FOLD} the terms {@code Water@en} and
+     * {@code water@en} are the same key term.
+     *
+     * <p>The normalization is applied once when a term is inserted, and the
+     * normalized string is the one stored in the map. Hence the key terms and
+     * term strings returned by this {@link TermMap} are in normalized form.
+     *
+     * @param keyNormalizer Normalizer applied to term strings. If this is
+     * {@code null} then term strings are used as is.
+     */
+    public TermMap(KeyNormalizer keyNormalizer) {
         this.entries = new HashMap<>();
+        this.keyNormalizer = keyNormalizer;
+        this.tableCapacity = 16;
+        this.expectedLanguagesPerTerm = 0;
+        this.expectedValuesPerKey = 0;
+    }
+
+    /**
+     * Constructs an empty {@link TermMap} object sized for the expected
+     * content, so that loading it does not trigger repeated rehashing nor
+     * growth of its internal tables and lists
+     * @param expectedTermStrings Expected number of distinct term strings
+     * @param expectedLanguagesPerTerm Expected number of languages per term string, 0 for the default
+     * @param expectedValuesPerKey Expected number of values per key term, 0 for the default
+     */
+    public TermMap(int expectedTermStrings, int expectedLanguagesPerTerm, int expectedValuesPerKey) {
+        this(null, expectedTermStrings, expectedLanguagesPerTerm, expectedValuesPerKey);
+    }
+
+    /**
+     * Constructs an empty {@link TermMap} object with a key normalizer (see
+     * {@link #TermMap(ie.cmrc.util.KeyNormalizer)}), sized for the expected
+     * content (see {@link #TermMap(int, int, int)})
+     * @param keyNormalizer Normalizer applied to term strings. If this is
+     * {@code null} then term strings are used as is.
+     * @param expectedTermStrings Expected number of distinct term strings
+     * @param expectedLanguagesPerTerm Expected number of languages per term string, 0 for the default
+     * @param expectedValuesPerKey Expected number of values per key term, 0 for the default
+     */
+    public TermMap(KeyNormalizer keyNormalizer, int expectedTermStrings, int expectedLanguagesPerTerm, int expectedValuesPerKey) {
+        if (expectedTermStrings < 0) throw new IllegalArgumentException("Expected number of term strings must not be negative: " + expectedTermStrings);
+        if (expectedLanguagesPerTerm < 0) throw new IllegalArgumentException("Expected number of languages per term must not be negative: " + expectedLanguagesPerTerm);
+        if (expectedValuesPerKey < 0) throw new IllegalArgumentException("Expected number of values per key must not be negative: " + expectedValuesPerKey);
+        this.tableCapacity = Multimap.capacityFor(expectedTermStrings);
+        this.entries = new HashMap<>(this.tableCapacity);
+        this.keyNormalizer = keyNormalizer;
+        this.expectedLanguagesPerTerm = expectedLanguagesPerTerm;
+        this.expectedValuesPerKey = expectedValuesPerKey;
+    }
+
+    /**
+     * Creates the multimap storing the language-value pairs of a new term
+     * string. Each size hint left to 0 falls back to the default size.
+     */
+    private Multimap<String,V> newLanguageMap() {
+        if (this.expectedLanguagesPerTerm > 0) {
+            return new Multimap<>(this.expectedLanguagesPerTerm, this.expectedValuesPerKey);
+        }
+        else return new Multimap<>(this.expectedValuesPerKey);
+    }
+
+    /**
+     * Returns the languages and values of a term string
+     * @param termString Term string in key form (see {@link #keyString(java.lang.String)})
+     * @return Live multimap of the term string, or {@code null} if it is absent
+     */
+    Multimap<String,V> languageMap(String termString) {
+        if (termString == null) return this.nullTermValues;
+        else return this.entries.get(termString);
+    }
+
+    /**
+     * Returns the languages and values of a term string, adding the term
+     * string with an empty multimap if it is absent
+     */
+    private Multimap<String,V> languageMapForUpdate(String termString) {
+        Multimap<String,V> map = this.languageMap(termString);
+        if (map == null) {
+            map = this.newLanguageMap();
+            this.entries.put(termString, map);
+            if (termString == null) this.nullTermValues = map;
+        }
+        return map;
+    }
+
+    /**
+     * Associates an absent term string with a non-empty multimap of languages
+     * and values, which this {@link TermMap} takes ownership of. This is used
+     * to fill a term map being decoded without copying its content.
+     */
+    void putLanguageMap(String termString, Multimap<String,V> map) {
+        this.entries.put(termString, map);
+        if (termString == null) this.nullTermValues = map;
+        if (this.reverseIndex != null) this.indexLanguageMap(termString, map);
+        if (this.changeFeed != null) {
+            for (Map.Entry<String,List<V>> entry: map.entries.entrySet()) {
+                Term term = new Term(termString, entry.getKey());
+                for (V value: entry.getValue()) this.changeFeed.publish(TermMapEvent.added(term, value));
+            }
+        }
+    }
+
+    /**
+     * Returns the key term under which a pair is recorded in the reverse index
+     * @param term Term provided by the caller, may be {@code null}
+     * @param termString Term string of {@code term} in key form
+     * @param lang Language of {@code term}
+     * @return {@code term} itself if it is already in key form, or an equal key term
+     */
+    private Term indexedTerm(Term term, String termString, String lang) {
+        if (term != null && this.keyNormalizer == null) return term;
+        else return new Term(termString, lang);
+    }
+
+    /**
+     * Returns the form of the provided term string used as a key of {@link #entries}
+     * @param stringTerm Term string
+     * @return Normalized term string, or {@code stringTerm} itself if this
+     * {@link TermMap} has no normalizer
+     */
+    String keyString(String stringTerm) {
+        if (this.keyNormalizer != null && stringTerm != null) return this.keyNormalizer.normalize(stringTerm);
+        else return stringTerm;
     }
     
     /**
@@ -55,11 +246,14 @@ public class TermMap<V> {
         String termString = null;
         String lang = null;
         if (term != null) {
-            termString = term.getString();
+            termString = this.keyString(term.getString());
             lang = term.getLanguage();
         }
-        if (!this.entries.containsKey(termString)) this.entries.put(termString, new Multimap<String,V>());
-        this.entries.get(termString).put(lang, value);
+        this.languageMapForUpdate(termString).put(lang, value);
+        if (this.prefixIndex != null) this.prefixIndex.add(termString, lang);
+        if (this.reverseIndex != null) this.reverseIndex.add(value, this.indexedTerm(term, termString, lang));
+        if (this.changeFeed != null) this.changeFeed.publish(TermMapEvent.added(this.indexedTerm(term, termString, lang), value));
+        if (this.metrics != null) this.metrics.recordPut(this.entries.size());
     }
     
     /**
@@ -72,11 +266,15 @@ public class TermMap<V> {
         String termString = null;
         String lang = null;
         if (term != null) {
-            termString = term.getString();
+            termString = this.keyString(term.getString());
             lang = term.getLanguage();
         }
-        if (!this.entries.containsKey(termString)) this.entries.put(termString, new Multimap<String,V>());
-        return this.entries.get(termString).putIfAbsent(lang, value);
+        boolean added = this.languageMapForUpdate(termString).putIfAbsent(lang, value);
+        if (added && this.prefixIndex != null) this.prefixIndex.add(termString, lang);
+        if (added && this.reverseIndex != null) this.reverseIndex.add(value, this.indexedTerm(term, termString, lang));
+        if (added && this.changeFeed != null) this.changeFeed.publish(TermMapEvent.added(this.indexedTerm(term, termString, lang), value));
+        if (added && this.metrics != null) this.metrics.recordPut(this.entries.size());
+        return added;
     }
     
     /**
@@ -89,11 +287,24 @@ public class TermMap<V> {
         String termString = null;
         String lang = null;
         if (term != null) {
-            termString = term.getString();
+            termString = this.keyString(term.getString());
             lang = term.getLanguage();
         }
-        if (!this.entries.containsKey(termString)) this.entries.put(termString, new Multimap<String,V>());
-        this.entries.get(termString).putOnly(lang, value);
+        Multimap<String,V> map = this.languageMapForUpdate(termString);
+        if (this.reverseIndex != null) {
+            Term key = this.indexedTerm(term, termString, lang);
+            this.reverseIndex.removeAll(map.valuesOf(lang), key);
+            this.reverseIndex.add(value, key);
+        }
+        if (this.changeFeed != null) {
+            Term key = this.indexedTerm(term, termString, lang);
+            List<V> previousValues = map.valuesOf(lang);
+            if (previousValues == null) this.changeFeed.publish(TermMapEvent.added(key, value));
+            else this.changeFeed.publish(TermMapEvent.replaced(key, value, previousValues));
+        }
+        map.putOnly(lang, value);
+        if (this.prefixIndex != null) this.prefixIndex.add(termString, lang);
+        if (this.metrics != null) this.metrics.recordPut(this.entries.size());
     }
     
     
@@ -111,16 +322,18 @@ public class TermMap<V> {
      * of the list will update those in the term map.
      */
     public List<V> getValues(Term term) {
+        long start = (this.metrics != null) ? System.nanoTime() : 0L;
         List<V> result = new ArrayList<>();
         
         String termString = null;
         String lang = null;
         if (term != null) {
-            termString = term.getString();
+            termString = this.keyString(term.getString());
             lang = term.getLanguage();
         }
-        Multimap<String,V> allValues = this.entries.get(termString);
+        Multimap<String,V> allValues = this.languageMap(termString);
         if (allValues!=null) result.addAll(allValues.getAll(lang));
+        if (this.metrics != null) this.recordLookup(allValues, lang, start);
         
         return result;
     }
@@ -132,15 +345,18 @@ public class TermMap<V> {
      * then {@code null} is returned.
      */
     public V getValue(Term term) {
+        long start = (this.metrics != null) ? System.nanoTime() : 0L;
         String termString = null;
         String lang = null;
         if (term != null) {
-            termString = term.getString();
+            termString = this.keyString(term.getString());
             lang = term.getLanguage();
         }
-        Multimap<String,V> allValues = this.entries.get(termString);
-        if (allValues!=null) return allValues.get(lang);
-        else return null;
+        V value = null;
+        Multimap<String,V> allValues = this.languageMap(termString);
+        if (allValues!=null) value = allValues.get(lang);
+        if (this.metrics != null) this.recordLookup(allValues, lang, start);
+        return value;
     }
     
     /**
@@ -150,15 +366,197 @@ public class TermMap<V> {
      * value exists then {@code null} is returned.
      */
     public V getNonNullValue(Term term) {
+        long start = (this.metrics != null) ? System.nanoTime() : 0L;
         String termString = null;
         String lang = null;
         if (term != null) {
-            termString = term.getString();
+            termString = this.keyString(term.getString());
             lang = term.getLanguage();
         }
-        Multimap<String,V> allValues = this.entries.get(termString);
-        if (allValues != null) return allValues.getNonNull(lang);
-        else return null;
+        V value = null;
+        Multimap<String,V> allValues = this.languageMap(termString);
+        if (allValues != null) value = allValues.getNonNull(lang);
+        if (this.metrics != null) this.recordLookup(allValues, lang, start);
+        return value;
+    }
+
+    /**
+     * Returns a value (the first one) associated with {@code stringTerm} in
+     * the first of the provided languages for which a value exists. For
+     * repeated lookups with the same languages, prefer
+     * {@link #getPreferredValue(java.lang.String, ie.cmrc.util.LanguagePreference)}.
+     * @param stringTerm {@code String} value of the term whose associated value is to be returned
+     * @param langPreference Accepted languages, most preferred first
+     * @return First value associated with {@code stringTerm} in the most
+     * preferred available language. If no such value exists then {@code null}
+     * is returned.
+     */
+    public V getValue(String stringTerm, String... langPreference) {
+        return this.getPreferredValue(stringTerm, new LanguagePreference(langPreference));
+    }
+
+    /**
+     * Returns a value (the first one) associated with {@code stringTerm} in
+     * the most preferred available language. The term string is looked up
+     * once, and its languages are then scanned for the best match.
+     * @param stringTerm {@code String} value of the term whose associated value is to be returned
+     * @param preference Language preference
+     * @return First value associated with {@code stringTerm} in the most
+     * preferred available language. If no such value exists then {@code null}
+     * is returned.
+     */
+    public V getPreferredValue(String stringTerm, LanguagePreference preference) {
+        long start = (this.metrics != null) ? System.nanoTime() : 0L;
+        List<V> best = null;
+        Multimap<String,V> allValues = this.languageMap(this.keyString(stringTerm));
+        if (allValues != null) {
+            if (preference.size() == 1 && !preference.fallsBackToAnyLanguage()) {
+                best = allValues.valuesOf(preference.get(0));
+            }
+            else {
+                int bestRank = -1;
+                for (Map.Entry<String,List<V>> entry: allValues.entries.entrySet()) {
+                    if (entry.getValue().isEmpty()) continue;
+                    int rank = preference.rank(entry.getKey());
+                    if (rank >= 0 && (bestRank < 0 || rank < bestRank)) {
+                        best = entry.getValue();
+                        bestRank = rank;
+                        if (rank == 0) break;
+                    }
+                }
+            }
+        }
+        boolean found = best != null && !best.isEmpty();
+        if (this.metrics != null) this.metrics.recordLookup(found, System.nanoTime() - start);
+        return found ? best.get(0) : null;
+    }
+
+    /**
+     * Returns the values associated with each of the provided terms. Queries
+     * are grouped by term string, so that each distinct term string is looked
+     * up once in the term string table however many languages are queried.
+     * 
+     * @param terms Terms for which values will be returned
+     * @return {@link BatchLookupResult} holding the values of the {@code i}-th
+     * term of {@code terms} (in iteration order) at index {@code i}
+     */
+    public BatchLookupResult<V> getValuesBatch(Collection<Term> terms) {
+        return this.getValuesBatch(terms, new BatchLookupResult<V>());
+    }
+    
+    /**
+     * Returns the values associated with each of the provided terms, as per
+     * {@link #getValuesBatch(java.util.Collection)}, reusing the arrays of the
+     * provided result object
+     * 
+     * @param terms Terms for which values will be returned
+     * @param result Result object to fill. Its previous content is discarded.
+     * @return {@code result}, holding the values of the {@code i}-th term of
+     * {@code terms} (in iteration order) at index {@code i}
+     */
+    public BatchLookupResult<V> getValuesBatch(Collection<Term> terms, BatchLookupResult<V> result) {
+        this.prepareBatch(terms, result);
+        this.resolveBatch(result, 0, result.size);
+        result.pack();
+        return result;
+    }
+    
+    /**
+     * Returns the values associated with each of the provided terms, as per
+     * {@link #getValuesBatch(java.util.Collection, ie.cmrc.util.BatchLookupResult)},
+     * splitting large batches into chunks that are looked up in parallel by
+     * the provided executor. The {@link TermMap} must not be modified while
+     * the lookup is in progress.
+     * 
+     * @param terms Terms for which values will be returned
+     * @param result Result object to fill. Its previous content is discarded.
+     * @param executor Executor running the chunks. If this is {@code null},
+     * or the batch is small, the lookup is run by the calling thread.
+     * @return {@code result}, holding the values of the {@code i}-th term of
+     * {@code terms} (in iteration order) at index {@code i}
+     * @throws InterruptedException If the calling thread was interrupted while
+     * waiting for the chunks
+     */
+    public BatchLookupResult<V> getValuesBatch(Collection<Term> terms, final BatchLookupResult<V> result, ExecutorService executor) throws InterruptedException {
+        this.prepareBatch(terms, result);
+        if (executor == null || result.size <= BATCH_CHUNK_SIZE) {
+            this.resolveBatch(result, 0, result.size);
+        }
+        else {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int from=0; from<result.size; from+=BATCH_CHUNK_SIZE) {
+                final int chunkFrom = from;
+                final int chunkTo = Math.min(result.size, from + BATCH_CHUNK_SIZE);
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        resolveBatch(result, chunkFrom, chunkTo);
+                    }
+                }));
+            }
+            for (Future<?> future: futures) {
+                try {
+                    future.get();
+                }
+                catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                    else if (cause instanceof Error) throw (Error) cause;
+                    else throw new IllegalStateException(cause);
+                }
+            }
+        }
+        result.pack();
+        return result;
+    }
+    
+    /**
+     * Copies the term strings and languages of a batch of queries into the
+     * work arrays of {@code result}
+     */
+    private void prepareBatch(Collection<Term> terms, BatchLookupResult<V> result) {
+        result.reset(terms.size());
+        int i = 0;
+        for (Term term: terms) {
+            if (term != null) {
+                result.termStrings[i] = this.keyString(term.getString());
+                result.languages[i] = term.getLanguage();
+            }
+            i++;
+        }
+    }
+    
+    /**
+     * Looks up the queries {@code from} (inclusive) to {@code to} (exclusive)
+     * of a batch. Queries are sorted by term string hash so that queries on
+     * the same term string are adjacent and share a single outer lookup.
+     */
+    private void resolveBatch(BatchLookupResult<V> result, int from, int to) {
+        for (int i=from; i<to; i++) {
+            String termString = result.termStrings[i];
+            int hash = (termString != null) ? termString.hashCode() : 0;
+            result.order[i] = ((long) hash << 32) | (i & 0xFFFFFFFFL);
+        }
+        Arrays.sort(result.order, from, to);
+        
+        boolean hasPrevious = false;
+        String previous = null;
+        Multimap<String,V> previousMap = null;
+        for (int j=from; j<to; j++) {
+            int i = (int) result.order[j];
+            String termString = result.termStrings[i];
+            Multimap<String,V> map;
+            if (hasPrevious && (termString == previous || (termString != null && termString.equals(previous)))) {
+                map = previousMap;
+            }
+            else {
+                map = this.languageMap(termString);
+                hasPrevious = true;
+                previous = termString;
+                previousMap = map;
+            }
+            if (map != null) result.lists[i] = map.valuesOf(result.languages[i]);
+        }
     }
     
     /**
@@ -170,7 +568,7 @@ public class TermMap<V> {
      * multimap is returned.
      */
     public Multimap<String,V> getValues(String stringTerm) {
-        Multimap<String,V> values = this.entries.get(stringTerm);
+        Multimap<String,V> values = this.languageMap(this.keyString(stringTerm));
         if (values != null) return values;
         else return new Multimap<>();
     }
@@ -188,7 +586,7 @@ public class TermMap<V> {
     public List<String> getKeyTermLanguages(String stringTerm) {
         List<String> result = new ArrayList<>();
         
-        Multimap<String,V> allValues = this.entries.get(stringTerm);
+        Multimap<String,V> allValues = this.languageMap(this.keyString(stringTerm));
         if (allValues!=null) {
             result.addAll(allValues.keySet());
         }
@@ -207,13 +605,9 @@ public class TermMap<V> {
     public List<String> getLanguages() {
         List<String> allLangs = new ArrayList<>();
         if (this.entries!=null) {
-            Set<String> termStrings = this.entries.keySet();
-            for (String termString: termStrings) {
-                List<String> langs = this.getKeyTermLanguages(termString);
-                if (langs != null) {
-                    for (String lang: langs) {
-                        if (!allLangs.contains(lang)) allLangs.add(lang);
-                    }
+            for (Multimap<String,V> map: this.entries.values()) {
+                for (String lang: map.keySet()) {
+                    if (!allLangs.contains(lang)) allLangs.add(lang);
                 }
             }
         }
@@ -231,13 +625,10 @@ public class TermMap<V> {
     public List<Term> getKeyTerms() {
         List<Term> terms = new ArrayList<>();
         if (this.entries!=null) {
-            Set<String> termStrings = this.entries.keySet();
-            for (String termString: termStrings) {
-                List<String> langs = this.getKeyTermLanguages(termString);
-                if (langs != null) {
-                    for (String lang: langs) {
-                        terms.add(new Term(termString, lang));
-                    }
+            for (Map.Entry<String,Multimap<String,V>> entry: this.entries.entrySet()) {
+                String termString = entry.getKey();
+                for (String lang: entry.getValue().keySet()) {
+                    terms.add(new Term(termString, lang));
                 }
             }
         }
@@ -271,11 +662,18 @@ public class TermMap<V> {
         String termString = null;
         String lang = null;
         if (term != null) {
-            termString = term.getString();
+            termString = this.keyString(term.getString());
             lang = term.getLanguage();
         }
-        Multimap<String,V> allValues = this.getValues(termString);
-        if (allValues!=null) return allValues.remove(lang, value);
+        Multimap<String,V> allValues = this.languageMap(termString);
+        if (allValues!=null) {
+            boolean changed = allValues.remove(lang, value);
+            if (changed && this.prefixIndex != null && !allValues.containsKey(lang)) this.prefixIndex.remove(termString, lang);
+            if (changed && this.reverseIndex != null) this.reverseIndex.remove(value, this.indexedTerm(term, termString, lang));
+            if (changed && this.changeFeed != null) this.changeFeed.publish(TermMapEvent.removed(this.indexedTerm(term, termString, lang), value));
+            if (changed && this.metrics != null) this.metrics.recordRemove();
+            return changed;
+        }
         else return false;
     }
     
@@ -295,12 +693,22 @@ public class TermMap<V> {
         String termString = null;
         String lang = null;
         if (term != null) {
-            termString = term.getString();
+            termString = this.keyString(term.getString());
             lang = term.getLanguage();
         }
-        Multimap<String,V> allValues = this.getValues(termString);
-        if (allValues!=null) return allValues.removeAll(lang);
-        else return null;
+        if (this.prefixIndex != null) this.prefixIndex.remove(termString, lang);
+        Multimap<String,V> allValues = this.languageMap(termString);
+        if (allValues!=null) {
+            List<V> removed = allValues.removeAll(lang);
+            if (this.reverseIndex != null) this.reverseIndex.removeAll(removed, this.indexedTerm(term, termString, lang));
+            if (this.changeFeed != null && !removed.isEmpty()) {
+                Term key = this.indexedTerm(term, termString, lang);
+                for (V value: removed) this.changeFeed.publish(TermMapEvent.removed(key, value));
+            }
+            if (!removed.isEmpty() && this.metrics != null) this.metrics.recordRemove();
+            return removed;
+        }
+        else return new ArrayList<>();
     }
     
     /**
@@ -313,7 +721,49 @@ public class TermMap<V> {
      * with their associated values for the specified term string. This may be {@code null}.
      */
     public Multimap<String,V> removeAll(String stringTerm) {
-        return this.entries.remove(stringTerm);
+        String termString = this.keyString(stringTerm);
+        if (termString == null) this.nullTermValues = null;
+        Multimap<String,V> removed = this.entries.remove(termString);
+        if (removed != null && this.prefixIndex != null) {
+            for (String lang: removed.keySet()) this.prefixIndex.remove(termString, lang);
+        }
+        if (removed != null && this.reverseIndex != null) {
+            for (String lang: removed.keySet()) this.reverseIndex.removeAll(removed.valuesOf(lang), new Term(termString, lang));
+        }
+        if (removed != null && this.changeFeed != null) {
+            for (String lang: removed.keySet()) {
+                Term term = new Term(termString, lang);
+                for (V value: removed.valuesOf(lang)) this.changeFeed.publish(TermMapEvent.removed(term, value));
+            }
+        }
+        if (removed != null && this.metrics != null) this.metrics.recordRemove();
+        return removed;
+    }
+
+    /**
+     * Reclaims the memory left unused after loading this {@link TermMap}:
+     * term strings left without values are dropped, the value lists and
+     * language tables are trimmed, and the term string table is rebuilt to fit
+     * the current number of term strings.
+     */
+    public void trimToSize() {
+        int numTermStrings = 0;
+        for (Multimap<String,V> map: this.entries.values()) {
+            if (!map.isEmpty()) numTermStrings++;
+        }
+        int capacity = Multimap.capacityFor(numTermStrings);
+        HashMap<String, Multimap<String,V>> trimmed = new HashMap<>(capacity);
+        for (Map.Entry<String, Multimap<String,V>> entry: this.entries.entrySet()) {
+            Multimap<String,V> map = entry.getValue();
+            if (!map.isEmpty()) {
+                map.trimToSize();
+                trimmed.put(entry.getKey(), map);
+            }
+        }
+        this.entries = trimmed;
+        this.nullTermValues = trimmed.get(null);
+        this.tableCapacity = capacity;
+        if (this.metrics != null) this.metrics.resetResizeBaseline(capacity, trimmed.size());
     }
 
     /**
@@ -327,20 +777,182 @@ public class TermMap<V> {
         return new ArrayList<>(this.entries.keySet()); //this.entries.keyset() is not null
     }
 
+    /**
+     * Builds and starts maintaining a prefix index over the key terms of this
+     * {@link TermMap}, so that {@link #prefixSearch(java.lang.String, java.lang.String, int)}
+     * runs in time proportional to the length of the prefix plus the size of
+     * the result instead of scanning all the term strings. The index costs one
+     * sorted-set node per key term and slows insertions and removals down.
+     *
+     * <p>The index is only kept in step with changes made through the methods
+     * of this {@link TermMap}, not through the multimaps returned by
+     * {@link #getValues(java.lang.String)}.
+     */
+    public void enablePrefixIndex() {
+        if (this.prefixIndex == null) {
+            TermPrefixIndex index = new TermPrefixIndex();
+            for (Map.Entry<String,Multimap<String,V>> entry: this.entries.entrySet()) {
+                for (String lang: entry.getValue().keySet()) index.add(entry.getKey(), lang);
+            }
+            this.prefixIndex = index;
+        }
+    }
+
+    /**
+     * Drops the prefix index built by {@link #enablePrefixIndex()}, if any
+     */
+    public void disablePrefixIndex() {
+        this.prefixIndex = null;
+    }
+
+    /**
+     * Attaches a change feed to this {@link TermMap}: from now on, each value
+     * added, removed or replaced through the methods of this {@link TermMap}
+     * is published to {@code feed} as a {@link TermMapEvent}. Publishing adds
+     * an event allocation to every update, and blocks the update while the
+     * feed is full.
+     *
+     * <p>A feed must only be attached to a single term map at a time.
+     * Changes made through the multimaps returned by
+     * {@link #getValues(java.lang.String)} are not published.
+     *
+     * @param feed Feed to publish the changes to, or {@code null} to stop
+     * publishing them
+     */
+    public void setChangeFeed(TermMapChangeFeed<V> feed) {
+        this.changeFeed = feed;
+    }
+
+    /**
+     * Returns the change feed attached by {@link #setChangeFeed}
+     * @return Change feed of this {@link TermMap}, or {@code null} if none is attached
+     */
+    public TermMapChangeFeed<V> getChangeFeed() {
+        return this.changeFeed;
+    }
+
+    /**
+     * Builds and starts maintaining an inverse index mapping each value to the
+     * key terms it is associated with, so that {@link #containsValue} and
+     * {@link #getKeyTermsForValue} take constant expected time instead of
+     * scanning all the values. The index costs one hash table entry per
+     * distinct value (about 40 bytes on a 64-bit JVM), plus a list holding
+     * one reference per term-value pair for the values associated with
+     * several key terms, plus one {@link Term} object per key term when the
+     * inserted terms cannot be shared (i.e., when this {@link TermMap} has a
+     * {@link KeyNormalizer}). It also adds a hash lookup to every insertion
+     * and removal.
+     *
+     * <p>The index is only kept in step with changes made through the methods
+     * of this {@link TermMap}, not through the multimaps returned by
+     * {@link #getValues(java.lang.String)}.
+     */
+    public void enableReverseIndex() {
+        if (this.reverseIndex == null) {
+            this.reverseIndex = new ReverseIndex<>();
+            for (Map.Entry<String,Multimap<String,V>> entry: this.entries.entrySet()) {
+                this.indexLanguageMap(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Drops the inverse index built by {@link #enableReverseIndex()}, if any
+     */
+    public void disableReverseIndex() {
+        this.reverseIndex = null;
+    }
+
+    private void indexLanguageMap(String termString, Multimap<String,V> map) {
+        for (Map.Entry<String,List<V>> entry: map.entries.entrySet()) {
+            this.reverseIndex.addAll(entry.getValue(), new Term(termString, entry.getKey()));
+        }
+    }
+
+    /**
+     * Checks whether at least one key term is associated with the provided
+     * value. This takes constant time if the {@linkplain #enableReverseIndex()
+     * reverse index} is enabled, and scans all the values otherwise.
+     * @param value Value to search
+     * @return {@code true} if the {@link TermMap} contains {@code value},
+     * {@code false} otherwise
+     */
+    public boolean containsValue(V value) {
+        if (this.reverseIndex != null) return this.reverseIndex.contains(value);
+        for (Multimap<String,V> map: this.entries.values()) {
+            if (map.containsValue(value)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the key terms associated with the provided value, e.g. the
+     * labels of a concept identifier. This takes constant time (plus the size
+     * of the result) if the {@linkplain #enableReverseIndex() reverse index}
+     * is enabled, and scans all the values otherwise.
+     * @param value Value the key terms of which to return
+     * @return {@code List} of the distinct key terms associated with {@code value},
+     * in no particular order. If no key terms are associated with {@code value},
+     * then an <i>empty</i> {@code List} is returned.
+     *
+     * <p>Changes to the returned list will not update the term map.
+     */
+    public List<Term> getKeyTermsForValue(V value) {
+        if (this.reverseIndex != null) return this.reverseIndex.keysOf(value);
+        List<Term> terms = new ArrayList<>();
+        for (Map.Entry<String,Multimap<String,V>> entry: this.entries.entrySet()) {
+            for (String lang: entry.getValue().getKeysForValue(value)) terms.add(new Term(entry.getKey(), lang));
+        }
+        return terms;
+    }
+
+    /**
+     * Returns the key terms in language {@code lang} whose string starts with
+     * {@code prefix}, in ascending order of their strings. If the prefix index
+     * is not {@linkplain #enablePrefixIndex() enabled}, then all the term
+     * strings are scanned.
+     *
+     * @param prefix Prefix of the term strings to return. This is normalized
+     * like term strings if this {@link TermMap} has a {@link KeyNormalizer}.
+     * @param lang Language of the terms to return. If this is {@code null},
+     * then terms with no language are returned.
+     * @param limit Maximum number of terms to return
+     * @return {@code List} of at most {@code limit} matching terms. If no terms
+     * match then an <i>empty</i> {@code List} is returned.
+     */
+    public List<Term> prefixSearch(String prefix, String lang, int limit) {
+        if (prefix == null) prefix = "";
+        else prefix = this.keyString(prefix);
+        if (this.prefixIndex != null) return this.prefixIndex.search(prefix, lang, limit);
+
+        List<String> termStrings = new ArrayList<>();
+        for (Map.Entry<String,Multimap<String,V>> entry: this.entries.entrySet()) {
+            String termString = entry.getKey();
+            if (termString != null && termString.startsWith(prefix) && entry.getValue().containsKey(lang)) termStrings.add(termString);
+        }
+        Collections.sort(termStrings);
+        List<Term> result = new ArrayList<>();
+        for (int i=0; i<termStrings.size() && i<limit; i++) result.add(new Term(termStrings.get(i), lang));
+        return result;
+    }
+
     /**
      * Indicates whether the {@link TermMap} contains the provided term
      * @param term Term to check
      * @return {@code true} is the term exists in the {@link TermMap}, {@code false} otherwise.
      */
     public boolean containsKeyTerm(Term term) {
+        long start = (this.metrics != null) ? System.nanoTime() : 0L;
         String termString = null;
         String lang = null;
         if (term != null) {
-            termString = term.getString();
+            termString = this.keyString(term.getString());
             lang = term.getLanguage();
         }
-        Multimap<String,V> map = this.entries.get(termString);
-        return (map != null && map.containsKey(lang));
+        Multimap<String,V> map = this.languageMap(termString);
+        boolean found = (map != null && map.containsKey(lang));
+        if (this.metrics != null) this.metrics.recordLookup(found, System.nanoTime() - start);
+        return found;
     }
     
     /**
@@ -350,7 +962,7 @@ public class TermMap<V> {
      * @return {@code true} if the term exists in the {@link TermMap}, {@code false} otherwise.
      */
     public boolean containsKeyTerm(String stringTerm) {
-        Multimap<String,V> map = this.entries.get(stringTerm);
+        Multimap<String,V> map = this.languageMap(this.keyString(stringTerm));
         return (map != null && !map.isEmpty());
     }
     
@@ -365,10 +977,10 @@ public class TermMap<V> {
         String termString = null;
         String lang = null;
         if (term != null) {
-            termString = term.getString();
+            termString = this.keyString(term.getString());
             lang = term.getLanguage();
         }
-        Multimap<String,V> map = this.entries.get(termString);
+        Multimap<String,V> map = this.languageMap(termString);
         return (map != null && map.containsEntry(lang, value));
     }
     
@@ -380,7 +992,7 @@ public class TermMap<V> {
      * {@code false} otherwise
      */
     public boolean containsEntry(String stringTerm, V value) {
-        Multimap<String,V> map = this.entries.get(stringTerm);
+        Multimap<String,V> map = this.languageMap(this.keyString(stringTerm));
         return (map != null && map.containsValue(value));
     }
     
@@ -400,4 +1012,106 @@ public class TermMap<V> {
         }
         return size;
     }
+
+    /**
+     * Starts collecting usage metrics on this {@link TermMap}: lookups made with
+     * {@link #getValues(ie.cmrc.util.Term)}, {@link #getValue(ie.cmrc.util.Term)},
+     * {@link #getNonNullValue(ie.cmrc.util.Term)} and {@link #containsKeyTerm(ie.cmrc.util.Term)},
+     * and insertions and removals. Collection adds a few counter updates and
+     * two clock reads per operation; when metrics are disabled it is skipped.
+     * Calling this method while metrics are enabled has no effect.
+     */
+    public void enableMetrics() {
+        if (this.metrics == null) this.metrics = new CollectionMetrics(this.tableCapacity, this.entries.size());
+    }
+
+    /**
+     * Stops collecting usage metrics and discards the collected ones
+     */
+    public void disableMetrics() {
+        this.metrics = null;
+    }
+
+    /**
+     * Returns a snapshot of the usage metrics of this {@link TermMap}, together
+     * with the current distributions of the number of values per key term and
+     * of the number of languages per term string. Computing these distributions
+     * requires a scan of the {@link TermMap}.
+     * @return Snapshot of the metrics, or {@code null} if metrics are not enabled
+     */
+    public CollectionMetrics.Snapshot getMetricsSnapshot() {
+        CollectionMetrics current = this.metrics;
+        if (current == null) return null;
+        long[] valuesPerKey = new long[0];
+        long[] languagesPerTerm = new long[0];
+        for (Multimap<String,V> map: this.entries.values()) {
+            int numLanguages = 0;
+            for (List<V> values: map.entries.values()) {
+                if (values != null && !values.isEmpty()) {
+                    valuesPerKey = CollectionMetrics.increment(valuesPerKey, CollectionMetrics.countBucket(values.size()));
+                    numLanguages++;
+                }
+            }
+            if (numLanguages > 0) {
+                languagesPerTerm = CollectionMetrics.increment(languagesPerTerm, CollectionMetrics.countBucket(numLanguages));
+            }
+        }
+        return current.snapshot(valuesPerKey, languagesPerTerm);
+    }
+
+    /**
+     * Records a lookup of language {@code lang} in the provided values of a term string
+     */
+    private void recordLookup(Multimap<String,V> allValues, String lang, long start) {
+        this.metrics.recordLookup(allValues != null && allValues.containsKey(lang), System.nanoTime() - start);
+    }
+
+    /**
+     * Returns an iterator over the {@code term-value} pairs of this {@link TermMap}.
+     * Pairs are read lazily from the internal tables, so unlike {@link #getKeyTerms()}
+     * no list of the key terms is built beforehand.
+     *
+     * <p>The returned iterator does not support {@code remove()}. The {@link TermMap}
+     * must not be modified while the iteration is in progress.
+     *
+     * @return Iterator over the {@code term-value} pairs of this {@link TermMap}.
+     * If the {@link TermMap} is empty then the iterator has no elements.
+     */
+    public Iterator<Map.Entry<Term,V>> entryIterator() {
+        return new EntryIterator();
+    }
+
+    /**
+     * Iterator walking the term strings of the {@link TermMap}, then the
+     * language-value pairs of each term string
+     */
+    private class EntryIterator implements Iterator<Map.Entry<Term,V>> {
+
+        private final Iterator<Map.Entry<String,Multimap<String,V>>> termStrings = entries.entrySet().iterator();
+        private String termString;
+        private Iterator<Map.Entry<String,V>> languageValues;
+
+        @Override
+        public boolean hasNext() {
+            while (this.languageValues == null || !this.languageValues.hasNext()) {
+                if (!this.termStrings.hasNext()) return false;
+                Map.Entry<String,Multimap<String,V>> entry = this.termStrings.next();
+                this.termString = entry.getKey();
+                this.languageValues = entry.getValue().entryIterator();
+            }
+            return true;
+        }
+
+        @Override
+        public Map.Entry<Term,V> next() {
+            if (!this.hasNext()) throw new NoSuchElementException();
+            Map.Entry<String,V> languageValue = this.languageValues.next();
+            return new AbstractMap.SimpleImmutableEntry<>(new Term(this.termString, languageValue.getKey()), languageValue.getValue());
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Removal is not supported by term map entry iterators");
+        }
+    }
 }
@@ -0,0 +1,362 @@
+/*
+ * Copyright 2015 Coastal and Marine Research Centre (CMRC), Beaufort,
+ * Environmental Research Institute (ERI), University College Cork (UCC).
+ * Yassine Lassoued <y.lassoued@gmail.com, y.lassoued@ucc.ie>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.cmrc.util;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stream of the changes made to a {@link TermMap}, delivered in batches to
+ * {@link TermMapListener}s so that structures derived from the map can be
+ * updated incrementally.
+ *
+ * <p>A feed is attached to a term map with {@link TermMap#setChangeFeed}.
+ * The term map then publishes an event for each value it adds, removes or
+ * replaces into a bounded single-producer single-consumer ring buffer, which
+ * takes no lock. A dispatching thread owned by the feed drains the buffer: it
+ * waits up to the batch window after the first event of a batch for more
+ * events, coalesces the batch and hands it to the listeners. If the
+ * listeners fall behind and the buffer fills up, the thread updating the term
+ * map waits for room (backpressure), so that no event is lost.
+ *
+ * <p>Coalescing only drops changes that cancel out within a batch, and keeps
+ * the order of the events of each term:
+ * <ul>
+ * <li>a value added then removed is dropped, unless the term was replaced
+ * in between;</li>
+ * <li>a replacement supersedes the changes of the term since an earlier
+ * replacement in the same batch, and carries the values that earlier
+ * replacement had found.</li>
+ * </ul>
+ * Events of different terms may be reordered by the second rule.
+ *
+ * <p>Like the term map itself, a feed supports a single updating thread.
+ *
+ * @author Yassine Lassoued
+ * @param <V> Type of the values
+ */
+public class TermMapChangeFeed<V> implements Closeable {
+
+    /**
+     * Default capacity of the ring buffer, in events
+     */
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    /**
+     * Default maximum number of events per batch
+     */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 1024;
+
+    /**
+     * Default batch window, in milliseconds
+     */
+    public static final long DEFAULT_BATCH_WINDOW_MILLIS = 10;
+
+    /**
+     * Longest time the dispatching thread sleeps before checking for events
+     */
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Object[] buffer;
+    private final int mask;
+    private final int maxBatchSize;
+    private final long batchWindowNanos;
+
+    /**
+     * Sequence number of the next event to publish, written by the producer only
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Sequence number of the next event to consume, written by the consumer only
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * Value of {@link #head} last read by the producer
+     */
+    private long cachedHead;
+
+    /**
+     * Number of events handed to the listeners or dropped by coalescing
+     */
+    private final AtomicLong delivered = new AtomicLong();
+
+    private final CopyOnWriteArrayList<TermMapListener<V>> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong failureCount = new AtomicLong();
+    private final Thread dispatcher;
+    private volatile boolean dispatcherWaiting;
+    private volatile boolean closed;
+
+    /**
+     * Creates a feed with the default capacity, batch size and batch window,
+     * and starts its dispatching thread
+     */
+    public TermMapChangeFeed() {
+        this(DEFAULT_CAPACITY, DEFAULT_MAX_BATCH_SIZE, DEFAULT_BATCH_WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a feed and starts its dispatching thread
+     * @param capacity Number of events the ring buffer holds, rounded up to a
+     * power of 2. Beyond it, updates of the term map wait for the listeners.
+     * @param maxBatchSize Maximum number of events per batch
+     * @param batchWindow Time the dispatching thread waits after the first
+     * event of a batch for more events to arrive. 0 delivers the events
+     * available as soon as possible.
+     * @param unit Unit of {@code batchWindow}
+     */
+    public TermMapChangeFeed(int capacity, int maxBatchSize, long batchWindow, TimeUnit unit) {
+        if (capacity <= 0 || capacity > (1 << 30)) throw new IllegalArgumentException("Capacity must be in [1, 2^30]: " + capacity);
+        if (maxBatchSize <= 0) throw new IllegalArgumentException("Maximum batch size must be positive: " + maxBatchSize);
+        if (batchWindow < 0) throw new IllegalArgumentException("Batch window must not be negative: " + batchWindow);
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+        this.buffer = new Object[size];
+        this.mask = size - 1;
+        this.maxBatchSize = maxBatchSize;
+        this.batchWindowNanos = unit.toNanos(batchWindow);
+        this.dispatcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatch();
+            }
+        }, "TermMapChangeFeed");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    /**
+     * Registers a listener. It receives the batches dispatched from now on.
+     * @param listener Listener to add
+     */
+    public void addListener(TermMapListener<V> listener) {
+        if (listener == null) throw new NullPointerException("Listener must not be null");
+        this.listeners.add(listener);
+    }
+
+    /**
+     * Unregisters a listener
+     * @param listener Listener to remove
+     * @return {@code true} if the listener was registered
+     */
+    public boolean removeListener(TermMapListener<V> listener) {
+        return this.listeners.remove(listener);
+    }
+
+    /**
+     * Waits until all the events published so far have been handed to the
+     * listeners (or dropped by coalescing)
+     * @throws InterruptedException If the calling thread is interrupted
+     */
+    public void awaitDelivery() throws InterruptedException {
+        long target = this.tail.get();
+        while (this.delivered.get() < target) {
+            if (Thread.interrupted()) throw new InterruptedException();
+            if (!this.dispatcher.isAlive()) return;
+            LockSupport.unpark(this.dispatcher);
+            LockSupport.parkNanos(MAX_PARK_NANOS / 10);
+        }
+    }
+
+    /**
+     * Number of times a listener threw an exception or an error. These are
+     * caught so that the other listeners and later batches are still served.
+     * @return Listener failure count
+     */
+    public long getFailureCount() {
+        return this.failureCount.get();
+    }
+
+    /**
+     * Delivers the events already published, then stops the dispatching
+     * thread. Events published afterwards are discarded.
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        LockSupport.unpark(this.dispatcher);
+        boolean interrupted = false;
+        while (this.dispatcher.isAlive()) {
+            try {
+                this.dispatcher.join();
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Appends an event to the ring buffer, waiting for room if it is full.
+     * This is only called by the thread updating the term map. If the
+     * dispatching thread has died, the event is discarded instead of waiting
+     * for room that would never come.
+     */
+    void publish(TermMapEvent<V> event) {
+        if (this.closed) return;
+        long sequence = this.tail.get();
+        long wrap = sequence - this.buffer.length;
+        if (this.cachedHead <= wrap) {
+            int spins = 0;
+            while ((this.cachedHead = this.head.get()) <= wrap) {
+                if (this.closed || !this.dispatcher.isAlive()) return;
+                LockSupport.unpark(this.dispatcher);
+                if (++spins < 100) Thread.yield();
+                else LockSupport.parkNanos(MAX_PARK_NANOS / 10);
+            }
+        }
+        this.buffer[(int) sequence & this.mask] = event;
+        this.tail.lazySet(sequence + 1);
+        if (this.dispatcherWaiting) LockSupport.unpark(this.dispatcher);
+    }
+
+    /**
+     * Loop of the dispatching thread
+     */
+    private void dispatch() {
+        List<TermMapEvent<V>> batch = new ArrayList<>(this.maxBatchSize);
+        while (true) {
+            long available = this.tail.get() - this.head.get();
+            if (available == 0) {
+                if (this.closed) return;
+                this.dispatcherWaiting = true;
+                if (this.tail.get() == this.head.get() && !this.closed) LockSupport.parkNanos(MAX_PARK_NANOS);
+                this.dispatcherWaiting = false;
+                continue;
+            }
+            if (this.batchWindowNanos > 0 && available < this.maxBatchSize && !this.closed) {
+                long deadline = System.nanoTime() + this.batchWindowNanos;
+                long remaining;
+                while ((remaining = deadline - System.nanoTime()) > 0 && this.tail.get() - this.head.get() < this.maxBatchSize && !this.closed) {
+                    LockSupport.parkNanos(Math.min(remaining, MAX_PARK_NANOS));
+                }
+            }
+            int count = this.take(batch);
+            List<TermMapEvent<V>> coalesced = coalesce(batch);
+            for (TermMapListener<V> listener: this.listeners) {
+                try {
+                    if (!coalesced.isEmpty()) listener.onEvents(coalesced);
+                }
+                catch (Throwable e) {
+                    // Errors are caught as well: they would otherwise end the
+                    // dispatching thread and leave the updating thread stuck
+                    this.failureCount.incrementAndGet();
+                }
+            }
+            batch.clear();
+            this.delivered.addAndGet(count);
+        }
+    }
+
+    /**
+     * Moves up to the maximum batch size of events from the ring buffer to a batch
+     * @return Number of events taken
+     */
+    @SuppressWarnings("unchecked")
+    private int take(List<TermMapEvent<V>> batch) {
+        long first = this.head.get();
+        long end = Math.min(this.tail.get(), first + this.maxBatchSize);
+        for (long sequence=first; sequence<end; sequence++) {
+            int index = (int) sequence & this.mask;
+            batch.add((TermMapEvent<V>) this.buffer[index]);
+            this.buffer[index] = null;
+        }
+        this.head.lazySet(end);
+        return (int) (end - first);
+    }
+
+    /**
+     * Drops the changes of a batch that cancel out, see the class description
+     * @param batch Events in publication order
+     * @return Remaining events, in publication order
+     */
+    static <V> List<TermMapEvent<V>> coalesce(List<TermMapEvent<V>> batch) {
+        List<TermMapEvent<V>> events = new ArrayList<>(batch);
+        HashMap<Term, TermChanges> changes = new HashMap<>();
+        boolean dropped = false;
+        for (int i=0; i<events.size(); i++) {
+            TermMapEvent<V> event = events.get(i);
+            TermChanges termChanges = changes.get(event.getTerm());
+            if (termChanges == null) {
+                termChanges = new TermChanges();
+                changes.put(event.getTerm(), termChanges);
+            }
+            switch (event.getType()) {
+                case ADDED:
+                    termChanges.events.add(i);
+                    break;
+                case REMOVED:
+                    int added = -1;
+                    for (int j=termChanges.events.size() - 1; j>=0; j--) {
+                        TermMapEvent<V> earlier = events.get(termChanges.events.get(j));
+                        if (earlier.getType() == TermMapEvent.Type.ADDED && equal(earlier.getValue(), event.getValue())) {
+                            added = j;
+                            break;
+                        }
+                    }
+                    if (added >= 0) {
+                        events.set(termChanges.events.remove(added), null);
+                        events.set(i, null);
+                        dropped = true;
+                    }
+                    else termChanges.events.add(i);
+                    break;
+                case REPLACED:
+                    if (termChanges.replaced >= 0) {
+                        List<V> previousValues = events.get(termChanges.replaced).getPreviousValues();
+                        events.set(termChanges.replaced, null);
+                        for (int j: termChanges.events) events.set(j, null);
+                        events.set(i, new TermMapEvent<>(TermMapEvent.Type.REPLACED, event.getTerm(), event.getValue(), previousValues));
+                        dropped = true;
+                    }
+                    termChanges.replaced = i;
+                    termChanges.events.clear();
+                    break;
+            }
+        }
+        if (!dropped) return events;
+        List<TermMapEvent<V>> result = new ArrayList<>(events.size());
+        for (TermMapEvent<V> event: events) {
+            if (event != null) result.add(event);
+        }
+        return result;
+    }
+
+    private static boolean equal(Object o1, Object o2) {
+        return o1 == null ? o2 == null : o1.equals(o2);
+    }
+
+    /**
+     * Events of a term in a batch that may still be coalesced: its last
+     * replacement, and its additions and removals since then
+     */
+    private static final class TermChanges {
+
+        int replaced = -1;
+        final List<Integer> events = new ArrayList<>(2);
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright 2015 Coastal and Marine Research Centre (CMRC), Beaufort,
+ * Environmental Research Institute (ERI), University College Cork (UCC).
+ * Yassine Lassoued <y.lassoued@gmail.com, y.lassoued@ucc.ie>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.cmrc.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of {@link TermMap}s and {@link Multimap}s, used to
+ * transfer them between processes. Neither class is {@code Serializable}; this
+ * codec is the supported way of moving their content.
+ *
+ * <p>A term map is encoded as:
+ * <ul>
+ * <li>a header (magic number and format version);</li>
+ * <li>the table of the distinct languages, each written once, so that a key
+ * term only refers to its language by index;</li>
+ * <li>the values of the {@code null} term string, if any;</li>
+ * <li>the term strings in ascending order, each front-coded as the length of
+ * the prefix it shares with the previous term string followed by the rest of
+ * its characters, and followed by the values of its languages.</li>
+ * </ul>
+ * Counts, lengths and indexes are variable length integers, strings are
+ * UTF-8, and values are written by the {@link ValueCodec} of this codec.
+ *
+ * <p>Encoding and decoding stream the content without building intermediate
+ * copies of the map: the decoded lists and multimaps are handed to the
+ * decoded term map as they are read, and all the key terms of a language
+ * share the single decoded language string. A codec is thread-safe if its
+ * {@link ValueCodec} is.
+ *
+ * @author Yassine Lassoued
+ * @param <V> Type of the values
+ */
+public class TermMapCodec<V> {
+
+    private static final int TERM_MAP_MAGIC = 0x544D4D43;
+    private static final int MULTIMAP_MAGIC = 0x4D4D4D43;
+    private static final int VERSION = 1;
+
+    private final ValueCodec<V> valueCodec;
+
+    /**
+     * Constructs a codec
+     * @param valueCodec Codec of the values
+     */
+    public TermMapCodec(ValueCodec<V> valueCodec) {
+        if (valueCodec == null) throw new NullPointerException("Value codec must not be null");
+        this.valueCodec = valueCodec;
+    }
+
+    /**
+     * Writes a term map to a stream. The stream is flushed but not closed.
+     * @param termMap Term map to write
+     * @param out Stream to write to
+     * @throws IOException If the stream cannot be written
+     */
+    public void write(TermMap<V> termMap, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 8192));
+        this.write(termMap, (DataOutput) data);
+        data.flush();
+    }
+
+    /**
+     * Writes a term map to a buffer, starting at its position and advancing it
+     * @param termMap Term map to write
+     * @param buffer Buffer to write to
+     * @throws IOException If a value cannot be encoded
+     * @throws java.nio.BufferOverflowException If the encoded term map does
+     * not fit in the remaining bytes of {@code buffer}
+     */
+    public void write(TermMap<V> termMap, ByteBuffer buffer) throws IOException {
+        this.write(termMap, (DataOutput) new DataOutputStream(new BinaryIO.ByteBufferOutputStream(buffer)));
+    }
+
+    /**
+     * Reads a term map written by {@link #write(ie.cmrc.util.TermMap, java.io.OutputStream)}.
+     * Exactly the bytes of the encoded term map are consumed, so that the
+     * stream may carry further content. Since the stream is read in small
+     * pieces, it should be buffered.
+     * @param in Stream to read from
+     * @return Decoded term map, without key normalizer
+     * @throws IOException If the stream cannot be read or does not hold an
+     * encoded term map
+     */
+    public TermMap<V> read(InputStream in) throws IOException {
+        return this.read(in, null);
+    }
+
+    /**
+     * Reads a term map written by {@link #write(ie.cmrc.util.TermMap, java.io.OutputStream)},
+     * attaching a key normalizer to it. The term strings are decoded as they
+     * were stored and are not normalized again, hence {@code keyNormalizer}
+     * should be the normalizer of the encoded term map.
+     * @param in Stream to read from
+     * @param keyNormalizer Key normalizer of the decoded term map, may be {@code null}
+     * @return Decoded term map
+     * @throws IOException If the stream cannot be read or does not hold an
+     * encoded term map
+     */
+    public TermMap<V> read(InputStream in, KeyNormalizer keyNormalizer) throws IOException {
+        return this.read((DataInput) new DataInputStream(in), keyNormalizer);
+    }
+
+    /**
+     * Reads a term map written by {@link #write(ie.cmrc.util.TermMap, java.nio.ByteBuffer)},
+     * starting at the position of the buffer and advancing it to the end of
+     * the encoded term map
+     * @param buffer Buffer to read from
+     * @return Decoded term map, without key normalizer
+     * @throws IOException If the buffer does not hold an encoded term map
+     */
+    public TermMap<V> read(ByteBuffer buffer) throws IOException {
+        return this.read(new BinaryIO.ByteBufferInputStream(buffer), null);
+    }
+
+    /**
+     * Writes a multimap to a stream. Keys are written by the provided codec
+     * and values by the codec of this {@link TermMapCodec}. The stream is
+     * flushed but not closed.
+     * @param <K> Type of the keys
+     * @param multimap Multimap to write
+     * @param keyCodec Codec of the keys
+     * @param out Stream to write to
+     * @throws IOException If the stream cannot be written
+     */
+    public <K> void writeMultimap(Multimap<K,V> multimap, ValueCodec<K> keyCodec, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 8192));
+        data.writeInt(MULTIMAP_MAGIC);
+        data.writeByte(VERSION);
+        BinaryIO.writeVarInt(data, multimap.entries.size());
+        for (Map.Entry<K,List<V>> entry: multimap.entries.entrySet()) {
+            keyCodec.write(entry.getKey(), data);
+            this.writeValues(entry.getValue(), data);
+        }
+        data.flush();
+    }
+
+    /**
+     * Reads a multimap written by {@link #writeMultimap(ie.cmrc.util.Multimap, ie.cmrc.util.ValueCodec, java.io.OutputStream)}.
+     * Exactly the bytes of the encoded multimap are consumed.
+     * @param <K> Type of the keys
+     * @param keyCodec Codec of the keys
+     * @param in Stream to read from
+     * @return Decoded multimap
+     * @throws IOException If the stream cannot be read or does not hold an
+     * encoded multimap
+     */
+    public <K> Multimap<K,V> readMultimap(ValueCodec<K> keyCodec, InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        readHeader(data, MULTIMAP_MAGIC, "multimap");
+        int numKeys = readCount(data);
+        Multimap<K,V> multimap = new Multimap<>(BinaryIO.presize(numKeys), 0);
+        for (int i=0; i<numKeys; i++) {
+            K key = keyCodec.read(data);
+            List<V> values = this.readValues(data);
+            if (values != null) multimap.putValueList(key, values);
+        }
+        return multimap;
+    }
+
+    private void write(TermMap<V> termMap, DataOutput out) throws IOException {
+        out.writeInt(TERM_MAP_MAGIC);
+        out.writeByte(VERSION);
+
+        Map<String,Integer> languageIndexes = new HashMap<>();
+        List<String> languages = new ArrayList<>();
+        for (Multimap<String,V> map: termMap.entries.values()) {
+            for (String language: map.entries.keySet()) {
+                if (!languageIndexes.containsKey(language)) {
+                    languageIndexes.put(language, languages.size());
+                    languages.add(language);
+                }
+            }
+        }
+        BinaryIO.writeVarInt(out, languages.size());
+        for (String language: languages) BinaryIO.writeString(out, language);
+
+        Multimap<String,V> nullTermValues = termMap.languageMap(null);
+        String[] termStrings = new String[termMap.entries.size()];
+        int numTermStrings = 0;
+        for (String termString: termMap.entries.keySet()) {
+            if (termString != null) termStrings[numTermStrings++] = termString;
+        }
+        Arrays.sort(termStrings, 0, numTermStrings);
+
+        BinaryIO.writeVarInt(out, numTermStrings);
+        out.writeBoolean(nullTermValues != null);
+        if (nullTermValues != null) this.writeLanguageMap(nullTermValues, languageIndexes, out);
+        String previous = "";
+        for (int i=0; i<numTermStrings; i++) {
+            String termString = termStrings[i];
+            int shared = sharedPrefixLength(previous, termString);
+            BinaryIO.writeVarInt(out, shared);
+            BinaryIO.writeString(out, termString.substring(shared));
+            this.writeLanguageMap(termMap.entries.get(termString), languageIndexes, out);
+            previous = termString;
+        }
+    }
+
+    private TermMap<V> read(DataInput in, KeyNormalizer keyNormalizer) throws IOException {
+        readHeader(in, TERM_MAP_MAGIC, "term map");
+        int numLanguages = readCount(in);
+        List<String> languageList = new ArrayList<>(BinaryIO.presize(numLanguages));
+        for (int i=0; i<numLanguages; i++) languageList.add(BinaryIO.readString(in));
+        String[] languages = languageList.toArray(new String[languageList.size()]);
+
+        int numTermStrings = readCount(in);
+        boolean hasNullTerm = in.readBoolean();
+        TermMap<V> termMap = new TermMap<>(keyNormalizer, BinaryIO.presize(numTermStrings) + (hasNullTerm ? 1 : 0), 0, 0);
+        if (hasNullTerm) this.readLanguageMap(termMap, null, languages, in);
+        String previous = "";
+        for (int i=0; i<numTermStrings; i++) {
+            int shared = readCount(in);
+            String suffix = BinaryIO.readString(in);
+            if (shared > previous.length() || suffix == null) throw new IOException("Malformed term string");
+            String termString = shared == 0 ? suffix : previous.substring(0, shared).concat(suffix);
+            this.readLanguageMap(termMap, termString, languages, in);
+            previous = termString;
+        }
+        return termMap;
+    }
+
+    private void writeLanguageMap(Multimap<String,V> map, Map<String,Integer> languageIndexes, DataOutput out) throws IOException {
+        BinaryIO.writeVarInt(out, map.entries.size());
+        for (Map.Entry<String,List<V>> entry: map.entries.entrySet()) {
+            BinaryIO.writeVarInt(out, languageIndexes.get(entry.getKey()));
+            this.writeValues(entry.getValue(), out);
+        }
+    }
+
+    private void readLanguageMap(TermMap<V> termMap, String termString, String[] languages, DataInput in) throws IOException {
+        int numLanguages = readCount(in);
+        Multimap<String,V> map = new Multimap<>(BinaryIO.presize(numLanguages), 0);
+        for (int i=0; i<numLanguages; i++) {
+            int index = readCount(in);
+            if (index >= languages.length) throw new IOException("Malformed language index: " + index);
+            List<V> values = this.readValues(in);
+            if (values != null) map.putValueList(languages[index], values);
+        }
+        if (!map.isEmpty()) termMap.putLanguageMap(termString, map);
+    }
+
+    private void writeValues(List<V> values, DataOutput out) throws IOException {
+        int size = values.size();
+        BinaryIO.writeVarInt(out, size);
+        for (int i=0; i<size; i++) this.valueCodec.write(values.get(i), out);
+    }
+
+    /**
+     * Reads a list of values, returning {@code null} if it is empty
+     */
+    private List<V> readValues(DataInput in) throws IOException {
+        int size = readCount(in);
+        if (size == 0) return null;
+        List<V> values = new ArrayList<>(BinaryIO.presize(size));
+        for (int i=0; i<size; i++) values.add(this.valueCodec.read(in));
+        return values;
+    }
+
+    /**
+     * Returns the length of the common prefix of two strings, shortened so
+     * that it does not end between the two halves of a surrogate pair
+     */
+    private static int sharedPrefixLength(String s1, String s2) {
+        int max = Math.min(s1.length(), s2.length());
+        int n = 0;
+        while (n < max && s1.charAt(n) == s2.charAt(n)) n++;
+        if (n > 0 && Character.isHighSurrogate(s2.charAt(n - 1))) n--;
+        return n;
+    }
+
+    private static void readHeader(DataInput in, int magic, String kind) throws IOException {
+        if (in.readInt() != magic) throw new IOException("Not an encoded " + kind);
+        int version = in.readUnsignedByte();
+        if (version != VERSION) throw new IOException("Unsupported " + kind + " format version: " + version);
+    }
+
+    private static int readCount(DataInput in) throws IOException {
+        int count = BinaryIO.readVarInt(in);
+        if (count < 0) throw new IOException("Malformed count: " + count);
+        return count;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2015 Coastal and Marine Research Centre (CMRC), Beaufort,
+ * Environmental Research Institute (ERI), University College Cork (UCC).
+ * Yassine Lassoued <y.lassoued@gmail.com, y.lassoued@ucc.ie>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ie.cmrc.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Change made to a {@link TermMap}, delivered by a {@link TermMapChangeFeed}
+ *
+ * @author Yassine Lassoued
+ * @param <V> Type of the values
+ */
+public final class TermMapEvent<V> {
+
+    /**
+     * Kind of change
+     */
+    public enum Type {
+        /**
+         * A value was associated with the term
+         */
+        ADDED,
+        /**
+         * A value was removed from the term
+         */
+        REMOVED,
+        /**
+         * The values of the term were replaced by a single value (see
+         * {@link TermMap#putOnly(ie.cmrc.util.Term, java.lang.Object)})
+         */
+        REPLACED
+    }
+
+    private final Type type;
+    private final Term term;
+    private final V value;
+    private final List<V> previousValues;
+
+    TermMapEvent(Type type, Term term, V value, List<V> previousValues) {
+        this.type = type;
+        this.term = term;
+        this.value = value;
+        this.previousValues = previousValues;
+    }
+
+    static <V> TermMapEvent<V> added(Term term, V value) {
+        return new TermMapEvent<>(Type.ADDED, term, value, Collections.<V>emptyList());
+    }
+
+    static <V> TermMapEvent<V> removed(Term term, V value) {
+        return new TermMapEvent<>(Type.REMOVED, term, value, Collections.<V>emptyList());
+    }
+
+    static <V> TermMapEvent<V> replaced(Term term, V value, List<V> previousValues) {
+        return new TermMapEvent<>(Type.REPLACED, term, value, Collections.unmodifiableList(new ArrayList<>(previousValues)));
+    }
+
+    /**
+     * Kind of change
+     * @return Event type
+     */
+    public Type getType() {
+        return this.type;
+    }
+
+    /**
+     * Key term that changed, with its term string in the normalized form
+     * stored by the term map
+     * @return Term
+     */
+    public Term getTerm() {
+        return this.term;
+    }
+
+    /**
+     * Value added or removed, or the value that replaced the previous ones
+     * @return Value, may be {@code null} if the term map holds {@code null} values
+     */
+    public V getValue() {
+        return this.value;
+    }
+
+    /**
+     * Values the term had before a {@link Type#REPLACED} event
+     * @return Unmodifiable list of the replaced values, in their order in the
+     * term map. This is <i>empty</i> for the other events.
+     */
+    public List<V> getPreviousValues() {
+        return this.previousValues;
+    }
+
+    @Override
+    public String toString() {
+        if (this.type == Type.REPLACED) return this.type + " " + this.term + " " + this.previousValues + " -> " + this.value;
+        else return this.type + " " + this.term + " " + this.value;
+    }
+}
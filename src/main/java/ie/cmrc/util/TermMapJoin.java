@@ -0,0 +1,360 @@
+/*
+ * Copyright 2015 Coastal and Marine Research Centre (CMRC), Beaufort,
+ * Environmental Research Institute (ERI), University College Cork (UCC).
+ * Yassine Lassoued <y.lassoued@gmail.com, y.lassoued@ucc.ie>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.cmrc.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Similarity join of two {@link TermMap}s: finds the pairs of key terms, one
+ * from each map, that have the same language and whose similarity as computed
+ * by {@link StringMatcher#compareStrings(java.lang.String, java.lang.String)}
+ * is at least a given threshold.
+ *
+ * <p>The join gives the same matches and scores as comparing every pair of
+ * terms, without doing so. Terms are partitioned by language, and each term
+ * string is turned into the multiset of its letter pairs, ordered from the
+ * rarest to the most frequent. Two terms are only compared if
+ * <ul>
+ * <li>their numbers of letter pairs are close enough for their similarity to
+ * reach the threshold (length filter), and</li>
+ * <li>they share one of their rarest letter pairs (prefix filter): with a
+ * similarity threshold {@code t}, a term of {@code n} letter pairs shares at
+ * least {@code t.n/(2-t)} of them with any matching term, so any matching term
+ * shares one of its first {@code n - t.n/(2-t) + 1} pairs.</li>
+ * </ul>
+ *
+ * <p>Matches are passed to a {@link MatchHandler} as they are found rather
+ * than collected. The maps must not be modified during a join.
+ *
+ * @author Yassine Lassoued
+ */
+public class TermMapJoin {
+
+    /**
+     * Number of terms of the first map matched by each task of a parallel join
+     */
+    static final int CHUNK_SIZE = 1024;
+
+    /**
+     * Slack applied to the filter bounds so that rounding errors never
+     * discard a matching pair
+     */
+    private static final double EPSILON = 1e-9;
+
+    /**
+     * Receives the matches of a similarity join
+     */
+    public interface MatchHandler {
+
+        /**
+         * Called for each matching pair of terms. When the join runs on an
+         * executor, this is called concurrently by the executor threads.
+         * @param termA Key term of the first {@link TermMap}
+         * @param termB Key term of the second {@link TermMap}, with the same
+         * language as {@code termA}
+         * @param score Similarity of the term strings, at least the threshold
+         * of the join
+         */
+        void match(Term termA, Term termB, double score);
+    }
+
+    /**
+     * Finds the pairs of key terms of {@code a} and {@code b} that have the
+     * same language and a similarity of at least {@code threshold}
+     * @param a First {@link TermMap}
+     * @param b Second {@link TermMap}
+     * @param threshold Similarity threshold in the range [0,1]
+     * @param handler Handler receiving each match
+     * @return Number of matches
+     */
+    public static long similarityJoin(TermMap<?> a, TermMap<?> b, double threshold, MatchHandler handler) {
+        long matches = 0;
+        for (Partition partition: partitions(a, b, threshold)) {
+            matches += partition.probe(0, partition.probes.length, handler);
+        }
+        return matches;
+    }
+
+    /**
+     * Finds the pairs of key terms of {@code a} and {@code b} that have the
+     * same language and a similarity of at least {@code threshold}, splitting
+     * the terms of {@code a} into chunks matched in parallel by the provided
+     * executor
+     * @param a First {@link TermMap}
+     * @param b Second {@link TermMap}
+     * @param threshold Similarity threshold in the range [0,1]
+     * @param handler Handler receiving each match. It is called concurrently
+     * by the executor threads, so it must be thread-safe.
+     * @param executor Executor running the chunks
+     * @return Number of matches
+     * @throws InterruptedException If the calling thread was interrupted while
+     * waiting for the chunks
+     */
+    public static long similarityJoin(TermMap<?> a, TermMap<?> b, double threshold, final MatchHandler handler, ExecutorService executor) throws InterruptedException {
+        List<Future<Long>> futures = new ArrayList<>();
+        for (final Partition partition: partitions(a, b, threshold)) {
+            for (int from=0; from<partition.probes.length; from+=CHUNK_SIZE) {
+                final int chunkFrom = from;
+                final int chunkTo = Math.min(partition.probes.length, from + CHUNK_SIZE);
+                futures.add(executor.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() {
+                        return partition.probe(chunkFrom, chunkTo, handler);
+                    }
+                }));
+            }
+        }
+        long matches = 0;
+        for (Future<Long> future: futures) {
+            try {
+                matches += future.get();
+            }
+            catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                else if (cause instanceof Error) throw (Error) cause;
+                else throw new IllegalStateException(cause);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Groups the key terms of both maps by language and indexes those of
+     * {@code b} for each language that also appears in {@code a}
+     */
+    private static List<Partition> partitions(TermMap<?> a, TermMap<?> b, double threshold) {
+        List<Partition> partitions = new ArrayList<>();
+        if (threshold > 1) return partitions;
+        Map<String, List<Term>> termsA = byLanguage(a);
+        Map<String, List<Term>> termsB = byLanguage(b);
+        for (Map.Entry<String, List<Term>> entry: termsA.entrySet()) {
+            List<Term> targets = termsB.get(entry.getKey());
+            if (targets != null) partitions.add(new Partition(entry.getValue(), targets, threshold));
+        }
+        return partitions;
+    }
+
+    private static Map<String, List<Term>> byLanguage(TermMap<?> map) {
+        Map<String, List<Term>> result = new HashMap<>();
+        for (Term term: map.getKeyTerms()) {
+            List<Term> terms = result.get(term.getLanguage());
+            if (terms == null) {
+                terms = new ArrayList<>();
+                result.put(term.getLanguage(), terms);
+            }
+            terms.add(term);
+        }
+        return result;
+    }
+
+    /**
+     * Lower bound of the number of letter pairs shared by a term of
+     * {@code n} letter pairs with any term matching it
+     */
+    private static int minOverlap(int n, double threshold) {
+        return Math.max(1, (int) Math.ceil(threshold * n / (2 - threshold) - EPSILON));
+    }
+
+    /**
+     * Terms of both maps in one language, with the letter pair tokens of each
+     * term and the index of the terms of {@code b} by the tokens of their prefix
+     */
+    private static final class Partition {
+
+        private final double threshold;
+
+        /**
+         * Whether every pair must be compared, as any pair may match
+         */
+        private final boolean allPairs;
+
+        private final Term[] probes;
+        private final int[][] probeTokens;
+        private final Term[] targets;
+        private final int[][] targetTokens;
+
+        /**
+         * Identifiers of the targets having each token in their prefix
+         */
+        private final int[][] index;
+
+        Partition(List<Term> probes, List<Term> targets, double threshold) {
+            this.threshold = threshold;
+            this.allPairs = threshold <= 0;
+            this.probes = probes.toArray(new Term[probes.size()]);
+            this.targets = targets.toArray(new Term[targets.size()]);
+
+            // A letter pair occurring k times in a term string gives the tokens
+            // (pair, 1) ... (pair, k), so that the multiset intersection of the
+            // letter pairs is the intersection of the token sets
+            HashMap<Long, Integer> tokenIds = new HashMap<>();
+            int[] frequencies = new int[64];
+            this.probeTokens = new int[this.probes.length][];
+            this.targetTokens = new int[this.targets.length][];
+            for (int i=0; i<this.probes.length; i++) {
+                this.probeTokens[i] = tokens(this.probes[i].getString(), tokenIds);
+                frequencies = count(frequencies, this.probeTokens[i]);
+            }
+            for (int i=0; i<this.targets.length; i++) {
+                this.targetTokens[i] = tokens(this.targets[i].getString(), tokenIds);
+                frequencies = count(frequencies, this.targetTokens[i]);
+            }
+
+            // Rank the tokens from the rarest to the most frequent, and sort
+            // the tokens of each term accordingly
+            int numTokens = tokenIds.size();
+            long[] order = new long[numTokens];
+            for (int id=0; id<numTokens; id++) order[id] = ((long) frequencies[id] << 32) | id;
+            Arrays.sort(order);
+            int[] ranks = new int[numTokens];
+            for (int rank=0; rank<numTokens; rank++) ranks[(int) order[rank]] = rank;
+            rank(this.probeTokens, ranks);
+            rank(this.targetTokens, ranks);
+
+            int[] postings = new int[numTokens];
+            if (!this.allPairs) {
+                for (int[] tokens: this.targetTokens) {
+                    int prefix = tokens.length - minOverlap(tokens.length, threshold) + 1;
+                    for (int i=0; i<prefix; i++) postings[tokens[i]]++;
+                }
+            }
+            this.index = new int[numTokens][];
+            for (int token=0; token<numTokens; token++) this.index[token] = new int[postings[token]];
+            if (!this.allPairs) {
+                Arrays.fill(postings, 0);
+                for (int target=0; target<this.targetTokens.length; target++) {
+                    int[] tokens = this.targetTokens[target];
+                    int prefix = tokens.length - minOverlap(tokens.length, threshold) + 1;
+                    for (int i=0; i<prefix; i++) this.index[tokens[i]][postings[tokens[i]]++] = target;
+                }
+            }
+        }
+
+        /**
+         * Matches the probes {@code from} (inclusive) to {@code to} (exclusive)
+         * against the targets
+         * @return Number of matches
+         */
+        long probe(int from, int to, MatchHandler handler) {
+            long matches = 0;
+            if (this.allPairs) {
+                for (int probe=from; probe<to; probe++) {
+                    for (int target=0; target<this.targets.length; target++) {
+                        if (this.verify(probe, target, handler)) matches++;
+                    }
+                }
+                return matches;
+            }
+            // Probe at which each target was last seen, to compare each pair once
+            int[] seen = new int[this.targets.length];
+            Arrays.fill(seen, -1);
+            for (int probe=from; probe<to; probe++) {
+                int[] tokens = this.probeTokens[probe];
+                int n = tokens.length;
+                if (n == 0) continue;
+                int minLength = (int) Math.ceil(this.threshold * n / (2 - this.threshold) - EPSILON);
+                double maxLength = (2 - this.threshold) * n / this.threshold + EPSILON;
+                int prefix = n - minOverlap(n, this.threshold) + 1;
+                for (int i=0; i<prefix; i++) {
+                    for (int target: this.index[tokens[i]]) {
+                        if (seen[target] == probe) continue;
+                        seen[target] = probe;
+                        int m = this.targetTokens[target].length;
+                        if (m >= minLength && m <= maxLength && this.verify(probe, target, handler)) matches++;
+                    }
+                }
+            }
+            return matches;
+        }
+
+        /**
+         * Computes the similarity of a probe and a target, and reports them
+         * if they match
+         */
+        private boolean verify(int probe, int target, MatchHandler handler) {
+            int[] x = this.probeTokens[probe];
+            int[] y = this.targetTokens[target];
+            int intersection = 0;
+            int i = 0;
+            int j = 0;
+            while (i < x.length && j < y.length) {
+                if (x[i] < y[j]) i++;
+                else if (x[i] > y[j]) j++;
+                else {
+                    intersection++;
+                    i++;
+                    j++;
+                }
+            }
+            // Same expression as StringMatcher.compareStrings
+            double score = (2.0*intersection)/(x.length + y.length);
+            if (score >= this.threshold) {
+                handler.match(this.probes[probe], this.targets[target], score);
+                return true;
+            }
+            else return false;
+        }
+
+        /**
+         * Maps the letter pairs of a string to token identifiers, numbering
+         * the repeated occurrences of each pair
+         */
+        private static int[] tokens(String string, HashMap<Long, Integer> tokenIds) {
+            int[] codes = StringMatcher.letterPairCodes(string);
+            Arrays.sort(codes);
+            int[] tokens = new int[codes.length];
+            int occurrence = 0;
+            for (int i=0; i<codes.length; i++) {
+                occurrence = (i > 0 && codes[i] == codes[i - 1]) ? occurrence + 1 : 0;
+                Long key = ((long) codes[i] << 32) | occurrence;
+                Integer id = tokenIds.get(key);
+                if (id == null) {
+                    id = tokenIds.size();
+                    tokenIds.put(key, id);
+                }
+                tokens[i] = id;
+            }
+            return tokens;
+        }
+
+        private static int[] count(int[] frequencies, int[] tokens) {
+            for (int token: tokens) {
+                if (token >= frequencies.length) frequencies = Arrays.copyOf(frequencies, Math.max(token + 1, 2 * frequencies.length));
+                frequencies[token]++;
+            }
+            return frequencies;
+        }
+
+        private static void rank(int[][] termTokens, int[] ranks) {
+            for (int[] tokens: termTokens) {
+                for (int i=0; i<tokens.length; i++) tokens[i] = ranks[tokens[i]];
+                Arrays.sort(tokens);
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2015 Coastal and Marine Research Centre (CMRC), Beaufort,
+ * Environmental Research Institute (ERI), University College Cork (UCC).
+ * Yassine Lassoued <y.lassoued@gmail.com, y.lassoued@ucc.ie>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ie.cmrc.util;
+
+import java.util.List;
+
+/**
+ * Receiver of the changes made to a {@link TermMap}, registered on a
+ * {@link TermMapChangeFeed}
+ *
+ * @author Yassine Lassoued
+ * @param <V> Type of the values
+ */
+public interface TermMapListener<V> {
+
+    /**
+     * Handles a batch of changes. This is called by the dispatching thread of
+     * the feed, one batch at a time.
+     * @param events Changes in the order they were made, after coalescing.
+     * The list must not be kept after this method returns.
+     */
+    void onEvents(List<TermMapEvent<V>> events);
+}
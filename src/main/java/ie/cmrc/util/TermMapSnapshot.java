@@ -0,0 +1,579 @@
+/*
+ * Copyright 2015 Coastal and Marine Research Centre (CMRC), Beaufort,
+ * Environmental Research Institute (ERI), University College Cork (UCC).
+ * Yassine Lassoued <y.lassoued@gmail.com, y.lassoued@ucc.ie>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.cmrc.util;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable state of a {@link VersionedTermMap} at a given point in time.
+ * A snapshot is never modified: updates of the {@link VersionedTermMap}
+ * produce new snapshots, which share with the previous ones all the parts
+ * they did not change. Snapshots may therefore be read and iterated by any
+ * number of threads without locking, and without ever seeing a partial
+ * update or throwing a {@code ConcurrentModificationException}.
+ *
+ * <p>Key terms are stored in a hash array mapped trie (HAMT) indexed by
+ * term string: each node has up to 32 children, selected by 5 bits of the
+ * hash of the term string, and a bitmap telling which children exist, so
+ * that nodes only hold their existing children. Each leaf holds the
+ * languages and values of one term string.
+ *
+ * @author Yassine Lassoued
+ * @param <V> Type of the mapped values
+ */
+public final class TermMapSnapshot<V> {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    static final BitmapNode EMPTY_ROOT = new BitmapNode(0, new Object[0]);
+
+    /**
+     * Root of the trie
+     */
+    final BitmapNode root;
+
+    /**
+     * Number of key terms and of term-value pairs
+     */
+    final int numKeyTerms;
+    final int size;
+
+    /**
+     * Normalizer of the term strings, shared with the {@link VersionedTermMap}
+     */
+    final KeyNormalizer keyNormalizer;
+
+    TermMapSnapshot(BitmapNode root, int numKeyTerms, int size, KeyNormalizer keyNormalizer) {
+        this.root = root;
+        this.numKeyTerms = numKeyTerms;
+        this.size = size;
+        this.keyNormalizer = keyNormalizer;
+    }
+
+    /**
+     * Returns the list of values associated with the provided term
+     * @param term Term for which values will be returned
+     * @return {@code List<V>} containing the values associated with {@code term}.
+     * If the snapshot does not contain any values for the term, then an
+     * <i>empty</i> {@code List<V>} is returned.
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> getValues(Term term) {
+        List<V> result = new ArrayList<>();
+        Object[] values = this.valuesOf(term);
+        if (values != null) {
+            for (Object value: values) result.add((V) value);
+        }
+        return result;
+    }
+
+    /**
+     * Returns a value (the first one) associated with {@code term} if any
+     * @param term {@link Term} whose associated value is to be returned
+     * @return First value associated with {@code term}. If no such value exists
+     * then {@code null} is returned.
+     */
+    @SuppressWarnings("unchecked")
+    public V getValue(Term term) {
+        Object[] values = this.valuesOf(term);
+        if (values != null) return (V) values[0];
+        else return null;
+    }
+
+    /**
+     * Returns the languages and values associated with the provided term string
+     * @param stringTerm {@code String} value of the term whose associated values are to be returned
+     * @return A {@link Multimap} associating with each language the values of
+     * the provided string term. If no values exist then an empty multimap is
+     * returned. Changes to the returned multimap will not update this snapshot.
+     */
+    @SuppressWarnings("unchecked")
+    public Multimap<String,V> getValues(String stringTerm) {
+        Multimap<String,V> result = new Multimap<>();
+        Entry entry = this.entryOf(this.keyString(stringTerm));
+        if (entry != null) {
+            for (int i=0; i<entry.languages.length; i++) {
+                for (Object value: entry.values[i]) result.put(entry.languages[i], (V) value);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the list of languages available for a provided string term
+     * @param stringTerm String term whose associated languages are to be returned
+     * @return {@code List} of languages associated with the provided string term.
+     * If no such languages exist, then an empty {@code List} is returned.
+     */
+    public List<String> getKeyTermLanguages(String stringTerm) {
+        Entry entry = this.entryOf(this.keyString(stringTerm));
+        if (entry != null) return new ArrayList<>(Arrays.asList(entry.languages));
+        else return new ArrayList<>();
+    }
+
+    /**
+     * Checks whether the snapshot has values for the provided term
+     * @param term Term to check
+     * @return {@code true} if the term exists in the snapshot, {@code false} otherwise
+     */
+    public boolean containsKeyTerm(Term term) {
+        return this.valuesOf(term) != null;
+    }
+
+    /**
+     * Checks whether the snapshot has values for the provided term string
+     * @param stringTerm Term string to check
+     * @return {@code true} if the term string exists in the snapshot, {@code false} otherwise
+     */
+    public boolean containsKeyTerm(String stringTerm) {
+        return this.entryOf(this.keyString(stringTerm)) != null;
+    }
+
+    /**
+     * Returns the key terms of the snapshot
+     * @return {@code List} of the key terms. Changes to the returned list will
+     * not update this snapshot.
+     */
+    public List<Term> getKeyTerms() {
+        List<Term> result = new ArrayList<>(this.numKeyTerms);
+        Iterator<Entry> entries = new EntryIterator(this.root);
+        while (entries.hasNext()) {
+            Entry entry = entries.next();
+            for (String lang: entry.languages) result.add(new Term(entry.termString, lang));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of key terms
+     * @return Number of key terms
+     */
+    public int getNumKeyTerms() {
+        return this.numKeyTerms;
+    }
+
+    /**
+     * Returns the number of term-value pairs
+     * @return Number of term-value pairs
+     */
+    public int getSize() {
+        return this.size;
+    }
+
+    /**
+     * Indicates whether the snapshot is empty
+     * @return {@code true} if the snapshot has no key terms
+     */
+    public boolean isEmpty() {
+        return this.numKeyTerms == 0;
+    }
+
+    /**
+     * Returns an iterator over the {@code term-value} pairs of this snapshot.
+     * The iterator does not support {@code remove()}.
+     * @return Iterator over the {@code term-value} pairs
+     */
+    public Iterator<Map.Entry<Term,V>> entryIterator() {
+        return new PairIterator<>(this.root);
+    }
+
+    /**
+     * Copies this snapshot into a new {@link TermMap}
+     * @return Mutable {@link TermMap} with the same content and normalizer
+     */
+    @SuppressWarnings("unchecked")
+    public TermMap<V> toTermMap() {
+        TermMap<V> result = new TermMap<>(this.keyNormalizer);
+        Iterator<Entry> entries = new EntryIterator(this.root);
+        while (entries.hasNext()) {
+            Entry entry = entries.next();
+            for (int i=0; i<entry.languages.length; i++) {
+                // Values of the null term string are those of the null term
+                Term term = (entry.termString != null) ? new Term(entry.termString, entry.languages[i]) : null;
+                for (Object value: entry.values[i]) result.put(term, (V) value);
+            }
+        }
+        return result;
+    }
+
+    String keyString(String stringTerm) {
+        if (this.keyNormalizer != null && stringTerm != null) return this.keyNormalizer.normalize(stringTerm);
+        else return stringTerm;
+    }
+
+    Entry entryOf(String termString) {
+        return find(this.root, hash(termString), termString);
+    }
+
+    private Object[] valuesOf(Term term) {
+        String termString = null;
+        String lang = null;
+        if (term != null) {
+            termString = this.keyString(term.getString());
+            lang = term.getLanguage();
+        }
+        Entry entry = this.entryOf(termString);
+        if (entry == null) return null;
+        int index = entry.indexOf(lang);
+        if (index >= 0) return entry.values[index];
+        else return null;
+    }
+
+    static int hash(String termString) {
+        return (termString != null) ? termString.hashCode() : 0;
+    }
+
+    private static boolean same(String string1, String string2) {
+        return string1 == string2 || (string1 != null && string1.equals(string2));
+    }
+
+    // Trie operations. Nodes are never modified once published: the update
+    // operations copy the path from the root to the updated leaf.
+
+    static Entry find(BitmapNode root, int hash, String termString) {
+        Object node = root;
+        int shift = 0;
+        while (true) {
+            if (node instanceof BitmapNode) {
+                BitmapNode bitmapNode = (BitmapNode) node;
+                int bit = 1 << ((hash >>> shift) & MASK);
+                if ((bitmapNode.bitmap & bit) == 0) return null;
+                Object slot = bitmapNode.slots[Integer.bitCount(bitmapNode.bitmap & (bit - 1))];
+                if (slot instanceof Entry) {
+                    Entry entry = (Entry) slot;
+                    return (entry.hash == hash && same(entry.termString, termString)) ? entry : null;
+                }
+                node = slot;
+                shift += BITS;
+            }
+            else {
+                for (Entry entry: ((CollisionNode) node).entries) {
+                    if (same(entry.termString, termString)) return entry;
+                }
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of {@code node} in which {@code entry} replaces the entry
+     * of the same term string, or is added if there is no such entry
+     */
+    static BitmapNode assoc(BitmapNode node, int shift, Entry entry) {
+        int bit = 1 << ((entry.hash >>> shift) & MASK);
+        int index = Integer.bitCount(node.bitmap & (bit - 1));
+        if ((node.bitmap & bit) == 0) {
+            Object[] slots = new Object[node.slots.length + 1];
+            System.arraycopy(node.slots, 0, slots, 0, index);
+            slots[index] = entry;
+            System.arraycopy(node.slots, index, slots, index + 1, node.slots.length - index);
+            return new BitmapNode(node.bitmap | bit, slots);
+        }
+        Object slot = node.slots[index];
+        Object replacement;
+        if (slot instanceof Entry) {
+            Entry existing = (Entry) slot;
+            if (existing.hash == entry.hash && same(existing.termString, entry.termString)) replacement = entry;
+            else replacement = merge(existing, entry, shift + BITS);
+        }
+        else if (slot instanceof BitmapNode) replacement = assoc((BitmapNode) slot, shift + BITS, entry);
+        else replacement = ((CollisionNode) slot).assoc(entry);
+        Object[] slots = node.slots.clone();
+        slots[index] = replacement;
+        return new BitmapNode(node.bitmap, slots);
+    }
+
+    /**
+     * Builds the subtree holding two entries of different term strings
+     */
+    private static Object merge(Entry entry1, Entry entry2, int shift) {
+        if (shift >= Integer.SIZE) return new CollisionNode(new Entry[] {entry1, entry2});
+        int index1 = (entry1.hash >>> shift) & MASK;
+        int index2 = (entry2.hash >>> shift) & MASK;
+        if (index1 == index2) return new BitmapNode(1 << index1, new Object[] {merge(entry1, entry2, shift + BITS)});
+        else if (index1 < index2) return new BitmapNode((1 << index1) | (1 << index2), new Object[] {entry1, entry2});
+        else return new BitmapNode((1 << index1) | (1 << index2), new Object[] {entry2, entry1});
+    }
+
+    /**
+     * Returns a copy of {@code node} without the entry of the provided term
+     * string. Nodes left with a single entry are replaced by that entry.
+     * @return The updated node, a single {@link Entry}, or {@code null} if
+     * the node is left empty. If the term string is absent, {@code node} itself.
+     */
+    static Object dissoc(BitmapNode node, int shift, int hash, String termString) {
+        int bit = 1 << ((hash >>> shift) & MASK);
+        if ((node.bitmap & bit) == 0) return node;
+        int index = Integer.bitCount(node.bitmap & (bit - 1));
+        Object slot = node.slots[index];
+        Object replacement;
+        if (slot instanceof Entry) {
+            Entry entry = (Entry) slot;
+            if (entry.hash != hash || !same(entry.termString, termString)) return node;
+            replacement = null;
+        }
+        else if (slot instanceof BitmapNode) {
+            replacement = dissoc((BitmapNode) slot, shift + BITS, hash, termString);
+            if (replacement == slot) return node;
+        }
+        else {
+            replacement = ((CollisionNode) slot).dissoc(termString);
+            if (replacement == slot) return node;
+        }
+
+        if (replacement != null) {
+            Object[] slots = node.slots.clone();
+            slots[index] = replacement;
+            return new BitmapNode(node.bitmap, slots);
+        }
+        if (node.slots.length == 1) return null;
+        if (node.slots.length == 2 && shift > 0 && node.slots[1 - index] instanceof Entry) return node.slots[1 - index];
+        Object[] slots = new Object[node.slots.length - 1];
+        System.arraycopy(node.slots, 0, slots, 0, index);
+        System.arraycopy(node.slots, index + 1, slots, index, slots.length - index);
+        return new BitmapNode(node.bitmap & ~bit, slots);
+    }
+
+    /**
+     * Inner node of the trie: {@code slots} holds, in the order of their
+     * index, the children whose bit is set in {@code bitmap}. A child is
+     * either an {@link Entry} or a node.
+     */
+    static final class BitmapNode {
+
+        final int bitmap;
+        final Object[] slots;
+
+        BitmapNode(int bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+    }
+
+    /**
+     * Node holding the entries whose term strings have the same hash
+     */
+    static final class CollisionNode {
+
+        final Entry[] entries;
+
+        CollisionNode(Entry[] entries) {
+            this.entries = entries;
+        }
+
+        CollisionNode assoc(Entry entry) {
+            for (int i=0; i<this.entries.length; i++) {
+                if (same(this.entries[i].termString, entry.termString)) {
+                    Entry[] entries = this.entries.clone();
+                    entries[i] = entry;
+                    return new CollisionNode(entries);
+                }
+            }
+            Entry[] entries = Arrays.copyOf(this.entries, this.entries.length + 1);
+            entries[this.entries.length] = entry;
+            return new CollisionNode(entries);
+        }
+
+        Object dissoc(String termString) {
+            for (int i=0; i<this.entries.length; i++) {
+                if (same(this.entries[i].termString, termString)) {
+                    if (this.entries.length == 2) return this.entries[1 - i];
+                    Entry[] entries = new Entry[this.entries.length - 1];
+                    System.arraycopy(this.entries, 0, entries, 0, i);
+                    System.arraycopy(this.entries, i + 1, entries, i, entries.length - i);
+                    return new CollisionNode(entries);
+                }
+            }
+            return this;
+        }
+    }
+
+    /**
+     * Leaf of the trie: the languages of a term string, and the non-empty
+     * values of each language
+     */
+    static final class Entry {
+
+        final String termString;
+        final int hash;
+        final String[] languages;
+        final Object[][] values;
+
+        Entry(String termString, String[] languages, Object[][] values) {
+            this.termString = termString;
+            this.hash = hash(termString);
+            this.languages = languages;
+            this.values = values;
+        }
+
+        int indexOf(String lang) {
+            for (int i=0; i<this.languages.length; i++) {
+                if (this.languages[i] == lang) return i;
+            }
+            if (lang != null) {
+                for (int i=0; i<this.languages.length; i++) {
+                    if (lang.equals(this.languages[i])) return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Returns a copy of this entry in which the values of {@code lang}
+         * are replaced, {@code null} or empty values removing the language
+         * @return Updated entry, or {@code null} if it has no languages left
+         */
+        Entry with(String lang, Object[] langValues) {
+            int index = this.indexOf(lang);
+            boolean remove = langValues == null || langValues.length == 0;
+            if (index < 0) {
+                if (remove) return this;
+                String[] languages = Arrays.copyOf(this.languages, this.languages.length + 1);
+                Object[][] values = Arrays.copyOf(this.values, this.values.length + 1);
+                languages[this.languages.length] = lang;
+                values[this.values.length] = langValues;
+                return new Entry(this.termString, languages, values);
+            }
+            if (!remove) {
+                Object[][] values = this.values.clone();
+                values[index] = langValues;
+                return new Entry(this.termString, this.languages, values);
+            }
+            if (this.languages.length == 1) return null;
+            String[] languages = new String[this.languages.length - 1];
+            Object[][] values = new Object[this.values.length - 1][];
+            System.arraycopy(this.languages, 0, languages, 0, index);
+            System.arraycopy(this.languages, index + 1, languages, index, languages.length - index);
+            System.arraycopy(this.values, 0, values, 0, index);
+            System.arraycopy(this.values, index + 1, values, index, values.length - index);
+            return new Entry(this.termString, languages, values);
+        }
+    }
+
+    /**
+     * Depth-first iterator over the entries of a trie
+     */
+    private static final class EntryIterator implements Iterator<Entry> {
+
+        private final List<Object[]> slotStack = new ArrayList<>();
+        private final List<Integer> indexStack = new ArrayList<>();
+        private Entry next;
+
+        EntryIterator(BitmapNode root) {
+            this.push(root.slots);
+            this.advance();
+        }
+
+        private void push(Object[] slots) {
+            this.slotStack.add(slots);
+            this.indexStack.add(0);
+        }
+
+        private void advance() {
+            this.next = null;
+            while (!this.slotStack.isEmpty()) {
+                int top = this.slotStack.size() - 1;
+                Object[] slots = this.slotStack.get(top);
+                int index = this.indexStack.get(top);
+                if (index >= slots.length) {
+                    this.slotStack.remove(top);
+                    this.indexStack.remove(top);
+                    continue;
+                }
+                this.indexStack.set(top, index + 1);
+                Object slot = slots[index];
+                if (slot instanceof Entry) {
+                    this.next = (Entry) slot;
+                    return;
+                }
+                else if (slot instanceof BitmapNode) this.push(((BitmapNode) slot).slots);
+                else this.push(((CollisionNode) slot).entries);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.next != null;
+        }
+
+        @Override
+        public Entry next() {
+            if (this.next == null) throw new NoSuchElementException();
+            Entry entry = this.next;
+            this.advance();
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Snapshots are immutable");
+        }
+    }
+
+    /**
+     * Iterator over the term-value pairs of a trie
+     */
+    private static final class PairIterator<V> implements Iterator<Map.Entry<Term,V>> {
+
+        private final EntryIterator entries;
+        private Entry entry;
+        private int language;
+        private int value;
+
+        PairIterator(BitmapNode root) {
+            this.entries = new EntryIterator(root);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (this.entry == null || this.language >= this.entry.languages.length) {
+                if (!this.entries.hasNext()) return false;
+                this.entry = this.entries.next();
+                this.language = 0;
+                this.value = 0;
+            }
+            return true;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Map.Entry<Term,V> next() {
+            if (!this.hasNext()) throw new NoSuchElementException();
+            Term term = new Term(this.entry.termString, this.entry.languages[this.language]);
+            V current = (V) this.entry.values[this.language][this.value];
+            if (++this.value >= this.entry.values[this.language].length) {
+                this.language++;
+                this.value = 0;
+            }
+            return new AbstractMap.SimpleImmutableEntry<>(term, current);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Snapshots are immutable");
+        }
+    }
+}
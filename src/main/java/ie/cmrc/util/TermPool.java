@@ -0,0 +1,183 @@
+/*
+ * Copyright 2015 Coastal and Marine Research Centre (CMRC), Beaufort,
+ * Environmental Research Institute (ERI), University College Cork (UCC).
+ * Yassine Lassoued <y.lassoued@gmail.com, y.lassoued@ucc.ie>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.cmrc.util;
+
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe pool of canonical {@link Term}s, similar to {@link String#intern()}.
+ * Interning equal terms through the same pool returns the same {@link Term}
+ * instance, whose strings are themselves shared with the other pooled terms.
+ * This removes the duplicates created when the same vocabulary is read from
+ * many sources.
+ *
+ * <p>The pool only holds weak references: a canonical term (or string) is
+ * dropped from the pool once it is no longer used elsewhere. The pool is
+ * split into independently locked stripes to reduce contention.
+ *
+ * @author Yassine Lassoued
+ */
+public class TermPool {
+
+    /**
+     * Number of stripes, must be a power of 2
+     */
+    private static final int NUM_STRIPES = 16;
+
+    private final Stripe<Term>[] termStripes;
+    private final Stripe<String>[] stringStripes;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Constructs an empty pool
+     */
+    public TermPool() {
+        @SuppressWarnings("unchecked")
+        Stripe<Term>[] terms = (Stripe<Term>[]) new Stripe<?>[NUM_STRIPES];
+        @SuppressWarnings("unchecked")
+        Stripe<String>[] strings = (Stripe<String>[]) new Stripe<?>[NUM_STRIPES];
+        this.termStripes = terms;
+        this.stringStripes = strings;
+        for (int i=0; i<NUM_STRIPES; i++) {
+            this.termStripes[i] = new Stripe<>();
+            this.stringStripes[i] = new Stripe<>();
+        }
+    }
+
+    /**
+     * Returns the canonical instance of the provided term
+     * @param term Term to intern
+     * @return Pooled term equal to {@code term}. If the pool did not contain
+     * such a term, then a term sharing the pooled strings is added to the pool
+     * and returned. If {@code term} is {@code null} then {@code null} is returned.
+     */
+    public Term intern(Term term) {
+        if (term == null) return null;
+        Stripe<Term> stripe = stripeFor(this.termStripes, term.hashCode());
+        Term canonical = stripe.get(term);
+        if (canonical != null) {
+            this.hitCount.incrementAndGet();
+            return canonical;
+        }
+        this.missCount.incrementAndGet();
+        Term candidate = new Term(this.intern(term.getString()), this.intern(term.getLanguage()));
+        return stripe.putIfAbsent(candidate);
+    }
+
+    /**
+     * Returns the canonical instance of the term with the provided string
+     * content and language
+     * @param stringContent {@code String} content of the term
+     * @param language Language of the term (may be {@code null})
+     * @return Pooled term equal to {@code new Term(stringContent, language)}
+     */
+    public Term intern(String stringContent, String language) {
+        return this.intern(new Term(stringContent, language));
+    }
+
+    /**
+     * Returns the canonical instance of the provided string. Term strings and
+     * languages are pooled through this method.
+     * @param string String to intern
+     * @return Pooled string equal to {@code string}. If {@code string} is
+     * {@code null} then {@code null} is returned.
+     */
+    public String intern(String string) {
+        if (string == null) return null;
+        Stripe<String> stripe = stripeFor(this.stringStripes, string.hashCode());
+        String canonical = stripe.get(string);
+        if (canonical != null) return canonical;
+        else return stripe.putIfAbsent(string);
+    }
+
+    /**
+     * Returns the number of terms currently held by the pool
+     * @return Number of pooled terms
+     */
+    public int size() {
+        int n = 0;
+        for (Stripe<Term> stripe: this.termStripes) n += stripe.size();
+        return n;
+    }
+
+    /**
+     * Number of {@code intern} calls that found the term in the pool
+     * @return Hit count
+     */
+    public long getHitCount() {
+        return this.hitCount.get();
+    }
+
+    /**
+     * Number of {@code intern} calls that did not find the term in the pool
+     * @return Miss count
+     */
+    public long getMissCount() {
+        return this.missCount.get();
+    }
+
+    /**
+     * Ratio of term {@code intern} calls that found the term in the pool
+     * @return Hit rate in the range [0,1]. If no terms were interned then 1 is returned.
+     */
+    public double getHitRate() {
+        long hits = this.hitCount.get();
+        long requests = hits + this.missCount.get();
+        if (requests == 0) return 1.0;
+        else return (double) hits / requests;
+    }
+
+    private static <T> Stripe<T> stripeFor(Stripe<T>[] stripes, int hash) {
+        hash ^= (hash >>> 16);
+        return stripes[hash & (NUM_STRIPES - 1)];
+    }
+
+    /**
+     * Part of the pool, mapping each pooled object to a weak reference to
+     * itself so that neither the key nor the value keep it reachable
+     */
+    private static final class Stripe<T> {
+
+        private final WeakHashMap<T, WeakReference<T>> objects = new WeakHashMap<>();
+
+        synchronized T get(T object) {
+            WeakReference<T> reference = this.objects.get(object);
+            if (reference != null) return reference.get();
+            else return null;
+        }
+
+        synchronized T putIfAbsent(T object) {
+            WeakReference<T> reference = this.objects.get(object);
+            if (reference != null) {
+                T existing = reference.get();
+                if (existing != null) return existing;
+            }
+            this.objects.put(object, new WeakReference<>(object));
+            return object;
+        }
+
+        synchronized int size() {
+            return this.objects.size();
+        }
+    }
+}
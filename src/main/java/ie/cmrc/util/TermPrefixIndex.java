@@ -0,0 +1,90 @@
+/*
+ * Copyright 2015 Coastal and Marine Research Centre (CMRC), Beaufort,
+ * Environmental Research Institute (ERI), University College Cork (UCC).
+ * Yassine Lassoued <y.lassoued@gmail.com, y.lassoued@ucc.ie>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.cmrc.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Index of the key terms of a {@link TermMap} supporting prefix searches.
+ * Term strings are kept sorted per language, so a search seeks to the first
+ * term string not less than the prefix and reads the following ones until the
+ * prefix no longer matches.
+ *
+ * @author Yassine Lassoued
+ */
+class TermPrefixIndex {
+
+    /**
+     * Sorted term strings of each language
+     */
+    private final HashMap<String, TreeSet<String>> termStrings = new HashMap<>();
+
+    /**
+     * Adds a key term to the index
+     * @param termString Term string. {@code null} term strings are not indexed.
+     * @param lang Term language, may be {@code null}
+     */
+    void add(String termString, String lang) {
+        if (termString == null) return;
+        TreeSet<String> strings = this.termStrings.get(lang);
+        if (strings == null) {
+            strings = new TreeSet<>();
+            this.termStrings.put(lang, strings);
+        }
+        strings.add(termString);
+    }
+
+    /**
+     * Removes a key term from the index
+     * @param termString Term string
+     * @param lang Term language, may be {@code null}
+     */
+    void remove(String termString, String lang) {
+        if (termString == null) return;
+        TreeSet<String> strings = this.termStrings.get(lang);
+        if (strings != null) {
+            strings.remove(termString);
+            if (strings.isEmpty()) this.termStrings.remove(lang);
+        }
+    }
+
+    /**
+     * Returns the key terms in the provided language whose string starts with
+     * {@code prefix}, in ascending order of their strings
+     * @param prefix Prefix of the term strings, must not be {@code null}
+     * @param lang Term language, may be {@code null}
+     * @param limit Maximum number of terms to return
+     * @return Matching terms. This is never {@code null}.
+     */
+    List<Term> search(String prefix, String lang, int limit) {
+        List<Term> result = new ArrayList<>();
+        TreeSet<String> strings = this.termStrings.get(lang);
+        if (strings != null && limit > 0) {
+            for (String termString: strings.tailSet(prefix, true)) {
+                if (!termString.startsWith(prefix)) break;
+                result.add(new Term(termString, lang));
+                if (result.size() >= limit) break;
+            }
+        }
+        return result;
+    }
+}
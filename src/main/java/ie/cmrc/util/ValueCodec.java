@@ -0,0 +1,53 @@
+/*
+ * Copyright 2015 Coastal and Marine Research Centre (CMRC), Beaufort,
+ * Environmental Research Institute (ERI), University College Cork (UCC).
+ * Yassine Lassoued <y.lassoued@gmail.com, y.lassoued@ucc.ie>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.cmrc.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Binary encoding of the values of a term map, used to persist or transfer
+ * them. Standard codecs are provided by {@link ValueCodecs}.
+ *
+ * <p>Implementations must be thread-safe, and must read back exactly the
+ * bytes they write.
+ *
+ * @author Yassine Lassoued
+ * @param <V> Type of the encoded values
+ */
+public interface ValueCodec<V> {
+
+    /**
+     * Writes a value
+     * @param value Value to write. This may be {@code null} if the term map
+     * holds {@code null} values.
+     * @param out Output to write to
+     * @throws IOException If the value cannot be written
+     */
+    void write(V value, DataOutput out) throws IOException;
+
+    /**
+     * Reads a value written by {@link #write(java.lang.Object, java.io.DataOutput)}
+     * @param in Input to read from
+     * @return Value read
+     * @throws IOException If the value cannot be read
+     */
+    V read(DataInput in) throws IOException;
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2015 Coastal and Marine Research Centre (CMRC), Beaufort,
+ * Environmental Research Institute (ERI), University College Cork (UCC).
+ * Yassine Lassoued <y.lassoued@gmail.com, y.lassoued@ucc.ie>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.cmrc.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Standard {@link ValueCodec}s. All of them support {@code null} values.
+ *
+ * @author Yassine Lassoued
+ */
+public final class ValueCodecs {
+
+    /**
+     * Codec of {@code String} values, written as their UTF-8 bytes preceded by
+     * their length
+     */
+    public static final ValueCodec<String> STRING = new ValueCodec<String>() {
+        @Override
+        public void write(String value, DataOutput out) throws IOException {
+            BinaryIO.writeString(out, value);
+        }
+
+        @Override
+        public String read(DataInput in) throws IOException {
+            return BinaryIO.readString(in);
+        }
+    };
+
+    /**
+     * Codec of {@code Integer} values, written as variable length integers
+     */
+    public static final ValueCodec<Integer> INTEGER = new ValueCodec<Integer>() {
+        @Override
+        public void write(Integer value, DataOutput out) throws IOException {
+            out.writeBoolean(value != null);
+            if (value != null) BinaryIO.writeVarInt(out, (value << 1) ^ (value >> 31));
+        }
+
+        @Override
+        public Integer read(DataInput in) throws IOException {
+            if (!in.readBoolean()) return null;
+            int zigzag = BinaryIO.readVarInt(in);
+            return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+    };
+
+    /**
+     * Codec of {@code Long} values, written as variable length integers
+     */
+    public static final ValueCodec<Long> LONG = new ValueCodec<Long>() {
+        @Override
+        public void write(Long value, DataOutput out) throws IOException {
+            out.writeBoolean(value != null);
+            if (value != null) BinaryIO.writeVarLong(out, (value << 1) ^ (value >> 63));
+        }
+
+        @Override
+        public Long read(DataInput in) throws IOException {
+            if (!in.readBoolean()) return null;
+            long zigzag = BinaryIO.readVarLong(in);
+            return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+    };
+
+    private ValueCodecs() {
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2015 Coastal and Marine Research Centre (CMRC), Beaufort,
+ * Environmental Research Institute (ERI), University College Cork (UCC).
+ * Yassine Lassoued <y.lassoued@gmail.com, y.lassoued@ucc.ie>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.cmrc.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A term map supporting concurrent lock-free reads and O(1) snapshots, for
+ * reference data read by many threads while being updated in the background.
+ *
+ * <p>The content of the map is held by an immutable {@link TermMapSnapshot}.
+ * Each update builds a new snapshot that shares with the previous one all
+ * the parts it does not change, copying only the path to the updated term
+ * string (see {@link TermMapSnapshot}), and then publishes it. Reads go to
+ * the latest published snapshot without locking; {@link #snapshot()} returns
+ * it, giving a consistent view that later updates will not change. Updates
+ * are serialised.
+ *
+ * <p>Unlike {@link TermMap}, this class does not hand out live views of its
+ * content: returned lists and multimaps are copies.
+ *
+ * @author Yassine Lassoued
+ * @param <V> Type of the mapped values
+ */
+public class VersionedTermMap<V> {
+
+    private volatile TermMapSnapshot<V> current;
+
+    /**
+     * Constructs an empty {@link VersionedTermMap}
+     */
+    public VersionedTermMap() {
+        this((KeyNormalizer) null);
+    }
+
+    /**
+     * Constructs an empty {@link VersionedTermMap} whose term strings are
+     * normalized before being stored and looked up (see
+     * {@link TermMap#TermMap(ie.cmrc.util.KeyNormalizer)})
+     * @param keyNormalizer Normalizer applied to term strings. If this is
+     * {@code null} then term strings are used as is.
+     */
+    public VersionedTermMap(KeyNormalizer keyNormalizer) {
+        this.current = new TermMapSnapshot<>(TermMapSnapshot.EMPTY_ROOT, 0, 0, keyNormalizer);
+    }
+
+    /**
+     * Constructs a {@link VersionedTermMap} with the content and normalizer
+     * of the provided {@link TermMap}
+     * @param termMap Term map to copy
+     */
+    public VersionedTermMap(TermMap<V> termMap) {
+        this(termMap.keyNormalizer);
+        // The term strings are read from the table rather than from Term
+        // objects, which turn the null term into ""
+        for (Map.Entry<String,Multimap<String,V>> entry: termMap.entries.entrySet()) {
+            String termString = entry.getKey();
+            Iterator<Map.Entry<String,V>> pairs = entry.getValue().entryIterator();
+            while (pairs.hasNext()) {
+                Map.Entry<String,V> pair = pairs.next();
+                this.put((termString != null) ? new Term(termString, pair.getKey()) : null, pair.getValue());
+            }
+        }
+    }
+
+    /**
+     * Returns the current content of this map. This takes constant time, and
+     * the returned snapshot is not affected by later updates.
+     * @return Current snapshot
+     */
+    public TermMapSnapshot<V> snapshot() {
+        return this.current;
+    }
+
+    /**
+     * Inserts the provided {@code value} associated with the provided {@code term}
+     * @param term Term with which the specified value is to be associated
+     * @param value Value to be associated with the specified term
+     */
+    public synchronized void put(Term term, V value) {
+        this.update(term, value, false, false);
+    }
+
+    /**
+     * Inserts the provided {@code term-value} entry if it is not already in the map
+     * @param term Term with which the specified value is to be associated
+     * @param value Value to be associated with the specified term
+     * @return {@code true} if the entry was added, {@code false} otherwise
+     */
+    public synchronized boolean putIfAbsent(Term term, V value) {
+        return this.update(term, value, true, false);
+    }
+
+    /**
+     * Inserts the provided {@code term-value} entry and makes sure that {@code value}
+     * is the only value associated with {@code term}
+     * @param term Key term with which the specified value is to be associated
+     * @param value Value to be associated with the specified key term
+     */
+    public synchronized void putOnly(Term term, V value) {
+        this.update(term, value, false, true);
+    }
+
+    /**
+     * Removes the provided {@code term-value} pair
+     * @param term {@link Term} the associated value of which to remove
+     * @param value Value associated with the term to remove
+     * @return {@code true} if the map has changed, {@code false} otherwise.
+     */
+    public synchronized boolean remove(Term term, V value) {
+        TermMapSnapshot<V> snapshot = this.current;
+        String termString = (term != null) ? snapshot.keyString(term.getString()) : null;
+        String lang = (term != null) ? term.getLanguage() : null;
+        TermMapSnapshot.Entry entry = snapshot.entryOf(termString);
+        if (entry == null) return false;
+        int index = entry.indexOf(lang);
+        if (index < 0) return false;
+        Object[] values = entry.values[index];
+        int position = indexOf(values, value);
+        if (position < 0) return false;
+        Object[] remaining = new Object[values.length - 1];
+        System.arraycopy(values, 0, remaining, 0, position);
+        System.arraycopy(values, position + 1, remaining, position, remaining.length - position);
+        int numKeyTerms = snapshot.numKeyTerms - ((remaining.length == 0) ? 1 : 0);
+        this.publish(snapshot, termString, entry.with(lang, remaining), numKeyTerms, snapshot.size - 1);
+        return true;
+    }
+
+    /**
+     * Removes all the values associated with the provided {@code term}
+     * @param term {@link Term} whose values are to be removed
+     * @return The {@code List} of values that were removed. If no values were
+     * removed, then an <i>empty</i> {@code List} is returned.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized List<V> removeAll(Term term) {
+        List<V> removed = new ArrayList<>();
+        TermMapSnapshot<V> snapshot = this.current;
+        String termString = (term != null) ? snapshot.keyString(term.getString()) : null;
+        String lang = (term != null) ? term.getLanguage() : null;
+        TermMapSnapshot.Entry entry = snapshot.entryOf(termString);
+        if (entry == null) return removed;
+        int index = entry.indexOf(lang);
+        if (index < 0) return removed;
+        for (Object value: entry.values[index]) removed.add((V) value);
+        this.publish(snapshot, termString, entry.with(lang, null), snapshot.numKeyTerms - 1, snapshot.size - removed.size());
+        return removed;
+    }
+
+    /**
+     * Removes all the languages and values associated with the provided string term
+     * @param stringTerm Term string whose values are to be removed
+     * @return {@code Multimap<String,V>} containing all the removed languages
+     * with their associated values. If the term string was absent then
+     * {@code null} is returned.
+     */
+    public synchronized Multimap<String,V> removeAll(String stringTerm) {
+        TermMapSnapshot<V> snapshot = this.current;
+        String termString = snapshot.keyString(stringTerm);
+        if (snapshot.entryOf(termString) == null) return null;
+        Multimap<String,V> removed = snapshot.getValues(stringTerm);
+        this.publish(snapshot, termString, null, snapshot.numKeyTerms - removed.keySet().size(), snapshot.size - removed.size());
+        return removed;
+    }
+
+    /**
+     * Removes all the content of this map
+     */
+    public synchronized void clear() {
+        this.current = new TermMapSnapshot<>(TermMapSnapshot.EMPTY_ROOT, 0, 0, this.current.keyNormalizer);
+    }
+
+    /**
+     * Returns the list of values associated with the provided term in the
+     * current snapshot
+     * @param term Term for which values will be returned
+     * @return Values associated with {@code term}, see {@link TermMapSnapshot#getValues(ie.cmrc.util.Term)}
+     */
+    public List<V> getValues(Term term) {
+        return this.current.getValues(term);
+    }
+
+    /**
+     * Returns a value (the first one) associated with {@code term} in the
+     * current snapshot if any
+     * @param term {@link Term} whose associated value is to be returned
+     * @return First value associated with {@code term}. If no such value exists
+     * then {@code null} is returned.
+     */
+    public V getValue(Term term) {
+        return this.current.getValue(term);
+    }
+
+    /**
+     * Returns the languages and values associated with the provided term
+     * string in the current snapshot
+     * @param stringTerm {@code String} value of the term whose associated values are to be returned
+     * @return Copy of the languages and values of the term string, see
+     * {@link TermMapSnapshot#getValues(java.lang.String)}
+     */
+    public Multimap<String,V> getValues(String stringTerm) {
+        return this.current.getValues(stringTerm);
+    }
+
+    /**
+     * Checks whether the current snapshot has values for the provided term
+     * @param term Term to check
+     * @return {@code true} if the term exists, {@code false} otherwise
+     */
+    public boolean containsKeyTerm(Term term) {
+        return this.current.containsKeyTerm(term);
+    }
+
+    /**
+     * Returns the number of key terms of the current snapshot
+     * @return Number of key terms
+     */
+    public int getNumKeyTerms() {
+        return this.current.getNumKeyTerms();
+    }
+
+    /**
+     * Returns the number of term-value pairs of the current snapshot
+     * @return Number of term-value pairs
+     */
+    public int getSize() {
+        return this.current.getSize();
+    }
+
+    /**
+     * Adds a value to the values of a term, and publishes the resulting snapshot
+     * @param ifAbsent Whether the value is only added if it is not already associated with the term
+     * @param only Whether the value replaces the values of the term
+     * @return {@code true} if the value was added
+     */
+    private boolean update(Term term, V value, boolean ifAbsent, boolean only) {
+        TermMapSnapshot<V> snapshot = this.current;
+        String termString = (term != null) ? snapshot.keyString(term.getString()) : null;
+        String lang = (term != null) ? term.getLanguage() : null;
+        TermMapSnapshot.Entry entry = snapshot.entryOf(termString);
+        Object[] values = null;
+        if (entry != null) {
+            int index = entry.indexOf(lang);
+            if (index >= 0) values = entry.values[index];
+        }
+        if (ifAbsent && values != null && indexOf(values, value) >= 0) return false;
+
+        Object[] updated;
+        int size = snapshot.size + 1;
+        if (values == null || only) {
+            updated = new Object[] {value};
+            if (values != null) size -= values.length;
+        }
+        else {
+            updated = Arrays.copyOf(values, values.length + 1);
+            updated[values.length] = value;
+        }
+        int numKeyTerms = snapshot.numKeyTerms + ((values == null) ? 1 : 0);
+        if (entry == null) entry = new TermMapSnapshot.Entry(termString, new String[] {lang}, new Object[][] {updated});
+        else entry = entry.with(lang, updated);
+        this.publish(snapshot, termString, entry, numKeyTerms, size);
+        return true;
+    }
+
+    /**
+     * Publishes the snapshot obtained by replacing the entry of a term string
+     * @param entry New entry of the term string, {@code null} to remove it
+     */
+    private void publish(TermMapSnapshot<V> snapshot, String termString, TermMapSnapshot.Entry entry, int numKeyTerms, int size) {
+        TermMapSnapshot.BitmapNode root;
+        if (entry != null) root = TermMapSnapshot.assoc(snapshot.root, 0, entry);
+        else {
+            root = (TermMapSnapshot.BitmapNode) TermMapSnapshot.dissoc(snapshot.root, 0, TermMapSnapshot.hash(termString), termString);
+            if (root == null) root = TermMapSnapshot.EMPTY_ROOT;
+        }
+        this.current = new TermMapSnapshot<>(root, numKeyTerms, size, snapshot.keyNormalizer);
+    }
+
+    private static int indexOf(Object[] values, Object value) {
+        for (int i=0; i<values.length; i++) {
+            if (value == null ? values[i] == null : value.equals(values[i])) return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2015 Coastal and Marine Research Centre (CMRC), Beaufort,
+ * Environmental Research Institute (ERI), University College Cork (UCC).
+ * Yassine Lassoued <y.lassoued@gmail.com, y.lassoued@ucc.ie>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ie.cmrc.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link DurableTermMap}
+ * @author Yassine Lassoued
+ */
+public class DurableTermMapTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Term term(int i) {
+        return new Term("term" + i, "en");
+    }
+
+    private DurableTermMap<String> open(File directory) throws IOException {
+        return new DurableTermMap<>(directory, ValueCodecs.STRING);
+    }
+
+    @Test
+    public void tornTailIsDiscardedAndLaterRecordsSurvive() throws IOException {
+        File directory = this.folder.newFolder();
+        DurableTermMap<String> map = this.open(directory);
+        for (int i = 0; i < 10; i++) map.put(term(i), "v" + i);
+        map.close();
+
+        // A record cut short by a crash: its header announces more bytes than follow
+        try (FileChannel log = FileChannel.open(new File(directory, "termmap-0.log").toPath(), StandardOpenOption.WRITE)) {
+            log.position(log.size());
+            ByteBuffer torn = ByteBuffer.allocate(12);
+            torn.putInt(100).putInt(0x12345678).putInt(7).flip();
+            log.write(torn);
+        }
+
+        map = this.open(directory);
+        assertEquals(10, map.getSize());
+        map.put(term(10), "v10");
+        map.close();
+
+        map = this.open(directory);
+        assertEquals(11, map.getSize());
+        for (int i = 0; i <= 10; i++) assertEquals("v" + i, map.getValue(term(i)));
+        map.close();
+    }
+
+    @Test
+    public void failedWriteIsRetriedWithoutTearingTheLog() throws IOException {
+        File directory = this.folder.newFolder();
+        FailingDurableTermMap map = new FailingDurableTermMap(directory);
+        map.put(term(0), "v0");
+        map.commit();
+
+        map.channel.failWrite = true;
+        map.put(term(1), "v1");
+        try {
+            map.commit();
+            fail("Injected write failure not reported");
+        }
+        catch (IOException e) {
+            // expected
+        }
+        map.channel.failWrite = false;
+        map.put(term(2), "v2");
+        map.commit();
+        map.close();
+
+        DurableTermMap<String> reopened = this.open(directory);
+        assertEquals(3, reopened.getSize());
+        for (int i = 0; i < 3; i++) assertEquals("v" + i, reopened.getValue(term(i)));
+        reopened.close();
+    }
+
+    @Test
+    public void failedForceIsRetriedWithoutDuplicates() throws IOException {
+        File directory = this.folder.newFolder();
+        FailingDurableTermMap map = new FailingDurableTermMap(directory);
+        map.put(term(0), "v0");
+        map.commit();
+
+        map.channel.failForce = true;
+        map.put(term(0), "w0");
+        try {
+            map.commit();
+            fail("Injected force failure not reported");
+        }
+        catch (IOException e) {
+            // expected
+        }
+        map.channel.failForce = false;
+        map.commit();
+        map.close();
+
+        DurableTermMap<String> reopened = this.open(directory);
+        assertEquals(Arrays.asList("v0", "w0"), reopened.getValues(term(0)));
+        reopened.close();
+    }
+
+    @Test
+    public void nullTermSurvivesCompaction() throws IOException {
+        File directory = this.folder.newFolder();
+        DurableTermMap<String> map = this.open(directory);
+        map.put(null, "n");
+        map.put(new Term("", "en"), "e");
+        map.compact();
+        map.close();
+
+        map = this.open(directory);
+        assertEquals(Arrays.asList("n"), map.getValues(null));
+        assertEquals(Arrays.asList("e"), map.getValues(new Term("", "en")));
+        assertEquals(2, map.getSize());
+        map.close();
+    }
+
+    /**
+     * Durable term map whose log channel fails on demand
+     */
+    private static class FailingDurableTermMap extends DurableTermMap<String> {
+
+        FailingChannel channel;
+
+        FailingDurableTermMap(File directory) throws IOException {
+            super(directory, ValueCodecs.STRING);
+        }
+
+        @Override
+        FileChannel openLogChannel(File file, OpenOption... options) throws IOException {
+            this.channel = new FailingChannel(FileChannel.open(file.toPath(), options));
+            return this.channel;
+        }
+    }
+
+    /**
+     * File channel that writes half of a buffer then fails, or fails to force,
+     * when asked to
+     */
+    private static class FailingChannel extends FileChannel {
+
+        private final FileChannel delegate;
+        volatile boolean failWrite;
+        volatile boolean failForce;
+
+        FailingChannel(FileChannel delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (!this.failWrite) return this.delegate.write(src);
+            ByteBuffer half = src.duplicate();
+            half.limit(src.position() + src.remaining() / 2);
+            this.delegate.write(half);
+            throw new IOException("Injected write failure");
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            if (this.failForce) throw new IOException("Injected force failure");
+            this.delegate.force(metaData);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return this.delegate.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return this.delegate.read(dsts, offset, length);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return this.delegate.write(srcs, offset, length);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return this.delegate.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            this.delegate.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return this.delegate.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            this.delegate.truncate(size);
+            return this;
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return this.delegate.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            return this.delegate.transferFrom(src, position, count);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return this.delegate.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return this.delegate.write(src, position);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return this.delegate.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return this.delegate.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return this.delegate.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            this.delegate.close();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2015 Coastal and Marine Research Centre (CMRC), Beaufort,
+ * Environmental Research Institute (ERI), University College Cork (UCC).
+ * Yassine Lassoued <y.lassoued@gmail.com, y.lassoued@ucc.ie>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ie.cmrc.util;
+
+import java.util.Iterator;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link Multimap}
+ * @author Yassine Lassoued
+ */
+public class MultimapTest {
+
+    @Test
+    public void keySetRemovalClearsNullKey() {
+        Multimap<String, String> m = new Multimap<String, String>();
+        m.put(null, "x");
+        assertTrue(m.keySet().remove(null));
+        assertNull(m.get(null));
+        assertFalse(m.containsKey(null));
+        assertTrue(m.isEmpty());
+    }
+
+    @Test
+    public void keySetIteratorRemovalClearsNullKey() {
+        Multimap<String, String> m = new Multimap<String, String>();
+        m.put(null, "x");
+        m.put("a", "y");
+        Iterator<String> it = m.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next() == null) it.remove();
+        }
+        assertNull(m.get(null));
+        assertEquals("y", m.get("a"));
+        assertEquals(1, m.keySet().size());
+    }
+
+    @Test
+    public void keySetRemovalDropsValueIndex() {
+        Multimap<String, Integer> m = new Multimap<String, Integer>();
+        for (int i = 0; i < 40; i++) m.put("k", i);
+        assertTrue(m.containsEntry("k", 5));
+        assertTrue(m.keySet().remove("k"));
+        m.put("k", 100);
+        assertFalse(m.containsEntry("k", 5));
+        assertTrue(m.containsEntry("k", 100));
+        assertTrue(m.putIfAbsent("k", 5));
+        assertEquals(2, m.getAll("k").size());
+    }
+
+    @Test
+    public void keySetRemovalUpdatesReverseIndex() {
+        Multimap<String, Integer> m = new Multimap<String, Integer>();
+        m.enableReverseIndex();
+        m.put("a", 1);
+        m.put("b", 2);
+        assertTrue(m.keySet().remove("a"));
+        assertFalse(m.containsValue(1));
+        Iterator<String> it = m.keySet().iterator();
+        it.next();
+        it.remove();
+        assertFalse(m.containsValue(2));
+        assertTrue(m.getKeysForValue(2).isEmpty());
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015 Coastal and Marine Research Centre (CMRC), Beaufort,
+ * Environmental Research Institute (ERI), University College Cork (UCC).
+ * Yassine Lassoued <y.lassoued@gmail.com, y.lassoued@ucc.ie>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ie.cmrc.util;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH comparison of the two letter pair kernels of {@link StringMatcher},
+ * per string length: sorting and merging packed pairs, and the SWAR kernel
+ * used for ASCII strings. Run it after {@code mvn test-compile} with
+ * <pre>
+ * mvn exec:java -Dexec.classpathScope=test -Dexec.mainClass=ie.cmrc.util.StringMatcherBenchmark
+ * </pre>
+ *
+ * @author Yassine Lassoued
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StringMatcherBenchmark {
+
+    private static final int NUM_STRINGS = 256;
+
+    @Param({"8", "32", "128", "512"})
+    public int length;
+
+    private String[] strings;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        this.strings = new String[NUM_STRINGS];
+        for (int i=0; i<NUM_STRINGS; i++) {
+            StringBuilder builder = new StringBuilder(this.length);
+            for (int j=0; j<this.length; j++) {
+                builder.append(random.nextInt(6) == 0 ? ' ' : (char) ('a' + random.nextInt(26)));
+            }
+            this.strings[i] = builder.toString();
+        }
+    }
+
+    @Benchmark
+    public double sortedPairs() {
+        int i = this.next++;
+        return StringMatcher.compareSortedPairs(this.strings[i & (NUM_STRINGS - 1)], this.strings[(7 * i + 1) & (NUM_STRINGS - 1)]);
+    }
+
+    @Benchmark
+    public double swar() {
+        int i = this.next++;
+        return StringMatcher.compareStrings(this.strings[i & (NUM_STRINGS - 1)], this.strings[(7 * i + 1) & (NUM_STRINGS - 1)]);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(StringMatcherBenchmark.class.getSimpleName()).build()).run();
+    }
+}
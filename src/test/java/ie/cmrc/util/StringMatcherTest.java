@@ -0,0 +1,66 @@
+/*
+ * Copyright 2015 Coastal and Marine Research Centre (CMRC), Beaufort,
+ * Environmental Research Institute (ERI), University College Cork (UCC).
+ * Yassine Lassoued <y.lassoued@gmail.com, y.lassoued@ucc.ie>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ie.cmrc.util;
+
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link StringMatcher}
+ * @author Yassine Lassoued
+ */
+public class StringMatcherTest {
+
+    /**
+     * Characters around the boundaries of the upper casing and separator
+     * tests of the SWAR kernel
+     */
+    private static final String EDGE_CHARACTERS = "aAbBzZ{@`[ \t\n\u000B\f\r\u0008\u000E\u001F!~\u007F";
+
+    @Test
+    public void swarKernelMatchesSortedPairs() {
+        Random random = new Random(7);
+        for (int n=0; n<100000; n++) {
+            String str1 = randomString(random);
+            String str2 = randomString(random);
+            double expected = StringMatcher.compareSortedPairs(str1, str2);
+            double actual = StringMatcher.compareStrings(str1, str2);
+            assertEquals(str1 + " / " + str2, Double.doubleToLongBits(expected), Double.doubleToLongBits(actual));
+        }
+    }
+
+    @Test
+    public void nonAsciiStringsFallBackToSortedPairs() {
+        assertEquals(0.8, StringMatcher.compareStrings("caf\u00E9 bar", "cafe bar"), 1e-12);
+        assertEquals(1.0, StringMatcher.compareStrings("stra\u00DFe", "STRASSE"), 1e-12);
+        assertEquals(StringMatcher.compareSortedPairs("ab\u0130c", "abic"), StringMatcher.compareStrings("ab\u0130c", "abic"), 0);
+    }
+
+    private static String randomString(Random random) {
+        int length = random.nextInt(40);
+        StringBuilder builder = new StringBuilder(length);
+        for (int i=0; i<length; i++) {
+            if (random.nextInt(4) == 0) builder.append((char) random.nextInt(128));
+            else builder.append(EDGE_CHARACTERS.charAt(random.nextInt(EDGE_CHARACTERS.length())));
+        }
+        return builder.toString();
+    }
+}
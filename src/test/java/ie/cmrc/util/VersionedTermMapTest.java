@@ -0,0 +1,53 @@
+/*
+ * Copyright 2015 Coastal and Marine Research Centre (CMRC), Beaufort,
+ * Environmental Research Institute (ERI), University College Cork (UCC).
+ * Yassine Lassoued <y.lassoued@gmail.com, y.lassoued@ucc.ie>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ie.cmrc.util;
+
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link VersionedTermMap} and {@link TermMapSnapshot}
+ * @author Yassine Lassoued
+ */
+public class VersionedTermMapTest {
+
+    @Test
+    public void copyKeepsNullTerm() {
+        TermMap<String> map = new TermMap<>();
+        map.put(null, "x");
+        map.put(new Term("", null), "e");
+        VersionedTermMap<String> versioned = new VersionedTermMap<>(map);
+        assertEquals(Arrays.asList("x"), versioned.getValues((Term) null));
+        assertEquals(Arrays.asList("e"), versioned.getValues(new Term("", null)));
+        assertEquals(2, versioned.getSize());
+    }
+
+    @Test
+    public void toTermMapKeepsNullTerm() {
+        VersionedTermMap<String> versioned = new VersionedTermMap<>();
+        versioned.put(null, "y");
+        versioned.put(new Term("", "en"), "e");
+        TermMap<String> map = versioned.snapshot().toTermMap();
+        assertEquals(Arrays.asList("y"), map.getValues((Term) null));
+        assertEquals(Arrays.asList("e"), map.getValues(new Term("", "en")));
+        assertEquals(2, map.getSize());
+    }
+}